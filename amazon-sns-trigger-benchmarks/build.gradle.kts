@@ -0,0 +1,108 @@
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+plugins {
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+val teamcityVersion = ext.get("teamcityVersion")!! as String
+
+dependencies {
+    jmhImplementation(project(":amazon-sns-trigger-server"))
+    jmhImplementation("org.jetbrains.teamcity.internal:server:$teamcityVersion")
+    jmhImplementation("org.jetbrains.teamcity:server-openapi:$teamcityVersion")
+    jmhImplementation("org.jetbrains.teamcity:server-core:$teamcityVersion")
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+val jmhBaseline = layout.projectDirectory.file("baseline.json")
+
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    timeOnIteration.set("2s")
+    warmup.set("1s")
+    resultFormat.set("JSON")
+    resultsFile.set(jmhResults)
+    findProperty("jmhIncludes")?.let { includes.set(listOf(it.toString())) }
+}
+
+// Compares the last JMH run with baseline.json and fails if a benchmark got slower than the allowed threshold.
+// Usage: ./gradlew :amazon-sns-trigger-benchmarks:jmh :amazon-sns-trigger-benchmarks:jmhCompareBaseline [-PjmhRegressionThreshold=0.1]
+tasks.register("jmhCompareBaseline") {
+    group = "benchmark"
+    description = "Compares JMH results with the stored baseline and fails on regressions"
+    inputs.file(jmhResults)
+
+    doLast {
+        val baselineFile = jmhBaseline.asFile
+        if (!baselineFile.exists()) {
+            throw GradleException("No baseline at $baselineFile, run jmhUpdateBaseline first")
+        }
+
+        val threshold = (findProperty("jmhRegressionThreshold") ?: "0.1").toString().toDouble()
+        val baseline = readScores(baselineFile)
+        val current = readScores(jmhResults.get().asFile)
+        val regressions = mutableListOf<String>()
+
+        current.forEach { (name, score) ->
+            val base = baseline[name]
+            if (base == null) {
+                logger.lifecycle("NEW   $name: ${format(score.value)} ${score.unit}")
+                return@forEach
+            }
+
+            // throughput: higher is better, average/sample time: lower is better
+            val change = if (score.higherIsBetter) (base.value - score.value) / base.value else (score.value - base.value) / base.value
+            val line = "$name: ${format(base.value)} -> ${format(score.value)} ${score.unit} (${format(-change * 100)}%)"
+            if (change > threshold) {
+                regressions.add(line)
+                logger.lifecycle("SLOW  $line")
+            } else {
+                logger.lifecycle("OK    $line")
+            }
+        }
+
+        if (regressions.isNotEmpty()) {
+            throw GradleException("${regressions.size} benchmark(s) regressed by more than ${threshold * 100}%:\n" + regressions.joinToString("\n"))
+        }
+    }
+}
+
+tasks.register("jmhUpdateBaseline") {
+    group = "benchmark"
+    description = "Stores the last JMH results as the baseline"
+    inputs.file(jmhResults)
+
+    doLast {
+        val scores = readScores(jmhResults.get().asFile).mapValues { (_, score) ->
+            mapOf("value" to score.value, "unit" to score.unit, "higherIsBetter" to score.higherIsBetter)
+        }
+        jmhBaseline.asFile.writeText(JsonOutput.prettyPrint(JsonOutput.toJson(scores)))
+        logger.lifecycle("Baseline with ${scores.size} benchmark(s) is written to ${jmhBaseline.asFile}")
+    }
+}
+
+data class Score(val value: Double, val unit: String, val higherIsBetter: Boolean)
+
+fun format(value: Double) = String.format("%.3f", value)
+
+@Suppress("UNCHECKED_CAST")
+fun readScores(file: File): Map<String, Score> {
+    val parsed = JsonSlurper().parse(file)
+    if (parsed is Map<*, *>) {
+        // baseline format
+        return (parsed as Map<String, Map<String, Any>>).mapValues { (_, it) ->
+            Score((it["value"] as Number).toDouble(), it["unit"] as String, it["higherIsBetter"] as Boolean)
+        }
+    }
+
+    // JMH JSON format
+    return (parsed as List<Map<String, Any>>).associate { run ->
+        val params = (run["params"] as Map<String, Any>?)?.entries?.joinToString(",", "[", "]") { "${it.key}=${it.value}" } ?: ""
+        val metric = run["primaryMetric"] as Map<String, Any>
+        val unit = metric["scoreUnit"] as String
+        "${run["benchmark"]}$params" to Score((metric["score"] as Number).toDouble(), unit, unit.startsWith("ops/"))
+    }
+}
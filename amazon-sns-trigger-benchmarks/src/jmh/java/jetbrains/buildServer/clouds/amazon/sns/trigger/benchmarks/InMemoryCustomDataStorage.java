@@ -0,0 +1,96 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import jetbrains.buildServer.serverSide.CustomDataStorage;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * In-memory {@link CustomDataStorage}.
+ * <p>
+ * Flushes with {@link CustomDataStorage.ConflictResolution#FAIL} can be configured to fail several times
+ * as if another node changed the storage in between: each failure stores an extra message written by the "other node".
+ */
+final class InMemoryCustomDataStorage {
+  private final Map<String, String> myValues = new HashMap<>();
+  private final CustomDataStorage myStorage = Stubs.stub(CustomDataStorage.class, (proxy, method, args) -> {
+    switch (method.getName()) {
+      case "getValue":
+        return getValue((String) args[0]);
+      case "getValues":
+        return getValues();
+      case "putValue":
+        putValue((String) args[0], (String) args[1]);
+        return null;
+      case "putValues":
+        putValues((Map<String, String>) args[0]);
+        return null;
+      case "updateValues":
+        putValues((Map<String, String>) args[0]);
+        for (String key : (Set<String>) args[1]) {
+          putValue(key, null);
+        }
+        return null;
+      case "flush":
+        flush(args != null && args.length == 1 && args[0] == CustomDataStorage.ConflictResolution.FAIL);
+        return null;
+      default:
+        return null;
+    }
+  });
+
+  private int myConflictsPerFlush;
+  private int myConflictsLeft;
+  private long myConflictCounter;
+
+  @NotNull
+  CustomDataStorage getStorage() {
+    return myStorage;
+  }
+
+  void setConflictsPerFlush(int conflictsPerFlush) {
+    myConflictsPerFlush = conflictsPerFlush;
+    myConflictsLeft = conflictsPerFlush;
+  }
+
+  /**
+   * Replaces the stored values without any conflict bookkeeping.
+   */
+  void reset(@NotNull Map<String, String> values) {
+    myValues.clear();
+    myValues.putAll(values);
+    myConflictsLeft = myConflictsPerFlush;
+  }
+
+  private String getValue(@NotNull String key) {
+    return myValues.get(key);
+  }
+
+  private Map<String, String> getValues() {
+    return myValues.isEmpty() ? null : Collections.unmodifiableMap(new HashMap<>(myValues));
+  }
+
+  private void putValue(@NotNull String key, String value) {
+    if (value == null) {
+      myValues.remove(key);
+    } else {
+      myValues.put(key, value);
+    }
+  }
+
+  private void putValues(@NotNull Map<String, String> values) {
+    values.forEach(this::putValue);
+  }
+
+  private void flush(boolean failOnConflict) {
+    if (failOnConflict && myConflictsLeft > 0) {
+      myConflictsLeft--;
+      myValues.put("message.concurrent-" + (myConflictCounter++ % 16), "{}");
+      throw new IllegalStateException("Simulated custom data storage conflict");
+    }
+
+    myConflictsLeft = myConflictsPerFlush;
+  }
+}
@@ -0,0 +1,47 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.http.HttpApi;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@link HttpApi} answering GET requests from a map of URL to response body.
+ */
+final class InMemoryHttpApi {
+  private final Map<String, String> myResponses = new HashMap<>();
+  private final HttpApi myApi = Stubs.stub(HttpApi.class, (proxy, method, args) -> {
+    if ("get".equals(method.getName()) && args != null && args.length > 0 && args[0] instanceof String) {
+      String body = myResponses.get((String) args[0]);
+      if (body == null) {
+        throw new IOException("No response for " + args[0]);
+      }
+      return response(body);
+    }
+    return null;
+  });
+
+  @NotNull
+  HttpApi getApi() {
+    return myApi;
+  }
+
+  void respond(@NotNull String url, @NotNull String body) {
+    myResponses.put(url, body);
+  }
+
+  @NotNull
+  private static HttpApi.Response response(@NotNull String body) {
+    return Stubs.stub(HttpApi.Response.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getBody":
+          return body;
+        case "getStatusCode":
+          return 200;
+        default:
+          return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,86 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsMessageCodec;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsMessageCodec.SharedStrings;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of a backlog of pending messages: JSON of older plugin versions vs. the compact encoding.
+ * The stored size of the backlog is reported by {@code encode} as the {@code storedChars} secondary result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageCodecBenchmark {
+  private static final int BACKLOG = 100;
+
+  @Param({"json", "compact"})
+  public String encoding;
+
+  @Param({"256", "16384"})
+  public int bodySize;
+
+  private List<SnsNotificationDto> myMessages;
+  private Map<String, String> myStored;
+  private long myStoredChars;
+
+  @Setup
+  public void setUp() throws IOException {
+    myMessages = new ArrayList<>();
+    for (int i = 0; i < BACKLOG; i++) {
+      myMessages.add(SnsPayloads.dto("message-" + i, bodySize, 3));
+    }
+
+    myStored = new HashMap<>();
+    encodeInto(myStored);
+
+    myStoredChars = myStored.values().stream().mapToLong(String::length).sum();
+  }
+
+  @Benchmark
+  public Map<String, String> encode(@NotNull StoredSize storedSize) throws IOException {
+    Map<String, String> stored = new HashMap<>();
+    encodeInto(stored);
+    storedSize.storedChars = myStoredChars;
+    return stored;
+  }
+
+  @Benchmark
+  public void decode(@NotNull Blackhole blackhole) throws IOException {
+    SharedStrings shared = new SharedStrings(myStored::get);
+    for (Map.Entry<String, String> entry : myStored.entrySet()) {
+      if (!SharedStrings.isSharedStringKey(entry.getKey())) {
+        blackhole.consume(SnsMessageCodec.decode(entry.getValue(), shared));
+      }
+    }
+  }
+
+  private void encodeInto(@NotNull Map<String, String> stored) throws IOException {
+    boolean json = "json".equals(encoding);
+    SharedStrings shared = new SharedStrings(stored::get);
+    for (SnsNotificationDto message : myMessages) {
+      String value = json ? SnsJson.MESSAGE_WRITER.writeValueAsString(message) : SnsMessageCodec.encode(message, shared);
+      stored.put(message.getMessageId(), value);
+    }
+    stored.putAll(shared.getAdded());
+  }
+
+  /**
+   * Stored size of the encoded backlog, the same for every invocation.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class StoredSize {
+    public long storedChars;
+  }
+}
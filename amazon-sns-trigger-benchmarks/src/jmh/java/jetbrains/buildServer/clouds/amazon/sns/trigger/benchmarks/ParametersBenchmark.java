@@ -0,0 +1,48 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageParametersCustomisationService;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.SBuild;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SNS build parameters provider, called by the server every time build parameters are resolved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParametersBenchmark {
+  @Param({"0", "20"})
+  public int attributes;
+
+  @Param({"50", "500"})
+  public int otherParameters;
+
+  private SnsMessageParametersCustomisationService myService;
+  private SBuild myBuild;
+
+  @Setup
+  public void setUp() {
+    Map<String, String> parameters = new HashMap<>();
+    for (int i = 0; i < otherParameters; i++) {
+      parameters.put("env.PARAMETER_" + i, "value-" + i);
+    }
+    parameters.put(AwsSnsTriggerConstants.SNS_MESSAGE_SUBJECT_PARAMETER_PLACEHOLDER, "Deployment finished");
+    parameters.put(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_PARAMETER_PLACEHOLDER, SnsPayloads.body(1024));
+    for (int i = 0; i < attributes; i++) {
+      parameters.put(AwsSnsTriggerConstants.SNS_MESSAGE_ATTRIBUTES_PARAMETER_PLACEHOLDER + "attribute" + i, "value-" + i);
+    }
+
+    myService = new SnsMessageParametersCustomisationService(Stubs.stub(ExtensionHolder.class));
+    myBuild = Stubs.stub(SBuild.class, (proxy, method, args) -> "getBuildOwnParameters".equals(method.getName()) ? parameters : null);
+  }
+
+  @Benchmark
+  public Map<String, String> getParameters() {
+    return myService.getParameters(myBuild, false);
+  }
+}
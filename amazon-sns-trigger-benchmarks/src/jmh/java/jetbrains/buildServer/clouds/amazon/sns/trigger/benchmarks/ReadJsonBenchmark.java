@@ -0,0 +1,105 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.controllers.BaseAwsConnectionController;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Request body parsing of the SNS endpoint.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadJsonBenchmark {
+  @Param({"256", "16384", "262144"})
+  public int bodySize;
+
+  private JsonReadingController myController;
+  private HttpServletRequest myRequest;
+  private byte[] myBody;
+
+  @Setup
+  public void setUp() throws Exception {
+    Map<String, Object> payload = SnsPayloads.notification("benchmark-message", bodySize, 5);
+    myBody = new ObjectMapper().writeValueAsBytes(payload);
+    myController = new JsonReadingController(Stubs.stub(SBuildServer.class));
+    myRequest = Stubs.stub(HttpServletRequest.class, (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getInputStream":
+          return inputStream(myBody);
+        case "getContentLength":
+          return myBody.length;
+        case "getContentLengthLong":
+          return (long) myBody.length;
+        case "getCharacterEncoding":
+          return StandardCharsets.UTF_8.name();
+        default:
+          return null;
+      }
+    });
+  }
+
+  @Benchmark
+  public SnsEnvelope readEnvelope() throws AwsSnsHttpEndpointException {
+    return myController.read(myRequest);
+  }
+
+  @NotNull
+  private static ServletInputStream inputStream(@NotNull byte[] body) {
+    ByteArrayInputStream stream = new ByteArrayInputStream(body);
+    return new ServletInputStream() {
+      @Override
+      public boolean isFinished() {
+        return stream.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {
+      }
+
+      @Override
+      public int read() {
+        return stream.read();
+      }
+
+      @Override
+      public int read(@NotNull byte[] b, int off, int len) {
+        return stream.read(b, off, len);
+      }
+    };
+  }
+
+  private static class JsonReadingController extends BaseAwsConnectionController {
+    JsonReadingController(@NotNull SBuildServer server) {
+      super(server);
+    }
+
+    SnsEnvelope read(@NotNull HttpServletRequest request) throws AwsSnsHttpEndpointException {
+      return readEnvelope(request, AwsSnsTriggerConstants.MAX_BODY_SIZE_DEFAULT);
+    }
+
+    @Override
+    protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
+      return null;
+    }
+  }
+}
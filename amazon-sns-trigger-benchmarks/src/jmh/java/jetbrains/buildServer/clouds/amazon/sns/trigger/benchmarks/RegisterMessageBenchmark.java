@@ -0,0 +1,150 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.nio.file.Files;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricsRegistry;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.AwsSnsTriggeringContext;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsBuildTriggerService;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageBodyFiles;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageParametersCustomisationService;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageStore;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageChangeStamps;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageBudget;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageFlushFallback;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsTriggerRuntimeRegistry;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsTriggerStorageSessions;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsMessageCodec;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsMessageCodec.SharedStrings;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TriggerStorageSession;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.serverSide.WebLinks;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Registration of an incoming notification in a trigger storage that already has pending messages.
+ * Each invocation opens the storage the way the endpoint does and registers one message, through a storage session
+ * that has counted the pending messages already, as the long-lived session of the endpoint has.
+ * {@code registerNotification} also writes the unchanged unsubscribe URL in the same batch, as the endpoint does.
+ * The store is within its bounds, see {@code SnsPendingMessageLimits}, so nothing is evicted.
+ * {@code pollMessages} reads the index of pending messages the way the trigger policy does, through a long-lived storage session;
+ * {@code pollMessagesColdSession} does the same with a new session, as after a server restart, and {@code decodeMessages}
+ * decodes every pending message with a new session, as the policy did before the index.
+ * Pending messages are stored in the compact encoding with their shared strings, the way the store writes them;
+ * {@code json} stores them as JSON of older plugin versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegisterMessageBenchmark {
+  @Param({"10", "1000", "10000"})
+  public int pendingMessages;
+
+  @Param({"compact", "json"})
+  public String encoding;
+
+  private SnsBuildTriggerService myService;
+  private InMemoryCustomDataStorage myStorage;
+  private Map<String, String> myInitialValues;
+  private SnsNotificationDto myMessage;
+  private TriggerStorageSession mySession;
+  private TriggerStorageSession myRegisterSession;
+  private SBuildType myBuildType;
+  private BuildTriggerDescriptor myTrigger;
+
+  @Setup
+  public void setUp() throws Exception {
+    ExtensionHolder extensionHolder = Stubs.stub(ExtensionHolder.class);
+    ProjectManager projectManager = Stubs.stub(ProjectManager.class);
+    ServerPaths serverPaths = new ServerPaths(Files.createTempDirectory("sns-trigger-benchmark").toString());
+    SnsStorageFlushFallback flushFallback = new SnsStorageFlushFallback(serverPaths, projectManager, EventDispatcher.create(BuildServerListener.class));
+    SnsStorageChangeStamps changeStamps = new SnsStorageChangeStamps(serverPaths);
+    SnsTriggerStorageSessions storageSessions = new SnsTriggerStorageSessions(flushFallback, changeStamps);
+    AwsSnsTriggeringContext context = new AwsSnsTriggeringContext(
+      projectManager,
+      Stubs.stub(WebLinks.class),
+      new SnsMessageParametersCustomisationService(extensionHolder),
+      new SnsTriggerMetrics(new MetricsRegistry(1000)),
+      new SnsTriggerRuntimeRegistry(storageSessions, changeStamps, Stubs.stub(ServerResponsibility.class), EventDispatcher.create(BuildServerListener.class)),
+      storageSessions,
+      new SnsMessageBodyFiles(serverPaths, EventDispatcher.create(BuildServerListener.class)),
+      new SnsStorageBudget()
+    );
+    myService = new SnsBuildTriggerService(extensionHolder, Stubs.stub(PluginDescriptor.class), context);
+    myBuildType = Stubs.stub(SBuildType.class, (proxy, method, args) -> "getInternalId".equals(method.getName()) ? "bt1" : null);
+    myTrigger = Stubs.stub(BuildTriggerDescriptor.class, (proxy, method, args) -> "getId".equals(method.getName()) ? "TRIGGER_1" : null);
+
+    myInitialValues = new HashMap<>();
+    myInitialValues.put(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, SnsPayloads.UNSUBSCRIBE_URL);
+    myInitialValues.put(AwsSnsTriggerConstants.TRIGGER_STORE_NEXT_EXPIRY, String.valueOf(
+      SnsPayloads.PUBLISHED.plus(AwsSnsTriggerConstants.PENDING_TTL_HOURS_DEFAULT, ChronoUnit.HOURS).toEpochMilli()));
+    boolean json = "json".equals(encoding);
+    SharedStrings shared = new SharedStrings(myInitialValues::get);
+    for (int i = 0; i < pendingMessages; i++) {
+      String id = "pending-" + i;
+      SnsNotificationDto message = SnsPayloads.dto(id, 512, 3);
+      myInitialValues.put(SnsMessageStore.messageKey(id), json ? SnsJson.MESSAGE_WRITER.writeValueAsString(message) : SnsMessageCodec.encode(message, shared));
+      myInitialValues.put(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGE_INDEX_KEY_PREFIX + id, String.valueOf(SnsPayloads.PUBLISHED.toEpochMilli()));
+    }
+    myInitialValues.putAll(shared.getAdded());
+
+    myStorage = new InMemoryCustomDataStorage();
+    myMessage = SnsPayloads.dto("incoming", 512, 3);
+    mySession = new TriggerStorageSession(null);
+  }
+
+  @Setup(Level.Invocation)
+  public void resetStorage() {
+    myStorage.reset(myInitialValues);
+    myRegisterSession = new TriggerStorageSession(null);
+    myService.createMessageStore(myBuildType, myTrigger, myRegisterSession.open(myStorage.getStorage())).getUsage();
+  }
+
+  @Benchmark
+  public void registerMessage() throws AwsSnsHttpEndpointException {
+    myService.registerMessage(myBuildType, myTrigger, myMessage, myRegisterSession.open(myStorage.getStorage()));
+  }
+
+  @Benchmark
+  public void registerNotification() throws AwsSnsHttpEndpointException {
+    CustomDataStorageWrapper cds = myRegisterSession.open(myStorage.getStorage());
+    cds.startBatch();
+    try {
+      cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, SnsPayloads.UNSUBSCRIBE_URL);
+      myService.registerMessage(myBuildType, myTrigger, myMessage, cds);
+    } finally {
+      cds.commitBatch();
+    }
+  }
+
+  @Benchmark
+  public int pollMessages() {
+    return myService.createMessageStore(myBuildType, myTrigger, mySession.open(myStorage.getStorage())).getIndex().size();
+  }
+
+  @Benchmark
+  public int pollMessagesColdSession() {
+    return myService.createMessageStore(myBuildType, myTrigger, new TriggerStorageSession(null).open(myStorage.getStorage())).getIndex().size();
+  }
+
+  @Benchmark
+  public int decodeMessages() {
+    return myService.createMessageStore(myBuildType, myTrigger, new TriggerStorageSession(null).open(myStorage.getStorage())).getAll().size();
+  }
+}
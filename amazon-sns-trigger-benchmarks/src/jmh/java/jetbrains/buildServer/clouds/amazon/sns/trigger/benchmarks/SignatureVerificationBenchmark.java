@@ -0,0 +1,144 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsMessageType;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsSignatureVerification;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SignatureVersion;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsSignatureVerifier;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Signature verification of an SNS notification with a warm certificate cache.
+ * <ul>
+ *   <li>{@code isValid}: the endpoint path, including the certificate cache lookup;</li>
+ *   <li>{@code reusableVerifier}: the per-thread verifier alone;</li>
+ *   <li>{@code perCallVerifier}: the same check creating the string to sign and the {@link Signature} on every call,
+ *   as the endpoint did before, for comparison.</li>
+ * </ul>
+ * Run with {@code -t} (JMH threads) to compare the throughput per core.
+ * <p>
+ * The signing key pair is generated with the JDK keytool into a temporary key store,
+ * the certificate is served by {@link InMemoryHttpApi}, so no network is involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SignatureVerificationBenchmark {
+  private static final String PASSWORD = "benchmark";
+  private static final String ALIAS = "sns";
+
+  @Param({"1", "2"})
+  public String signatureVersion;
+
+  private InMemoryHttpApi myHttpApi;
+  private Map<String, Object> myPayload;
+  private SnsEnvelope myEnvelope;
+  private PublicKey myPublicKey;
+
+  @Setup
+  public void setUp() throws Exception {
+    KeyStore keyStore = generateKeyStore();
+    PrivateKey privateKey = (PrivateKey) keyStore.getKey(ALIAS, PASSWORD.toCharArray());
+    Certificate certificate = keyStore.getCertificate(ALIAS);
+
+    myHttpApi = new InMemoryHttpApi();
+    myHttpApi.respond(SnsPayloads.CERTIFICATE_URL, toPem(certificate));
+
+    myPayload = SnsPayloads.notification("benchmark-message", 1024, 5);
+    myPayload.put(AwsSnsTriggerConstants.SIGNING_SIGNATURE_VERSION_KEY, signatureVersion);
+    myPayload.put(AwsSnsTriggerConstants.SIGNING_SIGNATURE_KEY, sign(privateKey, myPayload));
+    myEnvelope = SnsEnvelope.fromMap(myPayload);
+    myPublicKey = certificate.getPublicKey();
+
+    // warm up the certificate cache
+    if (!isValid() || !reusableVerifier() || !perCallVerifier()) {
+      throw new IllegalStateException("Benchmark payload signature is not valid");
+    }
+  }
+
+  @Benchmark
+  public boolean isValid() {
+    return new AwsSnsSignatureVerification(myEnvelope, myHttpApi.getApi()).isValid();
+  }
+
+  @Benchmark
+  public boolean reusableVerifier() throws Exception {
+    return SnsSignatureVerifier.verify(myEnvelope, SnsMessageType.NOTIFICATION, myEnvelope.getSignature(), myPublicKey);
+  }
+
+  @Benchmark
+  public boolean perCallVerifier() throws Exception {
+    Signature checker = Signature.getInstance(SignatureVersion.fromValue(myEnvelope.getSignatureVersion()).getAlgorithm());
+    checker.initVerify(myPublicKey);
+    checker.update(myEnvelope.getStringToSign(SnsMessageType.NOTIFICATION).getBytes(StandardCharsets.UTF_8));
+    return checker.verify(Base64.getDecoder().decode(myEnvelope.getSignature().getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @NotNull
+  private String sign(@NotNull PrivateKey privateKey, @NotNull Map<String, Object> payload) throws Exception {
+    Signature signature = Signature.getInstance(SignatureVersion.fromValue(signatureVersion).getAlgorithm());
+    signature.initSign(privateKey);
+    signature.update(stringToSign(payload, AwsSnsTriggerConstants.NOTIFICATION_KEYS_LIST).getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(signature.sign());
+  }
+
+  @NotNull
+  private static String stringToSign(@NotNull Map<String, Object> payload, @NotNull List<String> keys) {
+    StringBuilder sb = new StringBuilder();
+    for (String key : keys) {
+      if (payload.containsKey(key)) {
+        sb.append(key).append("\n").append(payload.get(key)).append("\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private static String toPem(@NotNull Certificate certificate) throws Exception {
+    Base64.Encoder encoder = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII));
+    return "-----BEGIN CERTIFICATE-----\n" + encoder.encodeToString(certificate.getEncoded()) + "\n-----END CERTIFICATE-----\n";
+  }
+
+  @NotNull
+  private static KeyStore generateKeyStore() throws Exception {
+    File dir = Files.createTempDirectory("sns-benchmark").toFile();
+    File file = new File(dir, "keystore.p12");
+    try {
+      String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+      Process process = new ProcessBuilder(
+        keytool, "-genkeypair", "-alias", ALIAS, "-keyalg", "RSA", "-keysize", "2048", "-sigalg", "SHA256withRSA",
+        "-dname", "CN=sns.amazonaws.com", "-validity", "7", "-storetype", "PKCS12",
+        "-keystore", file.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD
+      ).redirectErrorStream(true).start();
+      String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+      if (process.waitFor() != 0) {
+        throw new IllegalStateException("keytool failed: " + output);
+      }
+
+      KeyStore keyStore = KeyStore.getInstance("PKCS12");
+      try (InputStream in = new FileInputStream(file)) {
+        keyStore.load(in, PASSWORD.toCharArray());
+      }
+      return keyStore;
+    } finally {
+      file.delete();
+      dir.delete();
+    }
+  }
+}
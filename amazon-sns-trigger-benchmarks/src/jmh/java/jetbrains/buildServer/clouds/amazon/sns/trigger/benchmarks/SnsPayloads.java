@@ -0,0 +1,71 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Realistic SNS payloads shared by the benchmarks.
+ */
+final class SnsPayloads {
+  static final String TOPIC_ARN = "arn:aws:sns:eu-west-1:123456789012:teamcity-benchmark";
+  static final String SUBSCRIPTION_ARN = TOPIC_ARN + ":0b1f5c3e-6d2a-4f4e-9e55-3c7c1f0a9b21";
+  static final String CERTIFICATE_URL = "https://sns.eu-west-1.amazonaws.com/SimpleNotificationService-benchmark.pem";
+  static final String UNSUBSCRIBE_URL = "https://sns.eu-west-1.amazonaws.com/?Action=Unsubscribe&SubscriptionArn=" + SUBSCRIPTION_ARN;
+  // recent, so stored messages don't expire during a run
+  static final Instant PUBLISHED = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+  private SnsPayloads() {
+  }
+
+  @NotNull
+  static String body(int size) {
+    StringBuilder sb = new StringBuilder(size);
+    while (sb.length() < size) {
+      sb.append("{\"event\":\"deployment\",\"service\":\"billing\",\"revision\":\"4f2a9c1\"}");
+    }
+    sb.setLength(size);
+    return sb.toString();
+  }
+
+  /**
+   * Notification fields in the order SNS sends them, without the signature.
+   */
+  @NotNull
+  static Map<String, Object> notification(@NotNull String messageId, int bodySize, int attributes) {
+    Map<String, Object> payload = new LinkedHashMap<>();
+    payload.put(AwsSnsTriggerConstants.MESSAGE_TYPE_KEY, AwsSnsTriggerConstants.SNS_MT_NOTIFICATION_STR);
+    payload.put(AwsSnsTriggerConstants.NOTIFICATION_MESSAGE_ID_KEY, messageId);
+    payload.put(AwsSnsTriggerConstants.NOTIFICATION_TOPIC_ARN_KEY, TOPIC_ARN);
+    payload.put(AwsSnsTriggerConstants.NOTIFICATION_SUBJECT_KEY, "Deployment finished");
+    payload.put(AwsSnsTriggerConstants.NOTIFICATION_MESSAGE_KEY, body(bodySize));
+    payload.put(AwsSnsTriggerConstants.NOTIFICATION_TIMESTAMP_KEY, "2024-05-14T10:15:30.000Z");
+    payload.put(AwsSnsTriggerConstants.SIGNING_SIGNATURE_VERSION_KEY, "1");
+    payload.put(AwsSnsTriggerConstants.SIGNING_CERTIFICATE_URL_KEY, CERTIFICATE_URL);
+    payload.put(AwsSnsTriggerConstants.UNSUBSCRIBE_URL_KEY, UNSUBSCRIBE_URL);
+    payload.put(AwsSnsTriggerConstants.NOTIFICATION_ATTRIBUTES_KEY, attributes(attributes));
+    return payload;
+  }
+
+  @NotNull
+  static Map<String, Object> attributes(int count) {
+    Map<String, Object> attributes = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> attribute = new LinkedHashMap<>();
+      attribute.put("Type", "String");
+      attribute.put("Value", "value-" + i);
+      attributes.put("attribute" + i, attribute);
+    }
+    return attributes;
+  }
+
+  @NotNull
+  static SnsNotificationDto dto(@NotNull String messageId, int bodySize, int attributes) {
+    return new SnsNotificationDto(messageId, SUBSCRIPTION_ARN, TOPIC_ARN, "Deployment finished", body(bodySize),
+                                  PUBLISHED, UNSUBSCRIBE_URL, attributes(attributes));
+  }
+}
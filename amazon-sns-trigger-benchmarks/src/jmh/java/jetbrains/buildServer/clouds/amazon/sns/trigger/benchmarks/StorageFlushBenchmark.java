@@ -0,0 +1,51 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageStore;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link CustomDataStorageWrapper} writes whose flushes conflict with another writer and have to be merged.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageFlushBenchmark {
+  @Param({"0", "1", "3"})
+  public int conflictsPerFlush;
+
+  @Param({"10", "1000"})
+  public int storedKeys;
+
+  private InMemoryCustomDataStorage myStorage;
+  private Map<String, String> myInitialValues;
+  private String myValue;
+
+  @Setup
+  public void setUp() {
+    myInitialValues = new HashMap<>();
+    myInitialValues.put(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN, SnsPayloads.TOPIC_ARN);
+    myInitialValues.put(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN, SnsPayloads.SUBSCRIPTION_ARN);
+    for (int i = 0; myInitialValues.size() < storedKeys; i++) {
+      myInitialValues.put(SnsMessageStore.messageKey("stored-" + i), SnsPayloads.body(512));
+    }
+
+    myStorage = new InMemoryCustomDataStorage();
+    myStorage.setConflictsPerFlush(conflictsPerFlush);
+    myValue = SnsPayloads.body(512);
+  }
+
+  @Setup(Level.Invocation)
+  public void resetStorage() {
+    myStorage.reset(myInitialValues);
+  }
+
+  @Benchmark
+  public void putValueWithConflicts() {
+    new CustomDataStorageWrapper(myStorage.getStorage()).putValue(SnsMessageStore.messageKey("written"), myValue);
+  }
+}
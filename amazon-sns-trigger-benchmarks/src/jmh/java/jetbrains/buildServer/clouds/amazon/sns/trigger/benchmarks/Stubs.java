@@ -0,0 +1,63 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Dynamic proxies for TeamCity interfaces the benchmarks don't care about.
+ * Unhandled methods return default values, so the stand-ins keep working when the interfaces get new methods.
+ */
+final class Stubs {
+  private Stubs() {
+  }
+
+  @NotNull
+  static <T> T stub(@NotNull Class<T> type) {
+    return stub(type, (proxy, method, args) -> null);
+  }
+
+  /**
+   * @param handler returns the result of a call, null means "use the default value"
+   */
+  @NotNull
+  static <T> T stub(@NotNull Class<T> type, @NotNull InvocationHandler handler) {
+    Object proxy = Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class[]{type}, (self, method, args) -> {
+      switch (method.getName()) {
+        case "equals":
+          return self == args[0];
+        case "hashCode":
+          return System.identityHashCode(self);
+        case "toString":
+          return type.getSimpleName() + " stub";
+      }
+
+      Object result = handler.invoke(self, method, args);
+      return result != null ? result : defaultValue(method);
+    });
+    return type.cast(proxy);
+  }
+
+  @Nullable
+  private static Object defaultValue(@NotNull Method method) {
+    Class<?> type = method.getReturnType();
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    if (type == double.class) return 0d;
+    if (type == float.class) return 0f;
+    if (type == short.class) return (short) 0;
+    if (type == byte.class) return (byte) 0;
+    if (type == char.class) return (char) 0;
+    if (type == List.class) return Collections.emptyList();
+    if (type == Set.class) return Collections.emptySet();
+    if (type == Map.class) return Collections.emptyMap();
+    return null;
+  }
+}
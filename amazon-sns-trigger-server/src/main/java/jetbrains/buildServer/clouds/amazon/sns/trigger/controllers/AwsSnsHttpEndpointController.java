@@ -5,11 +5,27 @@ package jetbrains.buildServer.clouds.amazon.sns.trigger.controllers;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
 import jetbrains.buildServer.buildTriggers.BuildTriggerService;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsMessageType;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsIngestionRejectedException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsPayloadTooLargeException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricLabels;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsBuildTriggerService;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageBodyFiles;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageStore;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsMessageDeduplicator;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsNotificationIngestionService;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageBudget;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageFlushFallback;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsTriggerRoutingIndex;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsTriggerStorageSessions;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsMessageDetailsHelper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsTriggerKeys;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsSignatureVerifier;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
 import jetbrains.buildServer.controllers.ActionErrors;
 import jetbrains.buildServer.controllers.AuthorizationInterceptor;
@@ -22,41 +38,60 @@ import org.springframework.web.servlet.ModelAndView;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsBuildTriggerService.TRIGGER_NAME;
-import static jetbrains.buildServer.serverSide.impl.PolledTriggerContextImpl.getCustomDataStorage;
-
 public class AwsSnsHttpEndpointController extends BaseAwsConnectionController {
   private static final Logger LOG = Logger.getInstance(AwsSnsHttpEndpointController.class);
   public static final String PATH = AwsSnsTriggerConstants.SNS_CONNECTION_CONTROLLER_URL;
   private final Pattern pathPattern = Pattern.compile(AwsSnsTriggerConstants.SNS_CONNECTION_CONTROLLER_URL_PATTERN);
-  private final ProjectManager myProjectManager;
+  private final SnsTriggerRoutingIndex myRoutingIndex;
   private final HttpApi myServerApi;
-  private final SecurityContextEx mySecurityContext;
+  private final SnsNotificationIngestionService myIngestionService;
+  private final SnsTriggerMetrics myMetrics;
+  private final SnsMessageDeduplicator myDeduplicator;
+  private final SnsStorageFlushFallback myFlushFallback;
+  private final SnsTriggerStorageSessions myStorageSessions;
+  private final SnsMessageBodyFiles myMessageBodyFiles;
+  private final SnsStorageBudget myStorageBudget;
 
   public AwsSnsHttpEndpointController(@NotNull SBuildServer server,
                                       @NotNull final WebControllerManager webControllerManager,
-                                      @NotNull final ProjectManager projectManager,
+                                      @NotNull final SnsTriggerRoutingIndex routingIndex,
                                       @NotNull final HttpApi serverApi,
                                       @NotNull final AuthorizationInterceptor authInterceptor,
-                                      @NotNull final SecurityContextEx securityContext
+                                      @NotNull final SnsNotificationIngestionService ingestionService,
+                                      @NotNull final SnsTriggerMetrics metrics,
+                                      @NotNull final SnsMessageDeduplicator deduplicator,
+                                      @NotNull final SnsStorageFlushFallback flushFallback,
+                                      @NotNull final SnsTriggerStorageSessions storageSessions,
+                                      @NotNull final SnsMessageBodyFiles messageBodyFiles,
+                                      @NotNull final SnsStorageBudget storageBudget
   ) {
     super(server);
-    myProjectManager = projectManager;
+    myRoutingIndex = routingIndex;
     myServerApi = serverApi;
-    mySecurityContext = securityContext;
+    myIngestionService = ingestionService;
+    myMetrics = metrics;
+    myDeduplicator = deduplicator;
+    myFlushFallback = flushFallback;
+    myStorageSessions = storageSessions;
+    myMessageBodyFiles = messageBodyFiles;
+    myStorageBudget = storageBudget;
     webControllerManager.registerController(PATH, this);
     authInterceptor.addPathNotRequiringAuth(getClass(), PATH);
+    SnsSignatureVerifier.warmUp();
   }
 
   @Nullable
   @Override
   protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
     final ActionErrors errors = new ActionErrors();
+    MetricLabels labels = MetricLabels.UNKNOWN_TRIGGER;
+    String messageType = SnsMessageType.UNDEFINED.toString();
 
     try {
       final String fullPath = request.getServletPath() + request.getPathInfo();
@@ -81,35 +116,42 @@ public class AwsSnsHttpEndpointController extends BaseAwsConnectionController {
         throw new AwsSnsHttpEndpointException("No Trigger UUID given in the path");
       }
 
-      String finalProjectId = projectId.trim();
-      final String finalBuildTypeId = buildTypeId.trim();
-
-      SProject project = mySecurityContext.runAsSystemUnchecked(() -> myProjectManager.findProjectByExternalId(finalProjectId));
-      if (project == null) {
-        throw new AwsSnsHttpEndpointException("Couldn't find the project with id: " + finalProjectId);
+      // unknown trigger UUIDs are rejected before the body is even read
+      final SnsTriggerRoutingIndex.Route route = myRoutingIndex.findRoute(projectId.trim(), buildTypeId.trim(), triggerUuid.trim());
+      if (route == null) {
+        throw new AwsSnsHttpEndpointException("There are no suitable trigger in the build: " + buildTypeId.trim());
       }
 
-      SBuildType buildType = mySecurityContext.runAsSystemUnchecked(() -> project.findBuildTypeByExternalId(finalBuildTypeId));
-      if (buildType == null) {
-        throw new AwsSnsHttpEndpointException("Couldn't find build type with id: " + finalBuildTypeId);
-      }
-
-      final String finalTriggerUuid = triggerUuid.trim();
-      BuildTriggerDescriptor buildTrigger = buildType.getBuildTriggersCollection().stream()
-              .filter(btd -> btd.getType().equals(TRIGGER_NAME) &&
-                      btd.getProperties().get(AwsSnsTriggerConstants.TRIGGER_UUID_PROPERTY_KEY) != null &&
-                      btd.getProperties().get(AwsSnsTriggerConstants.TRIGGER_UUID_PROPERTY_KEY).equals(finalTriggerUuid))
-              .findFirst()
-              .orElseThrow(() -> new AwsSnsHttpEndpointException("There are no suitable trigger in the build: " + finalBuildTypeId));
+      SBuildType buildType = route.getBuildType();
+      BuildTriggerDescriptor buildTrigger = route.getTrigger();
+      labels = MetricLabels.forTrigger(buildType, buildTrigger);
 
       // OK! we've defined project and the buildType with necessary buildTrigger
       // lets get into request details and find out what kind of request is it?
       if (isPost(request)) {
-        doPost(request, buildType, buildTrigger);
+        long parseStart = System.nanoTime();
+        long maxBodySize = TeamCityProperties.getLong(AwsSnsTriggerConstants.MAX_BODY_SIZE_PROPERTY, AwsSnsTriggerConstants.MAX_BODY_SIZE_DEFAULT);
+        SnsEnvelope envelope = readEnvelope(request, maxBodySize);
+        myMetrics.recordStage(labels, SnsTriggerMetrics.STAGE_PARSE, System.nanoTime() - parseStart);
+
+        messageType = envelope.getType().toString();
+        myMetrics.recordRequest(labels, messageType, doPost(request, envelope, buildType, buildTrigger, labels));
       }
       // otherwise just ignore this message
+    } catch (AwsSnsPayloadTooLargeException tooLarge) {
+      LOG.debug("SNS Endpoint request is too large: " + tooLarge.getMessage());
+      errors.addError("error_snsEndpointTooLarge", tooLarge.getMessage());
+      myMetrics.recordRequest(labels, messageType, SnsTriggerMetrics.OUTCOME_TOO_LARGE);
+      writeErrorsAsJson(errors, response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    } catch (AwsSnsIngestionRejectedException rejected) {
+      LOG.debug("SNS Endpoint request is rejected: " + rejected.getMessage());
+      errors.addError("error_snsEndpointBusy", rejected.getMessage());
+      myMetrics.recordRequest(labels, messageType, SnsTriggerMetrics.OUTCOME_REJECTED);
+      response.setHeader("Retry-After", String.valueOf(rejected.getRetryAfterSeconds()));
+      writeErrorsAsJson(errors, response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } catch (Exception error) {
       LOG.warnAndDebugDetails("Error while processing SNS Endpoint request", error);
+      myMetrics.recordRequest(labels, messageType, SnsTriggerMetrics.OUTCOME_FAILED);
       errors.addError("error_snsEndpointResolve", error.getMessage());
       writeErrorsAsJson(errors, response);
     }
@@ -118,62 +160,307 @@ public class AwsSnsHttpEndpointController extends BaseAwsConnectionController {
     return null;
   }
 
-  private void doPost(
+  /**
+   * @return request outcome for {@link SnsTriggerMetrics#recordRequest}
+   */
+  @NotNull
+  private String doPost(
           @NotNull final HttpServletRequest request,
+          @NotNull final SnsEnvelope envelope,
+          @NotNull final SBuildType buildType,
+          @NotNull final BuildTriggerDescriptor buildTrigger,
+          @NotNull final MetricLabels labels
+  ) throws AwsSnsHttpEndpointException {
+    long verifyStart = System.nanoTime();
+    boolean valid = AwsSnsMessageDetailsHelper.isValidSignature(envelope, myServerApi, fetchNanos -> {
+      if (fetchNanos > 0) {
+        myMetrics.recordStage(labels, SnsTriggerMetrics.STAGE_CERTIFICATE_FETCH, fetchNanos);
+      }
+    });
+    myMetrics.recordStage(labels, SnsTriggerMetrics.STAGE_VERIFY, System.nanoTime() - verifyStart);
+
+    if (!valid) {
+      return SnsTriggerMetrics.OUTCOME_INVALID_SIGNATURE;
+    }
+
+    // everything the storage part needs from the request is extracted here:
+    // the request object must not be touched by the ingestion workers
+    final SnsNotificationIngestionService.IngestionTask task;
+    switch (envelope.getType()) {
+      case SUBSCRIBE:
+        final String topicArn = request.getHeader(AwsSnsTriggerConstants.AWS_TOPIC_ARN_HEADER);
+        task = storageTask(buildType, buildTrigger, labels, cds -> handleSubscription(topicArn, cds, envelope));
+        break;
+      case UNSUBSRIBE:
+        task = storageTask(buildType, buildTrigger, labels, cds -> handleUnsubscribe(buildType, buildTrigger, cds));
+        break;
+      case NOTIFICATION:
+        // checked before anything is stored, the trigger over its share of the server-wide budget is asked to retry later
+        myStorageBudget.checkIngest(AwsSnsTriggerKeys.of(buildType, buildTrigger));
+        final SnsNotificationDto dto = AwsSnsMessageDetailsHelper.convertToNotificationDto(request, envelope);
+        if (myIngestionService.isEnabled()) {
+          enqueueNotification(buildType, buildTrigger, labels, dto);
+          return SnsTriggerMetrics.OUTCOME_ACCEPTED;
+        }
+        task = storageTask(buildType, buildTrigger, labels, cds -> {
+          if (acceptNotification(buildType, buildTrigger, labels, cds, dto)) {
+            storeNotification(buildType, buildTrigger, labels, cds, dto);
+          }
+        });
+        break;
+      default:
+        return SnsTriggerMetrics.OUTCOME_IGNORED;
+    }
+
+    // the request is answered only after the changes are committed, SNS doesn't redeliver a message answered with 200
+    run(AwsSnsTriggerKeys.of(buildType, buildTrigger), task);
+    if (envelope.getType() == SnsMessageType.NOTIFICATION) {
+      wakeUp(buildType, buildTrigger);
+    }
+    return SnsTriggerMetrics.OUTCOME_ACCEPTED;
+  }
+
+  /**
+   * Journals the notification and leaves storing it to an ingestion worker, the request is answered right away.
+   * The journal is replayed by the worker before the notification is stored, or later if the worker fails or the server stops.
+   */
+  private void enqueueNotification(
           @NotNull final SBuildType buildType,
-          @NotNull final BuildTriggerDescriptor buildTrigger
+          @NotNull final BuildTriggerDescriptor buildTrigger,
+          @NotNull final MetricLabels labels,
+          @NotNull final SnsNotificationDto dto
   ) throws AwsSnsHttpEndpointException {
-    CustomDataStorageWrapper cds = new CustomDataStorageWrapper(getCustomDataStorage(buildType, buildTrigger));
-    HashMap<String, Object> payload = readJson(request);
-
-    if (payload != null && AwsSnsMessageDetailsHelper.isValidSignature(payload, myServerApi)) {
-      if (AwsSnsMessageDetailsHelper.isSubscription(payload)) {
-        handleSubscription(request.getHeader(AwsSnsTriggerConstants.AWS_TOPIC_ARN_HEADER), cds, payload);
-      } else if (AwsSnsMessageDetailsHelper.isUnsubscribe(payload)) {
-        handleUnsubscribe(cds);
-      } else if (AwsSnsMessageDetailsHelper.isNotification(payload)) {
-        handleNotification(buildTrigger, cds, AwsSnsMessageDetailsHelper.convertToNotificationDto(request, payload));
+    CustomDataStorageWrapper cds = myStorageSessions.open(buildType, buildTrigger);
+    if (!acceptNotification(buildType, buildTrigger, labels, cds, dto)) {
+      return;
+    }
+
+    Map<String, String> changes = new HashMap<>();
+    changes.put(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, dto.getUnsubscribeUrl());
+    BuildTriggerService bts = buildTrigger.getBuildTriggerService();
+    try {
+      if (bts instanceof SnsBuildTriggerService) {
+        changes.putAll(((SnsBuildTriggerService) bts).createMessageStore(buildType, buildTrigger, cds).encodeValues(dto));
+      }
+      myFlushFallback.journal(buildType, buildTrigger, changes);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to journal SNS notification " + dto.getMessageId() + " of trigger " + AwsSnsTriggerKeys.of(buildType, buildTrigger), e);
+      throw new AwsSnsIngestionRejectedException("SNS notification can't be saved, try again later",
+                                                 TeamCityProperties.getInteger(AwsSnsTriggerConstants.ASYNC_INGESTION_RETRY_AFTER_PROPERTY,
+                                                                               AwsSnsTriggerConstants.ASYNC_INGESTION_RETRY_AFTER_DEFAULT));
+    }
+
+    SnsNotificationIngestionService.IngestionTask store =
+      storageTask(buildType, buildTrigger, labels, storage -> storeNotification(buildType, buildTrigger, labels, storage, dto));
+    myIngestionService.enqueue(AwsSnsTriggerKeys.of(buildType, buildTrigger), () -> {
+      store.run();
+      wakeUp(buildType, buildTrigger);
+    });
+  }
+
+  @NotNull
+  private SnsNotificationIngestionService.IngestionTask storageTask(
+          @NotNull final SBuildType buildType,
+          @NotNull final BuildTriggerDescriptor buildTrigger,
+          @NotNull final MetricLabels labels,
+          @NotNull final StorageAction action
+  ) {
+    return () -> {
+      long start = System.nanoTime();
+      CustomDataStorageWrapper cds = myStorageSessions.open(buildType, buildTrigger);
+      try {
+        // changes of earlier requests that failed to flush go together with this one
+        cds.startBatch();
+        try {
+          myFlushFallback.replay(buildType, buildTrigger, cds);
+          action.run(cds);
+        } finally {
+          cds.commitBatch();
+        }
+      } finally {
+        myMetrics.recordStage(labels, SnsTriggerMetrics.STAGE_STORE, System.nanoTime() - start);
+        myMetrics.recordFlushRetries(labels, cds.getFlushRetries());
+        myMetrics.recordFlushConflicts(labels, cds.getFlushConflicts());
+        myMetrics.recordFlushFailures(labels, cds.getFlushFailures());
       }
+    };
+  }
+
+  private void run(@NotNull String triggerKey, @NotNull SnsNotificationIngestionService.IngestionTask task) throws AwsSnsHttpEndpointException {
+    try {
+      if (myIngestionService.isEnabled()) {
+        myIngestionService.execute(triggerKey, task);
+      } else {
+        task.run();
+      }
+    } catch (AwsSnsHttpEndpointException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new AwsSnsHttpEndpointException("Can't process SNS request", e);
     }
   }
 
   private void handleSubscription(
           @NotNull String currentTopicArn,
           @NotNull CustomDataStorageWrapper cds,
-          @NotNull final Map<String, Object> payload
+          @NotNull final SnsEnvelope envelope
   ) throws AwsSnsHttpEndpointException {
-    String arn = AwsSnsMessageDetailsHelper.subscribe(payload, myServerApi);
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN, arn);
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN, currentTopicArn);
+    String arn = AwsSnsMessageDetailsHelper.subscribe(envelope, myServerApi);
+    Map<String, String> values = new HashMap<>();
+    values.put(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN, arn);
+    values.put(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN, currentTopicArn);
+    cds.updateValues(values);
   }
 
-  private void handleNotification(
+  /**
+   * Checks the notification before anything is stored and moves its large body to a file.
+   *
+   * @return false if the notification is a redelivery of a registered one
+   */
+  private boolean acceptNotification(
+          @NotNull SBuildType buildType,
           @NotNull BuildTriggerDescriptor buildTrigger,
+          @NotNull MetricLabels labels,
           @NotNull CustomDataStorageWrapper cds,
           @NotNull SnsNotificationDto dto
   ) throws AwsSnsHttpEndpointException {
     String expectedArn = cds.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN);
     String currentArn = dto.getSubscriptionArn();
-    String unsubscribeUrl = dto.getUnsubscribeUrl();
 
     if (expectedArn == null || !expectedArn.equals(currentArn)) {
       throw new AwsSnsHttpEndpointException("Trigger " + buildTrigger.getTriggerName() + " isn't subscribed to topic " + dto.getTopic());
     }
 
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, unsubscribeUrl);
+    // SNS delivers at least once, a redelivery must not trigger one more build
+    String triggerKey = AwsSnsTriggerKeys.of(buildType, buildTrigger);
+    if (myDeduplicator.isDuplicate(triggerKey, dto.getMessageId())) {
+      LOG.debug("SNS message " + dto.getMessageId() + " was already registered by trigger " + triggerKey + ", ignoring the redelivery");
+      myMetrics.recordDuplicate(labels);
+      return false;
+    }
+
+    // a large body is written once to its own file, the storage keeps only the reference
+    myMessageBodyFiles.offload(buildType, buildTrigger, dto);
+    return true;
+  }
 
+  /**
+   * Registers an accepted notification, its journaled values are written already if it was queued.
+   */
+  private void storeNotification(
+          @NotNull SBuildType buildType,
+          @NotNull BuildTriggerDescriptor buildTrigger,
+          @NotNull MetricLabels labels,
+          @NotNull CustomDataStorageWrapper cds,
+          @NotNull SnsNotificationDto dto
+  ) throws AwsSnsHttpEndpointException {
+    String triggerKey = AwsSnsTriggerKeys.of(buildType, buildTrigger);
+    String unsubscribeUrl = dto.getUnsubscribeUrl();
+
+    // a single flush for the message and the unsubscribe URL, the URL is usually unchanged and isn't written at all
     BuildTriggerService bts = buildTrigger.getBuildTriggerService();
+    SnsMessageStore.Eviction eviction = SnsMessageStore.Eviction.NONE;
+    cds.startBatch();
+    try {
+      cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, unsubscribeUrl);
+      if (bts instanceof SnsBuildTriggerService) {
+        eviction = ((SnsBuildTriggerService) bts).registerMessage(buildType, buildTrigger, dto, cds);
+      }
+    } finally {
+      cds.commitBatch();
+    }
+
+    if (eviction.getTotal() > 0) {
+      LOG.info("Trigger " + triggerKey + " evicted " + eviction.getExpired() + " expired and " + eviction.getExcess() +
+               " excess pending SNS messages without a build, check that the trigger is active and its build configuration can run");
+      myMetrics.recordEvicted(labels, eviction.getExpired(), eviction.getExcess());
+    }
+
     if (bts instanceof SnsBuildTriggerService) {
-      SnsBuildTriggerService btService = (SnsBuildTriggerService) bts;
-      btService.registerMessage(dto, cds);
+      myDeduplicator.markSeen(triggerKey, dto.getMessageId());
+      applyBudget(buildType, buildTrigger, labels, eviction.getUsage(), ((SnsBuildTriggerService) bts).createMessageStore(buildType, buildTrigger, cds));
+    }
+  }
+
+  /**
+   * Tracks the size of the trigger's pending messages, drops bodies of its oldest messages if it holds more than its share
+   * of the exceeded server-wide budget. The store is looked at only then, otherwise the usage known from the write is enough.
+   *
+   * @param usage usage of the store after the notification was registered
+   */
+  private void applyBudget(
+          @NotNull SBuildType buildType,
+          @NotNull BuildTriggerDescriptor buildTrigger,
+          @NotNull MetricLabels labels,
+          @NotNull SnsMessageStore.Usage usage,
+          @NotNull SnsMessageStore store
+  ) {
+    if (!myStorageBudget.isEnabled()) {
+      return;
+    }
+
+    String triggerKey = AwsSnsTriggerKeys.of(buildType, buildTrigger);
+    myStorageBudget.update(buildType, buildTrigger, usage);
+    long excess = myStorageBudget.getExcessBytes(triggerKey);
+    if (excess == 0) {
+      return;
+    }
+
+    int dropped;
+    try {
+      dropped = store.dropBodies(usage.getBytes() - excess);
+    } catch (IOException e) {
+      // the message is stored already, the trigger is pushed back by rejecting its next notifications
+      LOG.warnAndDebugDetails("Can't drop bodies of pending SNS messages of trigger " + triggerKey, e);
+      dropped = 0;
+    }
+    myStorageBudget.update(buildType, buildTrigger, store.getUsage());
+    if (dropped > 0) {
+      LOG.info("Pending SNS messages of all triggers exceed the budget, trigger " + triggerKey + " dropped bodies of its " + dropped +
+               " oldest messages, the messages still trigger builds");
+      myMetrics.recordDroppedBodies(labels, dropped);
+    }
+
+    if (myStorageBudget.getExcessBytes(triggerKey) > 0) {
+      LOG.warn("Pending SNS messages of trigger " + triggerKey + " still exceed its share of the server-wide budget, " +
+               "its new notifications are rejected until it consumes them");
+      myStorageBudget.markOverShare(triggerKey);
+    }
+  }
+
+  /**
+   * The trigger doesn't wait for the next polling to see the stored notification.
+   */
+  private void wakeUp(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger) {
+    BuildTriggerService bts = buildTrigger.getBuildTriggerService();
+    if (bts instanceof SnsBuildTriggerService) {
+      ((SnsBuildTriggerService) bts).wakeUp(AwsSnsTriggerKeys.of(buildType, buildTrigger));
+    }
+  }
+
+  private void handleUnsubscribe(@NotNull SBuildType buildType,
+                                 @NotNull BuildTriggerDescriptor buildTrigger,
+                                 @NotNull CustomDataStorageWrapper cds) {
+    // cleanup, flushed once
+    cds.startBatch();
+    try {
+      cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN, null);
+      cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN, null);
+      cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, null);
+
+      BuildTriggerService bts = buildTrigger.getBuildTriggerService();
+      if (bts instanceof SnsBuildTriggerService) {
+        ((SnsBuildTriggerService) bts).createMessageStore(buildType, buildTrigger, cds).clear();
+      } else {
+        cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, null);
+      }
+    } finally {
+      cds.commitBatch();
     }
   }
 
-  private void handleUnsubscribe(@NotNull CustomDataStorageWrapper cds) {
-    // cleanup
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN, null);
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN, null);
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL, null);
-    cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, null);
+  @FunctionalInterface
+  private interface StorageAction {
+    void run(@NotNull CustomDataStorageWrapper cds) throws Exception;
   }
 }
@@ -2,9 +2,11 @@
 
 package jetbrains.buildServer.clouds.amazon.sns.trigger.controllers;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsPayloadTooLargeException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsEnvelopeParser;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import org.apache.commons.codec.Charsets;
@@ -12,36 +14,43 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 public abstract class BaseAwsConnectionController extends BaseController {
 
-  private final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-
   public BaseAwsConnectionController(@NotNull final SBuildServer server) {
     super(server);
   }
 
   protected <T> void writeErrorsAsJson(@NotNull T value, @NotNull HttpServletResponse response) throws IOException {
-      final String json = OBJECT_MAPPER.writeValueAsString(value);
+      writeErrorsAsJson(value, response, HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  protected <T> void writeErrorsAsJson(@NotNull T value, @NotNull HttpServletResponse response, int status) throws IOException {
+      final String json = SnsJson.WRITER.writeValueAsString(value);
       response.setContentType("application/json");
       response.setCharacterEncoding(Charsets.UTF_8.name());
-      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.setStatus(status);
       final PrintWriter writer = response.getWriter();
       writer.write(json);
       writer.flush();
   }
 
-    protected <T> T readJson(@NotNull HttpServletRequest request) throws AwsSnsHttpEndpointException {
-        T requestObject;
-        try (Reader reader = new BufferedReader(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))) {
-            requestObject = OBJECT_MAPPER.readValue(reader, new TypeReference<T>() {
-            });
-        } catch (Exception e) {
-            throw new AwsSnsHttpEndpointException("Can't parse request body", e);
-        }
+  /**
+   * Parses the request body, bodies larger than {@code maxBytes} are rejected without being read completely.
+   */
+  @NotNull
+  protected SnsEnvelope readEnvelope(@NotNull HttpServletRequest request, long maxBytes) throws AwsSnsHttpEndpointException {
+    long contentLength = request.getContentLengthLong();
+    if (contentLength > maxBytes) {
+      throw new AwsSnsPayloadTooLargeException("Request body of " + contentLength + " bytes exceeds " + maxBytes + " bytes");
+    }
 
-        return requestObject;
+    try {
+      return SnsEnvelopeParser.parse(request.getInputStream(), maxBytes);
+    } catch (IOException e) {
+      throw new AwsSnsHttpEndpointException("Can't parse request body", e);
     }
-}
\ No newline at end of file
+  }
+}
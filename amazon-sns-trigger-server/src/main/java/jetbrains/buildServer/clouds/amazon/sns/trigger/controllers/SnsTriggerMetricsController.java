@@ -0,0 +1,49 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.controllers;
+
+import java.io.Writer;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exports {@link SnsTriggerMetrics} in the Prometheus text format to users who can view server settings.
+ */
+public class SnsTriggerMetricsController extends BaseController {
+  public static final String PATH = AwsSnsTriggerConstants.SNS_METRICS_CONTROLLER_URL;
+  private final SnsTriggerMetrics myMetrics;
+
+  public SnsTriggerMetricsController(@NotNull SBuildServer server,
+                                     @NotNull final WebControllerManager webControllerManager,
+                                     @NotNull final SnsTriggerMetrics metrics) {
+    super(server);
+    myMetrics = metrics;
+    webControllerManager.registerController(PATH, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+    SUser user = SessionUser.getUser(request);
+    if (user == null || !user.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Viewing SNS trigger metrics requires the permission to view server settings");
+      return null;
+    }
+
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    Writer writer = response.getWriter();
+    myMetrics.writeTextFormat(writer);
+    return null;
+  }
+}
@@ -0,0 +1,73 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.controllers;
+
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageBudget;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the {@link SnsStorageBudget} as JSON to users who can view server settings: the budget, the total size of pending messages
+ * and the triggers holding the most, {@code ?top=N} of them.
+ */
+public class SnsTriggerStorageController extends BaseController {
+  public static final String PATH = AwsSnsTriggerConstants.SNS_STORAGE_CONTROLLER_URL;
+  private static final int DEFAULT_TOP = 20;
+
+  private final SnsStorageBudget myStorageBudget;
+
+  public SnsTriggerStorageController(@NotNull SBuildServer server,
+                                     @NotNull final WebControllerManager webControllerManager,
+                                     @NotNull final SnsStorageBudget storageBudget) {
+    super(server);
+    myStorageBudget = storageBudget;
+    webControllerManager.registerController(PATH, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+    SUser user = SessionUser.getUser(request);
+    if (user == null || !user.isPermissionGrantedGlobally(Permission.VIEW_SERVER_SETTINGS)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "Viewing SNS trigger storage requires the permission to view server settings");
+      return null;
+    }
+
+    Map<String, Object> view = new LinkedHashMap<>();
+    view.put("budgetBytes", myStorageBudget.getBudgetBytes());
+    view.put("totalBytes", myStorageBudget.getTotalBytes());
+    view.put("shareBytes", myStorageBudget.getShareBytes());
+    view.put("triggers", myStorageBudget.getLargest(parseTop(request.getParameter("top"))));
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    Writer writer = response.getWriter();
+    SnsJson.WRITER.writeValue(writer, view);
+    return null;
+  }
+
+  private static int parseTop(@Nullable String value) {
+    if (value == null) {
+      return DEFAULT_TOP;
+    }
+
+    try {
+      return Math.max(1, Integer.parseInt(value.trim()));
+    } catch (NumberFormatException e) {
+      return DEFAULT_TOP;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.dto;
+
+import java.util.*;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants.*;
+
+/**
+ * Typed SNS HTTP(S) request body.
+ * <p>
+ * Only the fields the plugin uses are kept, in their textual JSON form:
+ * this is exactly what the string to sign is built from.
+ */
+public class SnsEnvelope {
+  /**
+   * Top-level fields kept by the parser, any other field is skipped.
+   */
+  public static final Set<String> KNOWN_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+    MESSAGE_TYPE_KEY,
+    NOTIFICATION_MESSAGE_ID_KEY,
+    NOTIFICATION_TOPIC_ARN_KEY,
+    NOTIFICATION_SUBJECT_KEY,
+    NOTIFICATION_MESSAGE_KEY,
+    NOTIFICATION_TIMESTAMP_KEY,
+    NOTIFICATION_TOKEN_KEY,
+    SUBSCRIBE_URL_KEY,
+    UNSUBSCRIBE_URL_KEY,
+    SIGNING_SIGNATURE_VERSION_KEY,
+    SIGNING_SIGNATURE_KEY,
+    SIGNING_CERTIFICATE_URL_KEY
+  )));
+
+  // a field with the JSON null value is present with the null value, it is still a part of the string to sign
+  private final Map<String, String> myFields;
+  @Nullable
+  private final Map<String, Object> myAttributes;
+  @NotNull
+  private final SnsMessageType myType;
+
+  public SnsEnvelope(@NotNull Map<String, String> fields, @Nullable Map<String, Object> attributes) {
+    myFields = fields;
+    myAttributes = attributes;
+    myType = SnsMessageType.asMessageType(fields.get(MESSAGE_TYPE_KEY));
+  }
+
+  /**
+   * Converts an already decoded JSON body.
+   */
+  @SuppressWarnings("unchecked")
+  @NotNull
+  public static SnsEnvelope fromMap(@NotNull Map<String, ?> payload) {
+    Map<String, String> fields = new HashMap<>();
+    for (String key : KNOWN_FIELDS) {
+      if (payload.containsKey(key)) {
+        Object value = payload.get(key);
+        fields.put(key, value == null ? null : String.valueOf(value));
+      }
+    }
+    return new SnsEnvelope(fields, (Map<String, Object>) payload.get(NOTIFICATION_ATTRIBUTES_KEY));
+  }
+
+  @NotNull
+  public SnsMessageType getType() {
+    return myType;
+  }
+
+  @Nullable
+  public String getMessageId() {
+    return myFields.get(NOTIFICATION_MESSAGE_ID_KEY);
+  }
+
+  @Nullable
+  public String getTopicArn() {
+    return myFields.get(NOTIFICATION_TOPIC_ARN_KEY);
+  }
+
+  @Nullable
+  public String getSubject() {
+    return myFields.get(NOTIFICATION_SUBJECT_KEY);
+  }
+
+  @Nullable
+  public String getMessage() {
+    return myFields.get(NOTIFICATION_MESSAGE_KEY);
+  }
+
+  @Nullable
+  public String getTimestamp() {
+    return myFields.get(NOTIFICATION_TIMESTAMP_KEY);
+  }
+
+  @Nullable
+  public String getToken() {
+    return myFields.get(NOTIFICATION_TOKEN_KEY);
+  }
+
+  @Nullable
+  public String getSubscribeUrl() {
+    return myFields.get(SUBSCRIBE_URL_KEY);
+  }
+
+  @Nullable
+  public String getUnsubscribeUrl() {
+    return myFields.get(UNSUBSCRIBE_URL_KEY);
+  }
+
+  @Nullable
+  public String getSignatureVersion() {
+    return myFields.get(SIGNING_SIGNATURE_VERSION_KEY);
+  }
+
+  @Nullable
+  public String getSignature() {
+    return myFields.get(SIGNING_SIGNATURE_KEY);
+  }
+
+  @Nullable
+  public String getSigningCertUrl() {
+    return myFields.get(SIGNING_CERTIFICATE_URL_KEY);
+  }
+
+  @Nullable
+  public Map<String, Object> getAttributes() {
+    return myAttributes;
+  }
+
+  public boolean hasField(@NotNull String key) {
+    return myFields.containsKey(key);
+  }
+
+  /**
+   * @return textual value of a {@link #KNOWN_FIELDS known field}, null if the field is absent or null
+   */
+  @Nullable
+  public String getField(@NotNull String key) {
+    return myFields.get(key);
+  }
+
+  /**
+   * Builds the canonical string SNS signs for the given message type: "key\nvalue\n" for every present signed key.
+   */
+  @NotNull
+  public String getStringToSign(@NotNull SnsMessageType messageType) {
+    List<String> keys = SnsMessageType.NOTIFICATION.equals(messageType)
+                        ? AwsSnsTriggerConstants.NOTIFICATION_KEYS_LIST
+                        : AwsSnsTriggerConstants.SUBSCRIPTION_CONFIRMATION_KEYS_LIST;
+
+    StringBuilder sb = new StringBuilder();
+    for (String key : keys) {
+      if (hasField(key)) {
+        sb.append(key).append("\n").append(myFields.get(key)).append("\n");
+      }
+    }
+    return sb.toString();
+  }
+}
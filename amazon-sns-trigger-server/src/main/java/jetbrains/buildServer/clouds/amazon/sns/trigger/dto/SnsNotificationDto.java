@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.clouds.amazon.sns.trigger.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import java.util.Objects;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,6 +16,7 @@ public class SnsNotificationDto {
   private String mySubscriptionArn;
   private String mySubject;
   private String myMessage;
+  private String myMessageFile;
   private Instant myTimestamp;
   private Map<String, Object> myAttributes;
   private String myTopic;
@@ -78,6 +80,20 @@ public class SnsNotificationDto {
     myMessage = message;
   }
 
+  /**
+   * @return path of the file with the message body relative to the plugin data directory, if the body is too large to be stored
+   * with the message; the message itself is null then
+   */
+  @Nullable
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public String getMessageFile() {
+    return myMessageFile;
+  }
+
+  public void setMessageFile(@Nullable String messageFile) {
+    myMessageFile = messageFile;
+  }
+
   @NotNull
   public Instant getTimestamp() {
     return myTimestamp;
@@ -119,12 +135,13 @@ public class SnsNotificationDto {
     SnsNotificationDto that = (SnsNotificationDto)o;
     return Objects.equals(myUnsubscribeUrl, that.myUnsubscribeUrl) && Objects.equals(myMessageId, that.myMessageId) &&
            Objects.equals(mySubscriptionArn, that.mySubscriptionArn) && Objects.equals(mySubject, that.mySubject) &&
-           Objects.equals(myMessage, that.myMessage) && Objects.equals(myTimestamp, that.myTimestamp) &&
+           Objects.equals(myMessage, that.myMessage) && Objects.equals(myMessageFile, that.myMessageFile) &&
+           Objects.equals(myTimestamp, that.myTimestamp) &&
            Objects.equals(myAttributes, that.myAttributes) && Objects.equals(myTopic, that.myTopic);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(myUnsubscribeUrl, myMessageId, mySubscriptionArn, mySubject, myMessage, myTimestamp, myAttributes, myTopic);
+    return Objects.hash(myUnsubscribeUrl, myMessageId, mySubscriptionArn, mySubject, myMessage, myMessageFile, myTimestamp, myAttributes, myTopic);
   }
 }
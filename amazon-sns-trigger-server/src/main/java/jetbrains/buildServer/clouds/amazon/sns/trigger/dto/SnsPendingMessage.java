@@ -0,0 +1,50 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.dto;
+
+import java.time.Instant;
+import java.util.Comparator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Entry of the index of pending messages: what is needed to choose the messages for a build without decoding them.
+ */
+public class SnsPendingMessage {
+  public static final Comparator<SnsPendingMessage> BY_TIMESTAMP =
+    Comparator.comparing(SnsPendingMessage::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+  private final String myMessageId;
+  @Nullable
+  private final Instant myTimestamp;
+  private final long myBytes;
+
+  public SnsPendingMessage(@NotNull String messageId, @Nullable Instant timestamp, long bytes) {
+    myMessageId = messageId;
+    myTimestamp = timestamp;
+    myBytes = bytes;
+  }
+
+  @NotNull
+  public String getMessageId() {
+    return myMessageId;
+  }
+
+  /**
+   * @return publication time, null if the message has none
+   */
+  @Nullable
+  public Instant getTimestamp() {
+    return myTimestamp;
+  }
+
+  /**
+   * @return size of the stored message
+   */
+  public long getBytes() {
+    return myBytes;
+  }
+
+  @Override
+  public String toString() {
+    return myMessageId + " published at " + myTimestamp;
+  }
+}
@@ -0,0 +1,23 @@
+
+
+package jetbrains.buildServer.clouds.amazon.sns.trigger.errors;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Signals that a notification was valid but can't be accepted right now.
+ * The endpoint answers with a retryable status, so SNS delivers the message again later.
+ */
+public class AwsSnsIngestionRejectedException extends AwsSnsHttpEndpointException {
+
+  private final int myRetryAfterSeconds;
+
+  public AwsSnsIngestionRejectedException(@NotNull final String message, int retryAfterSeconds) {
+    super(message);
+    myRetryAfterSeconds = retryAfterSeconds;
+  }
+
+  public int getRetryAfterSeconds() {
+    return myRetryAfterSeconds;
+  }
+}
@@ -0,0 +1,13 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.errors;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Signals that a request body exceeds the configured size limit, the rest of the body isn't read.
+ */
+public class AwsSnsPayloadTooLargeException extends AwsSnsHttpEndpointException {
+
+  public AwsSnsPayloadTooLargeException(@NotNull final String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,22 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Counter {
+  private final LongAdder myValue = new LongAdder();
+
+  public void increment() {
+    myValue.increment();
+  }
+
+  public void add(long delta) {
+    if (delta < 0) {
+      throw new IllegalArgumentException("Counters can only grow");
+    }
+    myValue.add(delta);
+  }
+
+  public long getValue() {
+    return myValue.sum();
+  }
+}
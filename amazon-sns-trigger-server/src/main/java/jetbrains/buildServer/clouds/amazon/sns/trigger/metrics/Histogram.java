@@ -0,0 +1,62 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Histogram with fixed bucket upper bounds, the last implicit bucket is {@code +Inf}.
+ */
+public final class Histogram {
+  private final double[] myBounds;
+  private final LongAdder[] myBuckets;
+  private final LongAdder myCount = new LongAdder();
+  private final DoubleAdder mySum = new DoubleAdder();
+
+  Histogram(@NotNull double[] bounds) {
+    myBounds = bounds;
+    myBuckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < myBuckets.length; i++) {
+      myBuckets[i] = new LongAdder();
+    }
+  }
+
+  public void observe(double value) {
+    int bucket = 0;
+    while (bucket < myBounds.length && value > myBounds[bucket]) {
+      bucket++;
+    }
+    myBuckets[bucket].increment();
+    myCount.increment();
+    mySum.add(value);
+  }
+
+  public void observeNanos(long nanos) {
+    observe(nanos / 1e9);
+  }
+
+  @NotNull
+  public double[] getBounds() {
+    return myBounds.clone();
+  }
+
+  /**
+   * @return non-cumulative number of observations per bucket, the last element is the {@code +Inf} bucket
+   */
+  @NotNull
+  public long[] getBucketCounts() {
+    long[] result = new long[myBuckets.length];
+    for (int i = 0; i < myBuckets.length; i++) {
+      result[i] = myBuckets[i].sum();
+    }
+    return result;
+  }
+
+  public long getCount() {
+    return myCount.sum();
+  }
+
+  public double getSum() {
+    return mySum.sum();
+  }
+}
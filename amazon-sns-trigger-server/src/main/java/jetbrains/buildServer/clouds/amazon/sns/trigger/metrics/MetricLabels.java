@@ -0,0 +1,107 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.metrics;
+
+import java.util.Arrays;
+import java.util.Objects;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable ordered set of metric labels.
+ * <p>
+ * The {@code project}, {@code build_type} and {@code trigger} labels identify a trigger and are the only ones
+ * with unbounded cardinality: they are folded into {@link #OVERFLOW_VALUE} once a metric has too many series.
+ */
+public final class MetricLabels {
+  public static final String PROJECT = "project";
+  public static final String BUILD_TYPE = "build_type";
+  public static final String TRIGGER = "trigger";
+  public static final String OVERFLOW_VALUE = "_other";
+  public static final String UNKNOWN_VALUE = "_unknown";
+
+  public static final MetricLabels EMPTY = new MetricLabels(new String[0]);
+  public static final MetricLabels UNKNOWN_TRIGGER = of(PROJECT, UNKNOWN_VALUE, BUILD_TYPE, UNKNOWN_VALUE, TRIGGER, UNKNOWN_VALUE);
+
+  // name, value, name, value...
+  private final String[] myPairs;
+  private final int myHashCode;
+
+  private MetricLabels(@NotNull String[] pairs) {
+    myPairs = pairs;
+    myHashCode = Arrays.hashCode(pairs);
+  }
+
+  @NotNull
+  public static MetricLabels of(@NotNull String... namesAndValues) {
+    if (namesAndValues.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be given as name-value pairs");
+    }
+    for (String it : namesAndValues) {
+      Objects.requireNonNull(it, "Label names and values can't be null");
+    }
+    return new MetricLabels(namesAndValues.clone());
+  }
+
+  @NotNull
+  public static MetricLabels forTrigger(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor trigger) {
+    return of(PROJECT, buildType.getProjectExternalId(), BUILD_TYPE, buildType.getExternalId(), TRIGGER, trigger.getId());
+  }
+
+  @NotNull
+  public MetricLabels with(@NotNull String name, @NotNull String value) {
+    String[] pairs = Arrays.copyOf(myPairs, myPairs.length + 2);
+    pairs[myPairs.length] = name;
+    pairs[myPairs.length + 1] = value;
+    return new MetricLabels(pairs);
+  }
+
+  /**
+   * @return the same labels with all trigger-identifying values replaced by {@link #OVERFLOW_VALUE}
+   */
+  @NotNull
+  public MetricLabels overflow() {
+    String[] pairs = myPairs.clone();
+    for (int i = 0; i < pairs.length; i += 2) {
+      if (PROJECT.equals(pairs[i]) || BUILD_TYPE.equals(pairs[i]) || TRIGGER.equals(pairs[i])) {
+        pairs[i + 1] = OVERFLOW_VALUE;
+      }
+    }
+    return new MetricLabels(pairs);
+  }
+
+  public int size() {
+    return myPairs.length / 2;
+  }
+
+  @NotNull
+  public String getName(int index) {
+    return myPairs[index * 2];
+  }
+
+  @NotNull
+  public String getValue(int index) {
+    return myPairs[index * 2 + 1];
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    return Arrays.equals(myPairs, ((MetricLabels) o).myPairs);
+  }
+
+  @Override
+  public int hashCode() {
+    return myHashCode;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < size(); i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(getName(i)).append('=').append(getValue(i));
+    }
+    return sb.append('}').toString();
+  }
+}
@@ -0,0 +1,194 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.metrics;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Counters and histograms keyed by name and labels, exported in the Prometheus text format.
+ * <p>
+ * Each metric keeps at most {@code maxSeriesPerMetric} label sets, further series are folded into
+ * a series with the trigger-identifying labels replaced (see {@link MetricLabels#overflow()}).
+ */
+public class MetricsRegistry {
+  private static final Logger LOG = Logger.getInstance(MetricsRegistry.class);
+
+  private final int myMaxSeriesPerMetric;
+  private final Map<String, Family<?>> myFamilies = new ConcurrentSkipListMap<>();
+
+  public MetricsRegistry(int maxSeriesPerMetric) {
+    myMaxSeriesPerMetric = Math.max(1, maxSeriesPerMetric);
+  }
+
+  @NotNull
+  public Counter counter(@NotNull String name, @NotNull String help, @NotNull MetricLabels labels) {
+    return this.<Counter>family(name, help, Type.COUNTER).get(labels, Counter::new);
+  }
+
+  @NotNull
+  public Histogram histogram(@NotNull String name, @NotNull String help, @NotNull double[] bounds, @NotNull MetricLabels labels) {
+    return this.<Histogram>family(name, help, Type.HISTOGRAM).get(labels, () -> new Histogram(bounds));
+  }
+
+  @Nullable
+  public Counter findCounter(@NotNull String name, @NotNull MetricLabels labels) {
+    Family<?> family = myFamilies.get(name);
+    return family != null && family.myType == Type.COUNTER ? (Counter) family.mySeries.get(labels) : null;
+  }
+
+  @Nullable
+  public Histogram findHistogram(@NotNull String name, @NotNull MetricLabels labels) {
+    Family<?> family = myFamilies.get(name);
+    return family != null && family.myType == Type.HISTOGRAM ? (Histogram) family.mySeries.get(labels) : null;
+  }
+
+  /**
+   * @return label sets of all series of the metric
+   */
+  @NotNull
+  public Iterable<MetricLabels> getSeries(@NotNull String name) {
+    Family<?> family = myFamilies.get(name);
+    return family == null ? Collections.emptyList() : Collections.unmodifiableSet(family.mySeries.keySet());
+  }
+
+  public void writeTextFormat(@NotNull Writer writer) throws IOException {
+    for (Family<?> family : myFamilies.values()) {
+      family.write(writer);
+    }
+    writer.flush();
+  }
+
+  @SuppressWarnings("unchecked")
+  @NotNull
+  private <T> Family<T> family(@NotNull String name, @NotNull String help, @NotNull Type type) {
+    Family<?> family = myFamilies.computeIfAbsent(name, key -> new Family<>(name, help, type));
+    if (family.myType != type) {
+      throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.myType);
+    }
+    return (Family<T>) family;
+  }
+
+  private enum Type {
+    COUNTER("counter"), HISTOGRAM("histogram");
+
+    private final String myText;
+
+    Type(@NotNull String text) {
+      myText = text;
+    }
+  }
+
+  private final class Family<T> {
+    private final String myName;
+    private final String myHelp;
+    private final Type myType;
+    private final Map<MetricLabels, T> mySeries = new ConcurrentHashMap<>();
+    private volatile boolean myOverflowReported = false;
+
+    private Family(@NotNull String name, @NotNull String help, @NotNull Type type) {
+      myName = name;
+      myHelp = help;
+      myType = type;
+    }
+
+    @NotNull
+    private T get(@NotNull MetricLabels labels, @NotNull Supplier<T> factory) {
+      T series = mySeries.get(labels);
+      if (series != null) {
+        return series;
+      }
+
+      if (mySeries.size() >= myMaxSeriesPerMetric) {
+        if (!myOverflowReported) {
+          myOverflowReported = true;
+          LOG.info("Metric " + myName + " has reached " + myMaxSeriesPerMetric + " series, new triggers are reported as " + MetricLabels.OVERFLOW_VALUE);
+        }
+        labels = labels.overflow();
+      }
+
+      return mySeries.computeIfAbsent(labels, key -> factory.get());
+    }
+
+    private void write(@NotNull Writer writer) throws IOException {
+      if (mySeries.isEmpty()) {
+        return;
+      }
+
+      writer.write("# HELP " + myName + " " + myHelp + "\n");
+      writer.write("# TYPE " + myName + " " + myType.myText + "\n");
+
+      for (Map.Entry<MetricLabels, T> entry : mySeries.entrySet()) {
+        MetricLabels labels = entry.getKey();
+        if (entry.getValue() instanceof Counter) {
+          writeSample(writer, myName, labels, ((Counter) entry.getValue()).getValue());
+        } else {
+          Histogram histogram = (Histogram) entry.getValue();
+          double[] bounds = histogram.getBounds();
+          long[] buckets = histogram.getBucketCounts();
+          long cumulative = 0;
+          for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i];
+            String le = i < bounds.length ? formatDouble(bounds[i]) : "+Inf";
+            writeSample(writer, myName + "_bucket", labels.with("le", le), cumulative);
+          }
+          writer.write(myName + "_sum" + formatLabels(labels) + " " + formatDouble(histogram.getSum()) + "\n");
+          writeSample(writer, myName + "_count", labels, histogram.getCount());
+        }
+      }
+    }
+  }
+
+  private static void writeSample(@NotNull Writer writer, @NotNull String name, @NotNull MetricLabels labels, long value) throws IOException {
+    writer.write(name + formatLabels(labels) + " " + value + "\n");
+  }
+
+  @NotNull
+  private static String formatLabels(@NotNull MetricLabels labels) {
+    if (labels.size() == 0) {
+      return "";
+    }
+
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < labels.size(); i++) {
+      if (i > 0) sb.append(',');
+      sb.append(labels.getName(i)).append("=\"");
+      escape(sb, labels.getValue(i));
+      sb.append('"');
+    }
+    return sb.append('}').toString();
+  }
+
+  private static void escape(@NotNull StringBuilder sb, @NotNull String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+  }
+
+  @NotNull
+  private static String formatDouble(double value) {
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+}
@@ -0,0 +1,160 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsPendingMessage;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Metrics of the SNS endpoint and of the trigger policy.
+ * <p>
+ * Series are labeled with the project, build type and trigger ids, see {@link MetricLabels#forTrigger}.
+ * The values are available through {@link #getRegistry()} and in the Prometheus text format
+ * from {@link jetbrains.buildServer.clouds.amazon.sns.trigger.controllers.SnsTriggerMetricsController}.
+ */
+public class SnsTriggerMetrics {
+  public static final String REQUESTS = "sns_trigger_requests_total";
+  public static final String STAGE_DURATION = "sns_trigger_stage_duration_seconds";
+  public static final String FLUSH_RETRIES = "sns_trigger_storage_flush_retries_total";
+  public static final String FLUSH_CONFLICTS = "sns_trigger_storage_flush_conflicts_total";
+  public static final String FLUSH_FAILURES = "sns_trigger_storage_flush_failures_total";
+  public static final String DUPLICATES = "sns_trigger_duplicate_messages_total";
+  public static final String BUILDS_TRIGGERED = "sns_trigger_builds_triggered_total";
+  public static final String BUILDS_MERGED = "sns_trigger_builds_merged_total";
+  public static final String BUILDS_THROTTLED = "sns_trigger_builds_throttled_total";
+  public static final String MESSAGES_EVICTED = "sns_trigger_messages_evicted_total";
+  public static final String BODIES_DROPPED = "sns_trigger_message_bodies_dropped_total";
+  public static final String MESSAGES_PER_BUILD = "sns_trigger_messages_per_build";
+  public static final String MESSAGE_DELAY = "sns_trigger_message_delay_seconds";
+
+  // stages of the endpoint request handling
+  public static final String STAGE_PARSE = "parse";
+  public static final String STAGE_VERIFY = "verify";
+  public static final String STAGE_CERTIFICATE_FETCH = "certificate_fetch";
+  public static final String STAGE_STORE = "store";
+
+  // outcomes of endpoint requests
+  public static final String OUTCOME_ACCEPTED = "accepted";
+  public static final String OUTCOME_INVALID_SIGNATURE = "invalid_signature";
+  public static final String OUTCOME_IGNORED = "ignored";
+  public static final String OUTCOME_REJECTED = "rejected";
+  public static final String OUTCOME_TOO_LARGE = "too_large";
+  public static final String OUTCOME_FAILED = "failed";
+
+  private static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+  private static final double[] DELAY_BUCKETS = {0.1, 0.5, 1, 5, 10, 30, 60, 120, 300, 600, 1800, 3600};
+  private static final double[] COUNT_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 500, 1000};
+
+  private final MetricsRegistry myRegistry;
+
+  public SnsTriggerMetrics() {
+    this(new MetricsRegistry(TeamCityProperties.getInteger(AwsSnsTriggerConstants.METRICS_MAX_SERIES_PROPERTY,
+                                                           AwsSnsTriggerConstants.METRICS_MAX_SERIES_DEFAULT)));
+  }
+
+  public SnsTriggerMetrics(@NotNull MetricsRegistry registry) {
+    myRegistry = registry;
+  }
+
+  @NotNull
+  public MetricsRegistry getRegistry() {
+    return myRegistry;
+  }
+
+  public void recordRequest(@NotNull MetricLabels trigger, @NotNull String messageType, @NotNull String outcome) {
+    myRegistry.counter(REQUESTS, "SNS endpoint requests by message type and outcome",
+                       trigger.with("type", messageType).with("outcome", outcome)).increment();
+  }
+
+  public void recordStage(@NotNull MetricLabels trigger, @NotNull String stage, long nanos) {
+    myRegistry.histogram(STAGE_DURATION, "Duration of the SNS endpoint request handling stages", LATENCY_BUCKETS,
+                         trigger.with("stage", stage)).observeNanos(nanos);
+  }
+
+  public void recordFlushRetries(@NotNull MetricLabels trigger, int retries) {
+    if (retries > 0) {
+      myRegistry.counter(FLUSH_RETRIES, "Trigger storage flushes retried because of concurrent modifications", trigger).add(retries);
+    }
+  }
+
+  public void recordFlushConflicts(@NotNull MetricLabels trigger, int conflicts) {
+    if (conflicts > 0) {
+      myRegistry.counter(FLUSH_CONFLICTS, "Trigger storage flushes that collided with a concurrent modification at least once", trigger).add(conflicts);
+    }
+  }
+
+  public void recordFlushFailures(@NotNull MetricLabels trigger, int failures) {
+    if (failures > 0) {
+      myRegistry.counter(FLUSH_FAILURES, "Trigger storage flushes that failed after all retries, their changes are replayed later", trigger).add(failures);
+    }
+  }
+
+  public void recordDuplicate(@NotNull MetricLabels trigger) {
+    myRegistry.counter(DUPLICATES, "SNS redeliveries of already registered messages", trigger).increment();
+  }
+
+  /**
+   * Records a build queued for the given messages: the number of messages it consumed
+   * and for every message the time from its publication to SNS till the build was queued.
+   */
+  public void recordTriggeredBuild(@NotNull MetricLabels trigger, @NotNull Collection<SnsPendingMessage> messages) {
+    myRegistry.counter(BUILDS_TRIGGERED, "Builds queued by SNS triggers", trigger).increment();
+    myRegistry.histogram(MESSAGES_PER_BUILD, "Number of SNS messages consumed by a single queued build", COUNT_BUCKETS, trigger)
+              .observe(messages.size());
+
+    recordDelay(trigger, messages);
+  }
+
+  /**
+   * Records messages folded into a build that was already queued by the trigger,
+   * for every message the time from its publication to SNS till it was folded in.
+   */
+  public void recordMergedBuild(@NotNull MetricLabels trigger, @NotNull Collection<SnsPendingMessage> messages) {
+    myRegistry.counter(BUILDS_MERGED, "Batches of SNS messages folded into already queued builds", trigger).increment();
+    recordDelay(trigger, messages);
+  }
+
+  public void recordThrottled(@NotNull MetricLabels trigger) {
+    myRegistry.counter(BUILDS_THROTTLED, "Trigger checks that left ready SNS messages pending because of the build rate limit", trigger).increment();
+  }
+
+  /**
+   * Records pending messages evicted by a new one: expired ones and the oldest ones over the count or the size bound.
+   */
+  public void recordEvicted(@NotNull MetricLabels trigger, int expired, int excess) {
+    if (expired > 0) {
+      myRegistry.counter(MESSAGES_EVICTED, "Pending SNS messages evicted without a build", trigger.with("reason", "expired")).add(expired);
+    }
+    if (excess > 0) {
+      myRegistry.counter(MESSAGES_EVICTED, "Pending SNS messages evicted without a build", trigger.with("reason", "excess")).add(excess);
+    }
+  }
+
+  /**
+   * Records bodies of pending messages dropped because the server-wide budget was exceeded.
+   */
+  public void recordDroppedBodies(@NotNull MetricLabels trigger, int dropped) {
+    if (dropped > 0) {
+      myRegistry.counter(BODIES_DROPPED, "Bodies of pending SNS messages dropped because of the server-wide budget", trigger).add(dropped);
+    }
+  }
+
+  private void recordDelay(@NotNull MetricLabels trigger, @NotNull Collection<SnsPendingMessage> messages) {
+    Histogram delay = myRegistry.histogram(MESSAGE_DELAY, "Time from the SNS message publication till its build was queued", DELAY_BUCKETS, trigger);
+    Instant now = Instant.now();
+    for (SnsPendingMessage message : messages) {
+      if (message.getTimestamp() != null) {
+        delay.observe(Math.max(0, Duration.between(message.getTimestamp(), now).toMillis()) / 1000.0);
+      }
+    }
+  }
+
+  public void writeTextFormat(@NotNull Writer writer) throws IOException {
+    myRegistry.writeTextFormat(writer);
+  }
+}
@@ -2,80 +2,77 @@
 
 package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.intellij.openapi.diagnostic.Logger;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import jetbrains.buildServer.buildTriggers.PolledTriggerContext;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsPendingMessage;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
 import org.jetbrains.annotations.NotNull;
-
-import static jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES;
+import org.jetbrains.annotations.Nullable;
 
 public class AwsSnsBuildTriggerState {
 
   private final CustomDataStorageWrapper myStorage;
-  private final ObjectMapper myObjectMapper;
-  private final Logger myLogger;
+  private final SnsMessageStore myMessages;
 
-  public AwsSnsBuildTriggerState(@NotNull PolledTriggerContext triggerContext,
-                                 @NotNull ObjectMapper objectMapper,
-                                 @NotNull Logger contextLogger) {
-    myStorage = new CustomDataStorageWrapper(triggerContext.getCustomDataStorage());
-    myObjectMapper = objectMapper;
-    myLogger = contextLogger;
+  public AwsSnsBuildTriggerState(@NotNull CustomDataStorageWrapper storage, @Nullable SnsMessageStore.RemovalListener removalListener) {
+    myStorage = storage;
+    myMessages = new SnsMessageStore(storage, removalListener);
   }
 
   public boolean hasNewNotifications() {
-      return myStorage.getValue(TRIGGER_STORE_MESSAGES) != null;
+      return !myMessages.isEmpty();
   }
 
   @NotNull
-  public Map<String, SnsNotificationDto> getRegisteredMessages() {
-    String messagesMapAsString = myStorage.getValue(TRIGGER_STORE_MESSAGES);
-
-    if (messagesMapAsString == null || messagesMapAsString.isEmpty()) {
-      return Collections.emptyMap();
-    }
+  public SnsMessageStore.Usage getUsage() {
+    return myMessages.getUsage();
+  }
 
-    try {
-      return myObjectMapper.readValue(messagesMapAsString, new TypeReference<HashMap<String, SnsNotificationDto>>() {
-      });
-    } catch (JsonProcessingException err) {
-      myLogger.debug("Exception during decerialization of the messages key from storage: " + err.getMessage(), err);
-      myLogger.error("Something went terribly wrong. Try to recreate the trigger.");
-      return Collections.emptyMap();
-    }
+  /**
+   * @return pending messages by MessageId, without their contents
+   */
+  @NotNull
+  public Map<String, SnsPendingMessage> getPendingMessages() {
+    return myMessages.getIndex();
   }
 
-  public void persist(Set<String> registeredMessagesIds) {
-    Map<String, SnsNotificationDto> messages = getRegisteredMessages();
+  /**
+   * @return null if the message isn't pending anymore or can't be decoded
+   */
+  @Nullable
+  public SnsNotificationDto getMessage(@NotNull String messageId) {
+    return myMessages.get(messageId);
+  }
 
-    for (String id : registeredMessagesIds) {
-      messages.remove(id);
+  /**
+   * Removes the messages consumed by a build and stores the state of the build rate limit with the same flush.
+   *
+   * @param buildMessageId the message the build parameters come from, its body file is kept for the build
+   * @param rateLimitState encoded token bucket, null if the rate isn't limited
+   */
+  public void persist(Set<String> registeredMessagesIds, @Nullable String buildMessageId, @Nullable String rateLimitState) {
+    myStorage.startBatch();
+    try {
+      myMessages.remove(registeredMessagesIds, buildMessageId);
+      myStorage.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_RATE_LIMIT, rateLimitState);
+    } finally {
+      myStorage.commitBatch();
     }
+  }
 
-    if (messages.isEmpty()) {
-        myStorage.putValue(TRIGGER_STORE_MESSAGES, null);
-    } else {
-      try {
-          myStorage.putValue(TRIGGER_STORE_MESSAGES, myObjectMapper.writeValueAsString(messages));
-      } catch (JsonProcessingException err) {
-        myLogger.error("Something went terribly wrong. Try to recreate the trigger.", err);
-        throw new IllegalStateException(err);
-      }
-    }
+  @Nullable
+  public String getRateLimitState() {
+    return myStorage.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_RATE_LIMIT);
+  }
 
-    myStorage.flush();
+  public void persistRateLimitState(@Nullable String rateLimitState) {
+    myStorage.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_RATE_LIMIT, rateLimitState);
   }
 
   public void resetMessagesMap() {
-      myStorage.putValue(TRIGGER_STORE_MESSAGES, null);
+      myMessages.clear();
   }
 
 }
@@ -2,38 +2,39 @@
 
 package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.WebLinks;
 import org.jetbrains.annotations.NotNull;
 
 public class AwsSnsTriggeringContext {
-  private final ObjectMapper myObjectMapper = new ObjectMapper()
-          .registerModule(new ParameterNamesModule())
-          .registerModule(new Jdk8Module())
-          .registerModule(new JavaTimeModule());
   private final ProjectManager myProjectManager;
   private final WebLinks myWebLinks;
   private final SnsMessageParametersCustomisationService myParameterCustomisationService;
+  private final SnsTriggerMetrics myMetrics;
+  private final SnsTriggerRuntimeRegistry myRuntimeRegistry;
+  private final SnsTriggerStorageSessions myStorageSessions;
+  private final SnsMessageBodyFiles myMessageBodyFiles;
+  private final SnsStorageBudget myStorageBudget;
 
   public AwsSnsTriggeringContext(
           @NotNull final ProjectManager projectManager,
           @NotNull final WebLinks webLinks,
-          @NotNull final SnsMessageParametersCustomisationService parameterCustomizationService
+          @NotNull final SnsMessageParametersCustomisationService parameterCustomizationService,
+          @NotNull final SnsTriggerMetrics metrics,
+          @NotNull final SnsTriggerRuntimeRegistry runtimeRegistry,
+          @NotNull final SnsTriggerStorageSessions storageSessions,
+          @NotNull final SnsMessageBodyFiles messageBodyFiles,
+          @NotNull final SnsStorageBudget storageBudget
   ) {
-    myObjectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
     myProjectManager = projectManager;
     myWebLinks = webLinks;
     myParameterCustomisationService = parameterCustomizationService;
-  }
-
-  @NotNull
-  public ObjectMapper getObjectMapper() {
-    return myObjectMapper;
+    myMetrics = metrics;
+    myRuntimeRegistry = runtimeRegistry;
+    myStorageSessions = storageSessions;
+    myMessageBodyFiles = messageBodyFiles;
+    myStorageBudget = storageBudget;
   }
 
   public ProjectManager getProjectManager() {
@@ -47,4 +48,29 @@ public class AwsSnsTriggeringContext {
   public SnsMessageParametersCustomisationService getParameterCustomisationService() {
     return myParameterCustomisationService;
   }
-}
\ No newline at end of file
+
+  @NotNull
+  public SnsTriggerMetrics getMetrics() {
+    return myMetrics;
+  }
+
+  @NotNull
+  public SnsTriggerRuntimeRegistry getRuntimeRegistry() {
+    return myRuntimeRegistry;
+  }
+
+  @NotNull
+  public SnsTriggerStorageSessions getStorageSessions() {
+    return myStorageSessions;
+  }
+
+  @NotNull
+  public SnsMessageBodyFiles getMessageBodyFiles() {
+    return myMessageBodyFiles;
+  }
+
+  @NotNull
+  public SnsStorageBudget getStorageBudget() {
+    return myStorageBudget;
+  }
+}
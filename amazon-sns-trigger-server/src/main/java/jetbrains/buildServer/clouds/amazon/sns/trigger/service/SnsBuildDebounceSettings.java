@@ -0,0 +1,201 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsPendingMessage;
+import jetbrains.buildServer.serverSide.InvalidProperty;
+import org.apache.logging.log4j.util.Strings;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants.*;
+
+/**
+ * Per-trigger coalescing of pending SNS messages into builds.
+ * <ul>
+ *   <li>quiet period: a build is queued only when no message was published for this time;</li>
+ *   <li>max wait: a build is queued at the latest this time after the oldest pending message was published,
+ *   so a steady trickle of messages still triggers builds;</li>
+ *   <li>max messages per build: a build never consumes more messages, larger bursts are split into several builds;</li>
+ *   <li>merge into queued build: while a build queued by the trigger still waits in the queue,
+ *   ready messages are folded into it instead of queueing another build.</li>
+ * </ul>
+ * Without settings every poll queues a single build for all pending messages.
+ * Message times are the SNS publication timestamps.
+ */
+public class SnsBuildDebounceSettings {
+  private static final Comparator<Map.Entry<String, SnsPendingMessage>> BY_TIMESTAMP = Map.Entry.comparingByValue(SnsPendingMessage.BY_TIMESTAMP);
+
+  private final Duration myQuietPeriod;
+  private final Duration myMaxWait;
+  private final int myMaxMessagesPerBuild;
+  private final boolean myMergeIntoQueuedBuild;
+
+  public SnsBuildDebounceSettings(@NotNull Duration quietPeriod, @NotNull Duration maxWait, int maxMessagesPerBuild) {
+    this(quietPeriod, maxWait, maxMessagesPerBuild, false);
+  }
+
+  public SnsBuildDebounceSettings(@NotNull Duration quietPeriod, @NotNull Duration maxWait, int maxMessagesPerBuild, boolean mergeIntoQueuedBuild) {
+    myQuietPeriod = quietPeriod;
+    myMaxWait = maxWait;
+    myMaxMessagesPerBuild = maxMessagesPerBuild;
+    myMergeIntoQueuedBuild = mergeIntoQueuedBuild;
+  }
+
+  @NotNull
+  public static SnsBuildDebounceSettings fromProperties(@NotNull Map<String, String> properties) {
+    long quietPeriod = parse(properties.get(TRIGGER_QUIET_PERIOD_PROPERTY_KEY), 0);
+    long maxWait = parse(properties.get(TRIGGER_MAX_WAIT_PROPERTY_KEY), TRIGGER_MAX_WAIT_DEFAULT_SECONDS);
+    long maxMessages = parse(properties.get(TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY), 0);
+
+    return new SnsBuildDebounceSettings(
+      Duration.ofSeconds(Math.max(0, quietPeriod)),
+      Duration.ofSeconds(Math.max(quietPeriod, maxWait)),
+      (int) Math.max(0, Math.min(Integer.MAX_VALUE, maxMessages)),
+      Boolean.parseBoolean(properties.get(TRIGGER_MERGE_INTO_QUEUED_BUILD_PROPERTY_KEY))
+    );
+  }
+
+  public static void validate(@NotNull Map<String, String> properties, @NotNull Collection<InvalidProperty> errors) {
+    Long quietPeriod = validateNonNegative(properties, TRIGGER_QUIET_PERIOD_PROPERTY_KEY, errors);
+    Long maxWait = validateNonNegative(properties, TRIGGER_MAX_WAIT_PROPERTY_KEY, errors);
+    Long maxMessages = validateNonNegative(properties, TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY, errors);
+
+    if (quietPeriod != null && maxWait != null && maxWait < quietPeriod) {
+      errors.add(new InvalidProperty(TRIGGER_MAX_WAIT_PROPERTY_KEY, "must not be less than the quiet period"));
+    }
+
+    if (maxMessages != null && maxMessages == 0) {
+      errors.add(new InvalidProperty(TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY, "must be a positive number"));
+    }
+  }
+
+  public boolean isDebounceEnabled() {
+    return !myQuietPeriod.isZero();
+  }
+
+  @NotNull
+  public Duration getQuietPeriod() {
+    return myQuietPeriod;
+  }
+
+  @NotNull
+  public Duration getMaxWait() {
+    return myMaxWait;
+  }
+
+  /**
+   * @return max number of messages consumed by a single build, 0 if unlimited
+   */
+  public int getMaxMessagesPerBuild() {
+    return myMaxMessagesPerBuild;
+  }
+
+  /**
+   * @return true if ready messages are folded into a build queued by the trigger earlier while it is still in the queue
+   */
+  public boolean isMergeIntoQueuedBuild() {
+    return myMergeIntoQueuedBuild;
+  }
+
+  /**
+   * Splits pending messages into batches, one build per batch. Messages not included in any batch stay pending.
+   *
+   * @return batches ordered by publication time, each batch is ordered by publication time too
+   */
+  @NotNull
+  public List<Map<String, SnsPendingMessage>> selectBatches(@NotNull Map<String, SnsPendingMessage> pending, @NotNull Instant now) {
+    if (pending.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<Map.Entry<String, SnsPendingMessage>> messages = new ArrayList<>(pending.entrySet());
+    messages.sort(BY_TIMESTAMP);
+
+    List<Map<String, SnsPendingMessage>> batches = new ArrayList<>();
+    int batchSize = myMaxMessagesPerBuild > 0 ? myMaxMessagesPerBuild : messages.size();
+    int from = 0;
+
+    // full batches don't wait
+    while (myMaxMessagesPerBuild > 0 && messages.size() - from >= batchSize) {
+      batches.add(toMap(messages.subList(from, from + batchSize)));
+      from += batchSize;
+    }
+
+    List<Map.Entry<String, SnsPendingMessage>> rest = messages.subList(from, messages.size());
+    if (!rest.isEmpty() && isReady(rest, now)) {
+      batches.add(toMap(rest));
+    }
+
+    return batches;
+  }
+
+  @NotNull
+  public String describe() {
+    StringBuilder sb = new StringBuilder();
+    if (isDebounceEnabled()) {
+      sb.append("Quiet period: ").append(myQuietPeriod.getSeconds()).append("s, max wait: ").append(myMaxWait.getSeconds()).append("s");
+    }
+    if (myMaxMessagesPerBuild > 0) {
+      if (sb.length() > 0) sb.append(", ");
+      sb.append("max messages per build: ").append(myMaxMessagesPerBuild);
+    }
+    if (myMergeIntoQueuedBuild) {
+      if (sb.length() > 0) sb.append(", ");
+      sb.append("merge into queued build");
+    }
+    return sb.toString();
+  }
+
+  private boolean isReady(@NotNull List<Map.Entry<String, SnsPendingMessage>> sortedMessages, @NotNull Instant now) {
+    if (!isDebounceEnabled()) {
+      return true;
+    }
+
+    Instant oldest = sortedMessages.get(0).getValue().getTimestamp();
+    Instant newest = sortedMessages.get(sortedMessages.size() - 1).getValue().getTimestamp();
+
+    return newest == null || !now.isBefore(newest.plus(myQuietPeriod)) ||
+           oldest == null || !now.isBefore(oldest.plus(myMaxWait));
+  }
+
+  @NotNull
+  private static Map<String, SnsPendingMessage> toMap(@NotNull List<Map.Entry<String, SnsPendingMessage>> entries) {
+    Map<String, SnsPendingMessage> result = new LinkedHashMap<>();
+    entries.forEach(it -> result.put(it.getKey(), it.getValue()));
+    return result;
+  }
+
+  static long parse(@Nullable String value, long defaultValue) {
+    if (Strings.isBlank(value)) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  @Nullable
+  static Long validateNonNegative(@NotNull Map<String, String> properties, @NotNull String key, @NotNull Collection<InvalidProperty> errors) {
+    String value = properties.get(key);
+    if (Strings.isBlank(value)) {
+      return null;
+    }
+
+    try {
+      long result = Long.parseLong(value.trim());
+      if (result < 0) {
+        errors.add(new InvalidProperty(key, "must not be negative"));
+        return null;
+      }
+      return result;
+    } catch (NumberFormatException e) {
+      errors.add(new InvalidProperty(key, "must be a number"));
+      return null;
+    }
+  }
+}
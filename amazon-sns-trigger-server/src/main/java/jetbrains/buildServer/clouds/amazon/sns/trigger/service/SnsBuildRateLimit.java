@@ -0,0 +1,94 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import java.util.Collection;
+import java.util.Map;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TokenBucket;
+import jetbrains.buildServer.serverSide.InvalidProperty;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants.*;
+
+/**
+ * Per-trigger limit of the rate of queued builds, a token bucket:
+ * <ul>
+ *   <li>max builds per hour: the sustained rate;</li>
+ *   <li>burst: the number of builds that can be queued at once after a quiet time.</li>
+ * </ul>
+ * When the limit is reached, ready messages stay pending and accumulate until the next build is allowed.
+ * Folding messages into an already queued build doesn't count, see {@link SnsBuildDebounceSettings#isMergeIntoQueuedBuild()}.
+ * Without settings the rate is not limited.
+ */
+public class SnsBuildRateLimit {
+  private static final double MS_PER_HOUR = 60 * 60 * 1000.0;
+
+  private final long myBuildsPerHour;
+  private final int myBurst;
+
+  public SnsBuildRateLimit(long buildsPerHour, int burst) {
+    myBuildsPerHour = buildsPerHour;
+    myBurst = burst;
+  }
+
+  @NotNull
+  public static SnsBuildRateLimit fromProperties(@NotNull Map<String, String> properties) {
+    long buildsPerHour = SnsBuildDebounceSettings.parse(properties.get(TRIGGER_MAX_BUILDS_PER_HOUR_PROPERTY_KEY), 0);
+    long burst = SnsBuildDebounceSettings.parse(properties.get(TRIGGER_BUILD_BURST_PROPERTY_KEY), TRIGGER_BUILD_BURST_DEFAULT);
+
+    return new SnsBuildRateLimit(Math.max(0, buildsPerHour), (int) Math.max(1, Math.min(Integer.MAX_VALUE, burst)));
+  }
+
+  public static void validate(@NotNull Map<String, String> properties, @NotNull Collection<InvalidProperty> errors) {
+    Long buildsPerHour = SnsBuildDebounceSettings.validateNonNegative(properties, TRIGGER_MAX_BUILDS_PER_HOUR_PROPERTY_KEY, errors);
+    Long burst = SnsBuildDebounceSettings.validateNonNegative(properties, TRIGGER_BUILD_BURST_PROPERTY_KEY, errors);
+
+    if (buildsPerHour != null && buildsPerHour == 0) {
+      errors.add(new InvalidProperty(TRIGGER_MAX_BUILDS_PER_HOUR_PROPERTY_KEY, "must be a positive number"));
+    }
+
+    if (burst != null && burst == 0) {
+      errors.add(new InvalidProperty(TRIGGER_BUILD_BURST_PROPERTY_KEY, "must be a positive number"));
+    }
+  }
+
+  public boolean isEnabled() {
+    return myBuildsPerHour > 0;
+  }
+
+  public long getBuildsPerHour() {
+    return myBuildsPerHour;
+  }
+
+  public int getBurst() {
+    return myBurst;
+  }
+
+  /**
+   * @param storedState encoded bucket, a full bucket is returned if it is missing
+   */
+  @NotNull
+  public TokenBucket restore(@Nullable String storedState, long now) {
+    TokenBucket bucket = TokenBucket.decode(storedState);
+    return bucket != null ? bucket : TokenBucket.full(myBurst, now);
+  }
+
+  /**
+   * @return false if the limit is reached and no build may be queued now
+   */
+  public boolean tryAcquire(@NotNull TokenBucket bucket, long now) {
+    return bucket.tryAcquire(myBurst, getBuildsPerMs(), now);
+  }
+
+  public long getMillisUntilNextBuild(@NotNull TokenBucket bucket, long now) {
+    return bucket.getMillisUntilAvailable(myBurst, getBuildsPerMs(), now);
+  }
+
+  @NotNull
+  public String describe() {
+    return isEnabled() ? "Max builds per hour: " + myBuildsPerHour + ", burst: " + myBurst : "";
+  }
+
+  private double getBuildsPerMs() {
+    return myBuildsPerHour / MS_PER_HOUR;
+  }
+}
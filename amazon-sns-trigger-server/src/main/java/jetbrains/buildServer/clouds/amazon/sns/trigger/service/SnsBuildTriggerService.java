@@ -2,8 +2,6 @@
 
 package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -17,6 +15,7 @@ import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWr
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
+import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import org.apache.logging.log4j.util.Strings;
 import org.jetbrains.annotations.NotNull;
@@ -29,7 +28,6 @@ public class SnsBuildTriggerService extends BuildTriggerService {
 
   private final String myEditParametersUrl;
   private final AwsSnsTriggeringContext myTriggeringContext;
-  private final ObjectMapper myObjectMapper;
 
   public SnsBuildTriggerService(@NotNull final ExtensionHolder extensionHolder,
                                 @NotNull final PluginDescriptor descriptor,
@@ -39,7 +37,6 @@ public class SnsBuildTriggerService extends BuildTriggerService {
     extensionHolder.registerExtension(BuildTriggerService.class, getClass().getName(), this);
 
     myTriggeringContext = triggeringContext;
-    myObjectMapper = triggeringContext.getObjectMapper();
   }
 
   @NotNull
@@ -70,6 +67,18 @@ public class SnsBuildTriggerService extends BuildTriggerService {
     sb.append(System.lineSeparator());
     sb.append("Amazon SNS Trigger ID: ").append(triggerId);
 
+    String debounce = SnsBuildDebounceSettings.fromProperties(properties).describe();
+    if (!debounce.isEmpty()) {
+      sb.append(System.lineSeparator());
+      sb.append(debounce);
+    }
+
+    String rateLimit = SnsBuildRateLimit.fromProperties(properties).describe();
+    if (!rateLimit.isEmpty()) {
+      sb.append(System.lineSeparator());
+      sb.append(rateLimit);
+    }
+
     return sb.toString();
   }
 
@@ -84,6 +93,9 @@ public class SnsBuildTriggerService extends BuildTriggerService {
         result.add(new InvalidProperty(AwsSnsTriggerConstants.TRIGGER_UUID_PROPERTY_KEY, "is mandatory"));
       }
 
+      SnsBuildDebounceSettings.validate(properties, result);
+      SnsBuildRateLimit.validate(properties, result);
+
       return result;
     };
   }
@@ -118,25 +130,39 @@ public class SnsBuildTriggerService extends BuildTriggerService {
     return true;
   }
 
-  public void registerMessage(@NotNull SnsNotificationDto notificationDto, @NotNull CustomDataStorageWrapper cds) throws AwsSnsHttpEndpointException {
-    String messagesMapAsString = cds.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES);
-
+  /**
+   * Stores the message, the storage is flushed by the write itself or by the commit of the open batch.
+   *
+   * @return pending messages evicted to keep the trigger within its bounds, see {@link SnsPendingMessageLimits}
+   */
+  @NotNull
+  public SnsMessageStore.Eviction registerMessage(@NotNull SBuildType buildType,
+                                                 @NotNull BuildTriggerDescriptor buildTrigger,
+                                                 @NotNull SnsNotificationDto notificationDto,
+                                                 @NotNull CustomDataStorageWrapper cds) throws AwsSnsHttpEndpointException {
     try {
-      HashMap<String, SnsNotificationDto> messagesMap;
-      if (messagesMapAsString == null) {
-        messagesMap = new HashMap<>();
-      } else {
-        messagesMap = myObjectMapper.readValue(messagesMapAsString, new TypeReference<HashMap<String, SnsNotificationDto>>() {
-        });
-      }
-
-      messagesMap.put(notificationDto.getMessageId(), notificationDto);
-      String updatedMessagesMapAsString = myObjectMapper.writeValueAsString(messagesMap);
-      cds.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, updatedMessagesMapAsString);
+      return createMessageStore(buildType, buildTrigger, cds).add(notificationDto);
     } catch (Exception e) {
       throw new AwsSnsHttpEndpointException("Can't register incoming notification", e);
     }
+  }
 
-    cds.flush();
+  /**
+   * Makes the trigger check the registered messages right away if it is active on this node.
+   *
+   * @param triggerKey see {@link jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsTriggerKeys}
+   */
+  public boolean wakeUp(@NotNull String triggerKey) {
+    return myTriggeringContext.getRuntimeRegistry().wakeUp(triggerKey);
+  }
+
+  /**
+   * Opens the pending messages of the trigger, body files of the messages that leave the store are removed.
+   */
+  @NotNull
+  public SnsMessageStore createMessageStore(@NotNull SBuildType buildType,
+                                            @NotNull BuildTriggerDescriptor buildTrigger,
+                                            @NotNull CustomDataStorageWrapper cds) {
+    return new SnsMessageStore(cds, myTriggeringContext.getMessageBodyFiles().removalListener(buildType, buildTrigger));
   }
 }
@@ -3,32 +3,46 @@
 package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
 
 import com.intellij.openapi.diagnostic.Logger;
+import java.time.Instant;
 import java.util.*;
 import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
 import jetbrains.buildServer.buildTriggers.BuildTriggerException;
 import jetbrains.buildServer.buildTriggers.PolledBuildTrigger;
 import jetbrains.buildServer.buildTriggers.PolledTriggerContext;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsPendingMessage;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricLabels;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TokenBucket;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TriggerStorageSession;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
 import jetbrains.buildServer.serverSide.BuildCustomizer;
+import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.serverSide.BuildTypeEx;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
 import jetbrains.buildServer.serverSide.TriggeredByBuilder;
 import jetbrains.buildServer.serverSide.impl.BuildQueueImpl;
-import jetbrains.buildServer.util.TimeIntervalAction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 public class SnsBuildTriggeringPolicy extends PolledBuildTrigger {
   public static final String DEFAULT_BRANCH = "";
-  private static final long TWO_MINUTES_IN_MS = 2 * 60 * 1000L;
+  public static final String TRIGGERED_BY_TYPE = "sns";
+  // kept between deactivation and activation of the trigger
+  private static final List<String> SUBSCRIPTION_KEYS = Arrays.asList(
+    AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN,
+    AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN,
+    AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL
+  );
   private final AwsSnsTriggeringContext myTriggeringContext;
-  private final TimeIntervalAction myTimeIntervalAction;
 
+  /**
+   * Policies are created on demand and don't keep any state between calls,
+   * the state of the trigger is kept in the {@link SnsTriggerRuntimeRegistry}.
+   */
   public SnsBuildTriggeringPolicy(@NotNull AwsSnsTriggeringContext triggeringContext) {
     myTriggeringContext = triggeringContext;
-    myTimeIntervalAction = new TimeIntervalAction(TWO_MINUTES_IN_MS);
   }
 
   private Map<String, String> customizeWithSnsMessageData(@NotNull SnsNotificationDto latestSnsMessage) {
@@ -41,6 +55,13 @@ public class SnsBuildTriggeringPolicy extends PolledBuildTrigger {
       result.put(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_PARAMETER_PLACEHOLDER, latestSnsMessage.getMessage());
     }
 
+    // a large body isn't passed to the build, only its file; the body parameter stays defined for builds that refer to it
+    String bodyFile = myTriggeringContext.getMessageBodyFiles().getAbsolutePath(latestSnsMessage);
+    if (bodyFile != null) {
+      result.put(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_PARAMETER_PLACEHOLDER, "");
+      result.put(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_FILE_PARAMETER_PLACEHOLDER, bodyFile);
+    }
+
     if (latestSnsMessage.getAttributes() != null) {
       latestSnsMessage.getAttributes().forEach((key, value) -> {
         String stringValue = (String) ((Map<String, Object>) value).get("Value");
@@ -61,76 +82,286 @@ public class SnsBuildTriggeringPolicy extends PolledBuildTrigger {
 
   @Override
   public void triggerBuild(@NotNull PolledTriggerContext context) throws BuildTriggerException {
+    myTriggeringContext.getRuntimeRegistry().poll(context, this);
+  }
+
+  /**
+   * Queues builds for the registered messages, called by the trigger polling and by wake-ups from the SNS endpoint.
+   * Never called concurrently for the same trigger.
+   */
+  void evaluate(@NotNull PolledTriggerContext context, @NotNull SnsTriggerRuntimeRegistry.TriggerRuntime runtime) throws BuildTriggerException {
     final Logger contextLogger = context.getLogger();
 
-    AwsSnsBuildTriggerState state = new AwsSnsBuildTriggerState(
-            context,
-            myTriggeringContext.getObjectMapper(),
-            contextLogger
-    );
+    TriggerStorageSession session = runtime.getSession();
+    // the session notices the refresh, decoded messages are still reused if their stored values didn't change
+    boolean refreshed = runtime.refreshStorageIfDue(context);
+
+    // the version is read before the storage: a message stored concurrently changes it and is seen by the next evaluation
+    long version = session.getVersion();
+    if (session.isIdle(version)) {
+      runtime.idleEvaluation();
+      contextLogger.debug("No new SNS messages registered");
+      return;
+    }
 
-    // here it is safe to use context.getCustomDataStorage() without wrapper
-    // because we are not going to put any data
-    myTimeIntervalAction.executeCustomAction(context.getCustomDataStorage()::refresh);
+    AwsSnsBuildTriggerState state = new AwsSnsBuildTriggerState(session.open(context.getCustomDataStorage()), removalListener(context));
 
     if (!state.hasNewNotifications()) {
+      myTriggeringContext.getStorageBudget().update(context.getBuildType(), context.getTriggerDescriptor(), SnsMessageStore.Usage.EMPTY);
+      session.markIdle(version);
+      if (refreshed) {
+        runtime.storageIdle();
+      }
       contextLogger.debug("No new SNS messages registered");
       return;
     }
+    runtime.storageActive();
+
+    try {
+      queueBuilds(context, runtime, state);
+    } finally {
+      // consumed messages free the server-wide budget, a trigger rejected for its share accepts notifications again
+      SnsStorageBudget budget = myTriggeringContext.getStorageBudget();
+      if (budget.isEnabled()) {
+        budget.update(context.getBuildType(), context.getTriggerDescriptor(), state.getUsage());
+      }
+    }
+  }
+
+  private void queueBuilds(@NotNull PolledTriggerContext context,
+                           @NotNull SnsTriggerRuntimeRegistry.TriggerRuntime runtime,
+                           @NotNull AwsSnsBuildTriggerState state) {
+    final Logger contextLogger = context.getLogger();
+    // messages are chosen by their index, only the latest message of a batch is decoded for the build parameters
+    Map<String, SnsPendingMessage> pendingMessages = state.getPendingMessages();
+    Map<String, String> properties = context.getTriggerDescriptor().getProperties();
+    SnsBuildDebounceSettings debounce = SnsBuildDebounceSettings.fromProperties(properties);
+    List<Map<String, SnsPendingMessage>> batches = debounce.selectBatches(pendingMessages, Instant.now());
+
+    if (batches.isEmpty()) {
+      contextLogger.debug("Waiting for more SNS messages: " + pendingMessages.size() + " pending, " + debounce.describe());
+      return;
+    }
+
+    SnsBuildRateLimit rateLimit = SnsBuildRateLimit.fromProperties(properties);
+    TokenBucket bucket = getTokenBucket(runtime, rateLimit, state);
+    SQueuedBuild queuedBuild = debounce.isMergeIntoQueuedBuild() ? findQueuedBuild(context) : null;
+    for (Map<String, SnsPendingMessage> batch : batches) {
+      SnsNotificationDto latestSnsMessage = loadLatest(context, state, batch);
+      if (queuedBuild == null || !mergeIntoQueuedBuild(context, queuedBuild, batch, latestSnsMessage)) {
+        if (bucket != null && !tryAcquireBuild(context, rateLimit, bucket, pendingMessages.size())) {
+          // the state is written only when the bucket becomes exhausted, it doesn't change while the limit holds
+          state.persistRateLimitState(bucket.encode());
+          return;
+        }
+
+        SQueuedBuild queued = queueBuild(context, batch, latestSnsMessage);
+        queuedBuild = debounce.isMergeIntoQueuedBuild() ? queued : null;
+      }
+      state.persist(batch.keySet(), latestSnsMessage.getMessageId(), bucket == null ? null : bucket.encode());
+    }
+  }
+
+  /**
+   * @return the token bucket kept in the runtime, it is restored from the trigger storage once;
+   * null if the rate isn't limited, the stored bucket is removed then
+   */
+  @Nullable
+  private TokenBucket getTokenBucket(@NotNull SnsTriggerRuntimeRegistry.TriggerRuntime runtime,
+                                     @NotNull SnsBuildRateLimit rateLimit,
+                                     @NotNull AwsSnsBuildTriggerState state) {
+    if (!rateLimit.isEnabled()) {
+      runtime.setTokenBucket(null);
+      // a limit enabled again later starts with a full bucket
+      if (state.getRateLimitState() != null) {
+        state.persistRateLimitState(null);
+      }
+      return null;
+    }
 
-    Map<String, SnsNotificationDto> registeredMessages = state.getRegisteredMessages();
-    SnsNotificationDto latestSnsMessage = getLatest(registeredMessages);
-    Set<String> registeredMessagesIds = registeredMessages.keySet();
+    TokenBucket bucket = runtime.getTokenBucket();
+    if (bucket == null) {
+      bucket = rateLimit.restore(state.getRateLimitState(), System.currentTimeMillis());
+      runtime.setTokenBucket(bucket);
+    }
+    return bucket;
+  }
+
+  private boolean tryAcquireBuild(@NotNull PolledTriggerContext context,
+                                  @NotNull SnsBuildRateLimit rateLimit,
+                                  @NotNull TokenBucket bucket,
+                                  int pendingMessages) {
+    boolean wasExhausted = bucket.isExhausted();
+    long now = System.currentTimeMillis();
+    if (rateLimit.tryAcquire(bucket, now)) {
+      if (wasExhausted) {
+        context.getLogger().info("Build rate limit of the Amazon SNS trigger is not reached anymore, queueing builds again");
+      }
+      return true;
+    }
 
+    String message = "Build rate limit of the Amazon SNS trigger is reached (" + rateLimit.describe() + "), " + pendingMessages +
+                     " SNS messages stay pending, the next build is allowed in " + (rateLimit.getMillisUntilNextBuild(bucket, now) / 1000 + 1) + "s";
+    if (wasExhausted) {
+      context.getLogger().debug(message);
+    } else {
+      context.getLogger().info(message);
+    }
+    myTriggeringContext.getMetrics().recordThrottled(MetricLabels.forTrigger(context.getBuildType(), context.getTriggerDescriptor()));
+    return false;
+  }
+
+  @Nullable
+  private SQueuedBuild queueBuild(@NotNull PolledTriggerContext context,
+                                  @NotNull Map<String, SnsPendingMessage> messages,
+                                  @NotNull SnsNotificationDto latestSnsMessage) {
     BuildPromotionEx buildPromotion = createBuildPromotion(context, latestSnsMessage);
 
     TriggeredByBuilder builder = new TriggeredByBuilder();
-    builder.addParameter(TriggeredByBuilder.TYPE_PARAM_NAME, "sns");
+    builder.addParameter(TriggeredByBuilder.TYPE_PARAM_NAME, TRIGGERED_BY_TYPE);
     builder.addParameter(TriggeredByBuilder.TRIGGER_ID_PARAM_NAME, context.getTriggerDescriptor().getId());
     builder.addParameter(BuildQueueImpl.TRIGGERED_BY_QUEUE_OPTIMIZATION_ENABLED_PARAM, "false");
 
-    ((BuildTypeEx) context.getBuildType()).addToQueue(buildPromotion, builder.toString());
+    SQueuedBuild queuedBuild = ((BuildTypeEx) context.getBuildType()).addToQueue(buildPromotion, builder.toString());
+    myTriggeringContext.getMetrics().recordTriggeredBuild(
+            MetricLabels.forTrigger(context.getBuildType(), context.getTriggerDescriptor()),
+            messages.values()
+    );
+    return queuedBuild;
+  }
+
+  /**
+   * @return the latest build queued by this trigger that is still waiting in the queue
+   */
+  @Nullable
+  private SQueuedBuild findQueuedBuild(@NotNull PolledTriggerContext context) {
+    String triggerId = context.getTriggerDescriptor().getId();
+    SQueuedBuild result = null;
+    for (SQueuedBuild queuedBuild : context.getBuildType().getQueuedBuilds(null)) {
+      Map<String, String> triggeredBy = queuedBuild.getTriggeredBy().getParameters();
+      if (TRIGGERED_BY_TYPE.equals(triggeredBy.get(TriggeredByBuilder.TYPE_PARAM_NAME)) &&
+          triggerId.equals(triggeredBy.get(TriggeredByBuilder.TRIGGER_ID_PARAM_NAME))) {
+        result = queuedBuild;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Replaces the SNS parameters of a queued build with the ones of the latest message of the batch,
+   * other custom parameters of the build are kept.
+   *
+   * @return false if the build has left the queue, the batch needs a build of its own then
+   */
+  private boolean mergeIntoQueuedBuild(@NotNull PolledTriggerContext context,
+                                       @NotNull SQueuedBuild queuedBuild,
+                                       @NotNull Map<String, SnsPendingMessage> messages,
+                                       @NotNull SnsNotificationDto latestSnsMessage) {
+    BuildPromotion promotion = queuedBuild.getBuildPromotion();
+    if (!(promotion instanceof BuildPromotionEx) || promotion.getQueuedBuild() == null) {
+      return false;
+    }
+
+    Map<String, String> parameters = new HashMap<>(promotion.getCustomParameters());
+    parameters.keySet().removeIf(SnsBuildTriggeringPolicy::isSnsMessageParameter);
+    parameters.putAll(customizeWithSnsMessageData(latestSnsMessage));
+    ((BuildPromotionEx) promotion).setCustomParameters(parameters);
+    ((BuildPromotionEx) promotion).persist();
+
+    // the build could start before its parameters were replaced, a build of its own doesn't lose the messages
+    if (promotion.getQueuedBuild() == null) {
+      return false;
+    }
+
+    context.getLogger().debug("Merged " + messages.size() + " SNS messages into the queued build " + queuedBuild.getItemId());
+    myTriggeringContext.getMetrics().recordMergedBuild(
+            MetricLabels.forTrigger(context.getBuildType(), context.getTriggerDescriptor()),
+            messages.values()
+    );
+    return true;
+  }
+
+  private static boolean isSnsMessageParameter(@NotNull String name) {
+    return name.equals(AwsSnsTriggerConstants.SNS_MESSAGE_SUBJECT_PARAMETER_PLACEHOLDER) ||
+           name.equals(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_PARAMETER_PLACEHOLDER) ||
+           name.equals(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_FILE_PARAMETER_PLACEHOLDER) ||
+           name.startsWith(AwsSnsTriggerConstants.SNS_MESSAGE_ATTRIBUTES_PARAMETER_PLACEHOLDER);
+  }
 
-    state.persist(registeredMessagesIds);
+  @NotNull
+  private SnsMessageStore.RemovalListener removalListener(@NotNull PolledTriggerContext context) {
+    return myTriggeringContext.getMessageBodyFiles().removalListener(context.getBuildType(), context.getTriggerDescriptor());
   }
 
-  private SnsNotificationDto getLatest(Map<String, SnsNotificationDto> registeredMessages) {
-    return registeredMessages.values().stream().max(Comparator.comparing(SnsNotificationDto::getTimestamp))
-            .orElseThrow(() -> new IllegalStateException("Comparator returned null for list of messages. This should never happen"));
+  /**
+   * Decodes the latest message of the batch, the build parameters come from it.
+   * If it can't be decoded, the latest one that can is used; the build is queued without SNS parameters if none can.
+   */
+  @NotNull
+  private SnsNotificationDto loadLatest(@NotNull PolledTriggerContext context,
+                                        @NotNull AwsSnsBuildTriggerState state,
+                                        @NotNull Map<String, SnsPendingMessage> messages) {
+    List<SnsPendingMessage> latestFirst = new ArrayList<>(messages.values());
+    latestFirst.sort(SnsPendingMessage.BY_TIMESTAMP.reversed());
+    for (SnsPendingMessage pending : latestFirst) {
+      SnsNotificationDto message = state.getMessage(pending.getMessageId());
+      if (message != null) {
+        return message;
+      }
+    }
+
+    context.getLogger().warn("None of " + messages.size() + " pending SNS messages can be read, the build gets no SNS message parameters");
+    return new SnsNotificationDto();
   }
 
   @Override
   public void triggerActivated(@NotNull PolledTriggerContext context) throws BuildTriggerException {
     final Logger contextLogger = context.getLogger();
     contextLogger.info("Initializing the Amazon SNS trigger state");
-    CustomDataStorageWrapper cds = new CustomDataStorageWrapper(context.getCustomDataStorage());
+    CustomDataStorageWrapper cds = myTriggeringContext.getStorageSessions().open(context);
     CustomDataStorageWrapper tempStorageWithPossibleSubscription = getInBetweenActivationStorage(context);
 
-    if (tempStorageWithPossibleSubscription.getValues() != null) {
-      cds.putValues(tempStorageWithPossibleSubscription.getValues());
+    Map<String, String> subscription = getSubscriptionValues(tempStorageWithPossibleSubscription.getValues());
+    if (!subscription.isEmpty()) {
+      cds.updateValues(subscription);
     }
 
-    AwsSnsBuildTriggerState state = new AwsSnsBuildTriggerState(
-            context,
-            myTriggeringContext.getObjectMapper(),
-            contextLogger
-    );
+    AwsSnsBuildTriggerState state = new AwsSnsBuildTriggerState(cds, removalListener(context));
     state.resetMessagesMap();
-    myTimeIntervalAction.resetLastActionTime();
+    myTriggeringContext.getRuntimeRegistry().attach(context, this);
   }
 
   @Override
   public void triggerDeactivated(@NotNull PolledTriggerContext context) throws BuildTriggerException {
+    myTriggeringContext.getRuntimeRegistry().detach(context);
+    myTriggeringContext.getStorageBudget().update(context.getBuildType(), context.getTriggerDescriptor(), SnsMessageStore.Usage.EMPTY);
+
     // cds will be destroyed with deactivation process
     CustomDataStorageWrapper cds = new CustomDataStorageWrapper(context.getCustomDataStorage());
     CustomDataStorageWrapper storage = getInBetweenActivationStorage(context);
 
-    // we need to store our subscription data for possible future activation
+    // we need to store our subscription data for possible future activation, pending messages are dropped
     if (cds.getValues() != null) {
-      storage.putValues(cds.getValues());
+      storage.putValues(getSubscriptionValues(cds.getValues()));
     }
   }
 
+  @NotNull
+  private static Map<String, String> getSubscriptionValues(@Nullable Map<String, String> values) {
+    if (values == null) {
+      return Collections.emptyMap();
+    }
+
+    Map<String, String> result = new HashMap<>();
+    for (String key : SUBSCRIPTION_KEYS) {
+      String value = values.get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+
   @NotNull
   private CustomDataStorageWrapper getInBetweenActivationStorage(@NotNull PolledTriggerContext context) {
     BuildTriggerDescriptor trd = context.getTriggerDescriptor();
@@ -0,0 +1,182 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps large SNS message bodies out of the trigger storage.
+ * <p>
+ * A body larger than the threshold is written once to a file of the build type in the plugin data directory,
+ * the stored message keeps only the path of the file relative to the directory, see {@link SnsNotificationDto#getMessageFile()}.
+ * Builds get the absolute path of the file instead of the body.
+ * <p>
+ * The file of a message is removed when the message leaves the trigger storage without a build, see {@link SnsMessageStore.RemovalListener}.
+ * The file of the message a build gets its parameters from is kept for the build for the retention time after it was written,
+ * expired files are removed on server startup and periodically.
+ */
+public class SnsMessageBodyFiles {
+  private static final Logger LOG = Logger.getInstance(SnsMessageBodyFiles.class);
+  private static final String DIRECTORY = "amazon-sns-trigger/message-bodies";
+  private static final String FILE_EXTENSION = ".txt";
+
+  private final File myRoot;
+  private final File myDirectory;
+  private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Amazon SNS Trigger message bodies cleanup");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public SnsMessageBodyFiles(@NotNull final ServerPaths serverPaths,
+                             @NotNull final EventDispatcher<BuildServerListener> serverEvents) {
+    myRoot = serverPaths.getPluginDataDirectory();
+    myDirectory = new File(myRoot, DIRECTORY);
+
+    serverEvents.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        long interval = Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.MESSAGE_BODY_FILE_CLEANUP_INTERVAL_MINUTES_PROPERTY,
+                                                                  AwsSnsTriggerConstants.MESSAGE_BODY_FILE_CLEANUP_INTERVAL_MINUTES_DEFAULT));
+        myExecutor.scheduleWithFixedDelay(SnsMessageBodyFiles.this::removeExpiredFiles, 0, interval, TimeUnit.MINUTES);
+      }
+
+      @Override
+      public void serverShutdown() {
+        myExecutor.shutdownNow();
+      }
+    });
+  }
+
+  /**
+   * Moves the body of the message to a file if it is larger than the threshold.
+   * The message is left as is if the file can't be written.
+   */
+  public void offload(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger, @NotNull SnsNotificationDto message) {
+    String body = message.getMessage();
+    long threshold = TeamCityProperties.getLong(AwsSnsTriggerConstants.MESSAGE_BODY_FILE_THRESHOLD_PROPERTY,
+                                                AwsSnsTriggerConstants.MESSAGE_BODY_FILE_THRESHOLD_DEFAULT);
+    // a char is at least one UTF-8 byte, short bodies are not encoded at all
+    if (body == null || threshold <= 0 || body.length() <= threshold) {
+      return;
+    }
+
+    byte[] content = body.getBytes(StandardCharsets.UTF_8);
+    if (content.length <= threshold) {
+      return;
+    }
+
+    String relativePath = relativePath(buildType.getInternalId(), buildTrigger.getId(), Objects.requireNonNull(message.getMessageId()));
+    File file = new File(myRoot, relativePath);
+    try {
+      write(file, content);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to write the body of SNS message " + message.getMessageId() + " to " + file +
+                              ", the body is stored with the message", e);
+      return;
+    }
+
+    message.setMessage(null);
+    message.setMessageFile(relativePath);
+  }
+
+  /**
+   * @return absolute path of the file with the body of the message, null if the body is stored with the message
+   */
+  @Nullable
+  public String getAbsolutePath(@NotNull SnsNotificationDto message) {
+    String relativePath = message.getMessageFile();
+    return relativePath == null ? null : new File(myRoot, relativePath).getAbsolutePath();
+  }
+
+  /**
+   * @return listener removing the files of the messages that leave the store of the trigger
+   */
+  @NotNull
+  public SnsMessageStore.RemovalListener removalListener(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger) {
+    final String buildTypeId = buildType.getInternalId();
+    final String triggerId = buildTrigger.getId();
+    return messageIds -> remove(buildTypeId, triggerId, messageIds);
+  }
+
+  void remove(@NotNull String buildTypeId, @NotNull String triggerId, @NotNull Collection<String> messageIds) {
+    // most messages have no file, the directory of the trigger exists only if some message had one
+    File triggerDirectory = new File(myDirectory, sanitize(buildTypeId) + "/" + sanitize(triggerId));
+    if (!triggerDirectory.isDirectory()) {
+      return;
+    }
+
+    for (String messageId : messageIds) {
+      File file = new File(myRoot, relativePath(buildTypeId, triggerId, messageId));
+      try {
+        Files.deleteIfExists(file.toPath());
+      } catch (IOException e) {
+        LOG.debug("Failed to remove the body of SNS message " + messageId + ", it is removed after the retention time", e);
+      }
+    }
+  }
+
+  @NotNull
+  private static String relativePath(@NotNull String buildTypeId, @NotNull String triggerId, @NotNull String messageId) {
+    return DIRECTORY + "/" + sanitize(buildTypeId) + "/" + sanitize(triggerId) + "/" + sanitize(messageId) + FILE_EXTENSION;
+  }
+
+  private static void write(@NotNull File file, @NotNull byte[] content) throws IOException {
+    Files.createDirectories(file.getParentFile().toPath());
+    File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+    Files.write(temp.toPath(), content);
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  void removeExpiredFiles() {
+    if (!myDirectory.isDirectory()) {
+      return;
+    }
+
+    long retention = TimeUnit.HOURS.toMillis(TeamCityProperties.getLong(AwsSnsTriggerConstants.MESSAGE_BODY_FILE_RETENTION_HOURS_PROPERTY,
+                                                                        AwsSnsTriggerConstants.MESSAGE_BODY_FILE_RETENTION_HOURS_DEFAULT));
+    long threshold = System.currentTimeMillis() - retention;
+    try (Stream<Path> paths = Files.walk(myDirectory.toPath())) {
+      paths.map(Path::toFile)
+           .filter(it -> it.isFile() && it.lastModified() < threshold)
+           .forEach(it -> {
+             if (!it.delete()) {
+               LOG.debug("Failed to remove expired SNS message body " + it);
+             }
+           });
+    } catch (IOException e) {
+      LOG.debug("Failed to remove expired SNS message bodies from " + myDirectory, e);
+    }
+  }
+
+  @NotNull
+  private static String sanitize(@NotNull String name) {
+    return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+  }
+}
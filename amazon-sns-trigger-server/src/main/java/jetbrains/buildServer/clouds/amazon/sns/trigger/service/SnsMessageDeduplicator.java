@@ -0,0 +1,214 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.MessageIdWindow;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Drops SNS redeliveries of messages that were already registered, even if their builds were queued since then.
+ * <p>
+ * Every trigger has a {@link MessageIdWindow} of the MessageIds seen during the deduplication window.
+ * Windows are loaded on the first notification of the trigger and are written to the plugin data directory
+ * at most every {@value #PERSIST_INTERVAL_MS} ms and on server shutdown, so they survive restarts.
+ */
+public class SnsMessageDeduplicator {
+  private static final Logger LOG = Logger.getInstance(SnsMessageDeduplicator.class);
+  private static final String DIRECTORY = "amazon-sns-trigger/dedup";
+  private static final String FILE_EXTENSION = ".bin";
+  private static final long PERSIST_INTERVAL_MS = 30 * 1000L;
+  private static final int GENERATION_CAPACITY = 16 * 1024;
+  private static final int RECENT_CAPACITY = 4 * 1024;
+  private static final double FALSE_POSITIVE_RATE = 1e-7;
+
+  private final File myDirectory;
+  private final Map<String, TriggerWindow> myWindows = new ConcurrentHashMap<>();
+
+  public SnsMessageDeduplicator(@NotNull final ServerPaths serverPaths,
+                                @NotNull final EventDispatcher<BuildServerListener> serverEvents) {
+    myDirectory = new File(serverPaths.getPluginDataDirectory(), DIRECTORY);
+
+    serverEvents.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        removeExpiredFiles();
+      }
+
+      @Override
+      public void serverShutdown() {
+        persistAll();
+      }
+    });
+  }
+
+  public boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(AwsSnsTriggerConstants.DEDUP_ENABLED_PROPERTY);
+  }
+
+  /**
+   * @return true if the message was registered for the trigger during the deduplication window
+   */
+  public boolean isDuplicate(@NotNull String triggerKey, @Nullable String messageId) {
+    if (messageId == null || !isEnabled()) {
+      return false;
+    }
+
+    TriggerWindow window = getWindow(triggerKey);
+    synchronized (window) {
+      return window.myIds.mightContain(messageId, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Remembers a registered message, should be called once the message is stored.
+   */
+  public void markSeen(@NotNull String triggerKey, @Nullable String messageId) {
+    if (messageId == null || !isEnabled()) {
+      return;
+    }
+
+    TriggerWindow window = getWindow(triggerKey);
+    long now = System.currentTimeMillis();
+    boolean persist;
+    synchronized (window) {
+      window.myIds.add(messageId, now);
+      window.myDirty = true;
+      persist = now - window.myPersistedAt >= PERSIST_INTERVAL_MS;
+    }
+
+    if (persist) {
+      persist(triggerKey, window);
+    }
+  }
+
+  @NotNull
+  private TriggerWindow getWindow(@NotNull String triggerKey) {
+    return myWindows.computeIfAbsent(triggerKey, this::load);
+  }
+
+  @NotNull
+  private TriggerWindow load(@NotNull String triggerKey) {
+    TriggerWindow window = new TriggerWindow(createWindow());
+    File file = fileOf(triggerKey);
+    if (!file.isFile()) {
+      return window;
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      window.myIds.readFrom(in);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to read the SNS deduplication window of trigger " + triggerKey + " from " + file + ", starting with an empty one", e);
+      window = new TriggerWindow(createWindow());
+    }
+    return window;
+  }
+
+  private void persist(@NotNull String triggerKey, @NotNull TriggerWindow window) {
+    if (!window.myPersisting.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      byte[] content;
+      boolean empty;
+      synchronized (window) {
+        if (!window.myDirty) {
+          return;
+        }
+        long now = System.currentTimeMillis();
+        empty = window.myIds.isEmpty(now);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+          window.myIds.writeTo(out);
+        }
+        content = bytes.toByteArray();
+        window.myDirty = false;
+        window.myPersistedAt = now;
+      }
+
+      File file = fileOf(triggerKey);
+      if (empty) {
+        Files.deleteIfExists(file.toPath());
+        return;
+      }
+
+      Files.createDirectories(myDirectory.toPath());
+      File temp = new File(myDirectory, file.getName() + ".tmp");
+      Files.write(temp.toPath(), content);
+      try {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to save the SNS deduplication window of trigger " + triggerKey, e);
+      synchronized (window) {
+        window.myDirty = true;
+      }
+    } finally {
+      window.myPersisting.set(false);
+    }
+  }
+
+  private void persistAll() {
+    myWindows.forEach(this::persist);
+  }
+
+  /**
+   * Windows of removed triggers are never loaded again, their files are removed once the window passes.
+   */
+  private void removeExpiredFiles() {
+    File[] files = myDirectory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+    if (files == null) {
+      return;
+    }
+
+    long threshold = System.currentTimeMillis() - getWindowMs();
+    for (File file : files) {
+      if (file.lastModified() < threshold && !file.delete()) {
+        LOG.debug("Failed to remove expired SNS deduplication window " + file);
+      }
+    }
+  }
+
+  @NotNull
+  private File fileOf(@NotNull String triggerKey) {
+    return new File(myDirectory, triggerKey.replaceAll("[^A-Za-z0-9_.-]", "_") + FILE_EXTENSION);
+  }
+
+  @NotNull
+  private static MessageIdWindow createWindow() {
+    int maxMessages = TeamCityProperties.getInteger(AwsSnsTriggerConstants.DEDUP_MAX_MESSAGES_PROPERTY,
+                                                    AwsSnsTriggerConstants.DEDUP_MAX_MESSAGES_DEFAULT);
+    return new MessageIdWindow(getWindowMs(), maxMessages, GENERATION_CAPACITY, RECENT_CAPACITY, FALSE_POSITIVE_RATE);
+  }
+
+  private static long getWindowMs() {
+    return TeamCityProperties.getLong(AwsSnsTriggerConstants.DEDUP_WINDOW_SECONDS_PROPERTY,
+                                      AwsSnsTriggerConstants.DEDUP_WINDOW_SECONDS_DEFAULT) * 1000L;
+  }
+
+  private static class TriggerWindow {
+    private final MessageIdWindow myIds;
+    private final AtomicBoolean myPersisting = new AtomicBoolean(false);
+    private boolean myDirty = false;
+    private long myPersistedAt = System.currentTimeMillis();
+
+    private TriggerWindow(@NotNull MessageIdWindow ids) {
+      myIds = ids;
+    }
+  }
+}
@@ -39,6 +39,13 @@ public class SnsMessageParametersCustomisationService implements BuildParameters
                       AwsSnsTriggerConstants.SNS_MESSAGE_BODY_PARAMETER_PLACEHOLDER));
     }
 
+    // only builds of messages with large bodies have the file
+    if (customParameters.containsKey(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_FILE_PARAMETER_PLACEHOLDER)) {
+      result.put(AwsSnsTriggerConstants.SNS_MESSAGE_BODY_FILE_PARAMETER_PLACEHOLDER,
+              getStringValue(customParameters,
+                      AwsSnsTriggerConstants.SNS_MESSAGE_BODY_FILE_PARAMETER_PLACEHOLDER));
+    }
+
     // SNS message attributes
     customParameters.keySet().stream()
             .filter(it -> it.startsWith(
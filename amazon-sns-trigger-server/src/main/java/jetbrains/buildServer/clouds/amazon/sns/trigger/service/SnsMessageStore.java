@@ -0,0 +1,594 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsPendingMessage;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsMessageCodec;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsMessageCodec.SharedStrings;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TriggerStorageSession;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants.*;
+
+/**
+ * Pending SNS messages of a trigger.
+ * <p>
+ * Every message is stored under its own {@code message.<MessageId>} key of the trigger storage,
+ * the set of such keys is the index of pending messages. Adding or removing a message touches only its key,
+ * so the cost doesn't depend on the number of pending messages and concurrent writers of different messages don't collide.
+ * <p>
+ * Messages are stored in the compact encoding of {@link SnsMessageCodec}, strings repeated by all messages of a subscription
+ * are stored once under {@code sharedString.<hash>} keys. Messages stored as JSON by older plugin versions are read as is.
+ * With the compact encoding disabled messages are stored as JSON, so the plugin can be downgraded.
+ * <p>
+ * Older plugin versions kept all messages in a single JSON map under the {@code messages} key.
+ * Such a map is split into separate keys the first time the store is used.
+ * <p>
+ * The publication time of every message is stored under its {@code messageIndex.<MessageId>} key too. The trigger chooses
+ * the messages for a build from the {@link #getIndex() index} and decodes only the message its build parameters come from.
+ * Messages stored without an index key, e.g. by older plugin versions, are decoded to get their time.
+ * <p>
+ * New messages evict expired and excess ones, see {@link SnsPendingMessageLimits}. The check is cheap as long as the store
+ * is within the bounds: it compares the number and total size of the stored messages, tracked by the storage session,
+ * and the time stored under the {@code nextExpiry} key; the index is built and messages are decoded only when there is
+ * something to evict.
+ * <p>
+ * When the storage is opened in a {@link TriggerStorageSession}, messages decoded by earlier calls are reused.
+ * <p>
+ * Removed, evicted and cleared messages are reported to the {@link RemovalListener} once the removal is flushed.
+ */
+public class SnsMessageStore {
+  private static final Logger LOG = Logger.getInstance(SnsMessageStore.class);
+  private static final Comparator<Map.Entry<String, SnsPendingMessage>> BY_TIMESTAMP = Map.Entry.comparingByValue(SnsPendingMessage.BY_TIMESTAMP);
+
+  private final CustomDataStorageWrapper myStorage;
+  private final SnsPendingMessageLimits myLimits;
+  @Nullable
+  private final RemovalListener myRemovalListener;
+
+  public SnsMessageStore(@NotNull CustomDataStorageWrapper storage) {
+    this(storage, (RemovalListener) null);
+  }
+
+  public SnsMessageStore(@NotNull CustomDataStorageWrapper storage, @Nullable RemovalListener removalListener) {
+    this(storage, SnsPendingMessageLimits.fromServerProperties(), removalListener);
+  }
+
+  public SnsMessageStore(@NotNull CustomDataStorageWrapper storage, @NotNull SnsPendingMessageLimits limits) {
+    this(storage, limits, null);
+  }
+
+  public SnsMessageStore(@NotNull CustomDataStorageWrapper storage,
+                         @NotNull SnsPendingMessageLimits limits,
+                         @Nullable RemovalListener removalListener) {
+    myStorage = storage;
+    myLimits = limits;
+    myRemovalListener = removalListener;
+  }
+
+  @NotNull
+  public static String messageKey(@NotNull String messageId) {
+    return TRIGGER_STORE_MESSAGE_KEY_PREFIX + messageId;
+  }
+
+  public static boolean isMessageKey(@NotNull String key) {
+    return key.startsWith(TRIGGER_STORE_MESSAGE_KEY_PREFIX);
+  }
+
+  @NotNull
+  private static String messageId(@NotNull String key) {
+    return key.substring(TRIGGER_STORE_MESSAGE_KEY_PREFIX.length());
+  }
+
+  @NotNull
+  static String indexKey(@NotNull String messageId) {
+    return TRIGGER_STORE_MESSAGE_INDEX_KEY_PREFIX + messageId;
+  }
+
+  private static boolean isIndexKey(@NotNull String key) {
+    return key.startsWith(TRIGGER_STORE_MESSAGE_INDEX_KEY_PREFIX);
+  }
+
+  @Nullable
+  private static String indexValue(@NotNull SnsNotificationDto message) {
+    return message.getTimestamp() == null ? null : String.valueOf(message.getTimestamp().toEpochMilli());
+  }
+
+  /**
+   * Adds the message and evicts the messages that are expired or don't fit the bounds anymore.
+   * The changes join the open batch of the storage if there is one.
+   *
+   * @return messages evicted to make room for this one and the usage of the store with it
+   */
+  @NotNull
+  public Eviction add(@NotNull SnsNotificationDto message) throws IOException {
+    String messageId = Objects.requireNonNull(message.getMessageId());
+    String key = messageKey(messageId);
+    SharedStrings shared = createSharedStrings(myStorage::getValue);
+    String value = encode(message, shared);
+    myStorage.startBatch();
+    try {
+      migrateLegacyMessages();
+      Eviction eviction = evict(key, value, message.getTimestamp());
+      shared.getAdded().forEach(myStorage::putValue);
+      myStorage.putValue(key, value);
+      myStorage.putValue(indexKey(messageId), indexValue(message));
+      return eviction;
+    } finally {
+      myStorage.commitBatch();
+    }
+  }
+
+  /**
+   * @return values {@link #add} writes for the message, without the evictions it makes room with
+   */
+  @NotNull
+  public Map<String, String> encodeValues(@NotNull SnsNotificationDto message) throws IOException {
+    String messageId = Objects.requireNonNull(message.getMessageId());
+    SharedStrings shared = createSharedStrings(myStorage::getValue);
+    String value = encode(message, shared);
+    Map<String, String> values = new HashMap<>(shared.getAdded());
+    values.put(messageKey(messageId), value);
+    values.put(indexKey(messageId), indexValue(message));
+    return values;
+  }
+
+  public boolean isEmpty() {
+    if (myStorage.getValue(TRIGGER_STORE_MESSAGES) != null) {
+      return false;
+    }
+
+    TriggerStorageSession session = myStorage.getSession();
+    TriggerStorageSession.StoredMessages stored = session == null ? null : session.getStoredMessages();
+    if (stored != null) {
+      return stored.getCount() == 0;
+    }
+
+    for (Map.Entry<String, String> entry : myStorage.getValuesSafe().entrySet()) {
+      if (isMessageKey(entry.getKey()) && entry.getValue() != null) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Decodes all pending messages. Messages that can't be decoded are skipped.
+   */
+  @NotNull
+  public Map<String, SnsNotificationDto> getAll() {
+    migrateLegacyMessages();
+
+    TriggerStorageSession session = myStorage.getSession();
+    Map<String, String> values = myStorage.getValuesSafe();
+    SharedStrings shared = new SharedStrings(values::get);
+    Map<String, SnsNotificationDto> result = new HashMap<>();
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      if (!isMessageKey(entry.getKey()) || entry.getValue() == null) {
+        continue;
+      }
+
+      SnsNotificationDto message = decode(session, entry.getKey(), entry.getValue(), shared);
+      if (message != null) {
+        result.put(messageId(entry.getKey()), message);
+      }
+    }
+
+    if (session != null) {
+      Set<String> keys = new HashSet<>();
+      result.keySet().forEach(id -> keys.add(messageKey(id)));
+      session.retainDecoded(keys);
+    }
+    return result;
+  }
+
+  /**
+   * @return publication times and sizes of the pending messages by MessageId, only messages without an index key are decoded
+   */
+  @NotNull
+  public Map<String, SnsPendingMessage> getIndex() {
+    migrateLegacyMessages();
+
+    TriggerStorageSession session = myStorage.getSession();
+    Map<String, String> values = myStorage.getValuesSafe();
+    SharedStrings shared = new SharedStrings(values::get);
+    Map<String, SnsPendingMessage> result = new HashMap<>();
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      String key = entry.getKey();
+      String value = entry.getValue();
+      if (!isMessageKey(key) || value == null) {
+        continue;
+      }
+
+      String messageId = messageId(key);
+      Long published = parseTime(values.get(indexKey(messageId)));
+      if (published != null) {
+        result.put(messageId, new SnsPendingMessage(messageId, Instant.ofEpochMilli(published), value.length()));
+        continue;
+      }
+
+      SnsNotificationDto message = decode(session, key, value, shared);
+      if (message != null) {
+        result.put(messageId, new SnsPendingMessage(messageId, message.getTimestamp(), value.length()));
+      }
+    }
+
+    if (session != null) {
+      // messages decoded earlier are kept only while they are pending
+      Set<String> keys = new HashSet<>();
+      result.keySet().forEach(id -> keys.add(messageKey(id)));
+      session.retainDecoded(keys);
+    }
+    return result;
+  }
+
+  /**
+   * Decodes a single pending message.
+   *
+   * @return null if the message isn't stored or can't be decoded
+   */
+  @Nullable
+  public SnsNotificationDto get(@NotNull String messageId) {
+    String key = messageKey(messageId);
+    String value = myStorage.getValue(key);
+    if (value == null) {
+      return null;
+    }
+    return decode(myStorage.getSession(), key, value, new SharedStrings(myStorage::getValue));
+  }
+
+  /**
+   * @return number and total size of the stored messages, nothing is decoded;
+   * the stored values are walked only if the storage isn't opened in a session that counted them already
+   */
+  @NotNull
+  public Usage getUsage() {
+    TriggerStorageSession session = myStorage.getSession();
+    TriggerStorageSession.StoredMessages stored = session == null ? countStoredMessages() : session.countStoredMessages(this::countStoredMessages);
+    return new Usage(stored.getCount(), stored.getBytes());
+  }
+
+  @NotNull
+  private TriggerStorageSession.StoredMessages countStoredMessages() {
+    int messages = 0;
+    long bytes = 0;
+    for (Map.Entry<String, String> entry : myStorage.getValuesSafe().entrySet()) {
+      if (isMessageKey(entry.getKey()) && entry.getValue() != null) {
+        messages++;
+        bytes += entry.getValue().length();
+      }
+    }
+    return new TriggerStorageSession.StoredMessages(messages, bytes);
+  }
+
+  /**
+   * Replaces the bodies of the oldest messages with empty ones until the store is not larger than the target.
+   * The messages still trigger builds, offloaded bodies are kept, see {@link SnsMessageBodyFiles}.
+   *
+   * @return number of dropped bodies
+   */
+  public int dropBodies(long targetBytes) throws IOException {
+    Map<String, String> values = myStorage.getValuesSafe();
+    long bytes = getUsage().getBytes();
+    if (bytes <= targetBytes) {
+      return 0;
+    }
+
+    List<Map.Entry<String, SnsPendingMessage>> oldestFirst = new ArrayList<>(getIndex().entrySet());
+    oldestFirst.sort(BY_TIMESTAMP);
+
+    SharedStrings shared = createSharedStrings(values::get);
+    Map<String, String> changed = new HashMap<>();
+    for (Map.Entry<String, SnsPendingMessage> entry : oldestFirst) {
+      if (bytes <= targetBytes) {
+        break;
+      }
+
+      SnsNotificationDto message = get(entry.getKey());
+      if (message == null || message.getMessage() == null || message.getMessage().isEmpty()) {
+        continue;
+      }
+
+      String key = messageKey(entry.getKey());
+      // decoded messages are reused by the storage session, so a copy is changed
+      SnsNotificationDto dropped = new SnsNotificationDto(message.getMessageId(), message.getSubscriptionArn(), message.getTopic(),
+                                                          message.getSubject(), "", message.getTimestamp(),
+                                                          message.getUnsubscribeUrl(), message.getAttributes());
+      String value = encode(dropped, shared);
+      bytes -= values.getOrDefault(key, "").length() - value.length();
+      changed.put(key, value);
+    }
+
+    changed.putAll(shared.getAdded());
+    myStorage.updateValues(changed);
+    return changed.size() - shared.getAdded().size();
+  }
+
+  public void remove(@NotNull Collection<String> messageIds) {
+    remove(messageIds, null);
+  }
+
+  /**
+   * @param retainedMessageId message whose removal isn't reported, e.g. the one a queued build still refers to
+   */
+  public void remove(@NotNull Collection<String> messageIds, @Nullable String retainedMessageId) {
+    if (messageIds.isEmpty()) {
+      return;
+    }
+
+    Map<String, String> removed = new HashMap<>();
+    List<String> reported = new ArrayList<>(messageIds.size());
+    for (String id : messageIds) {
+      removed.put(messageKey(id), null);
+      removed.put(indexKey(id), null);
+      if (!id.equals(retainedMessageId)) {
+        reported.add(id);
+      }
+    }
+    myStorage.updateValues(removed);
+    removed(reported);
+  }
+
+  public void clear() {
+    Map<String, String> removed = new HashMap<>();
+    List<String> reported = new ArrayList<>();
+    removed.put(TRIGGER_STORE_MESSAGES, null);
+    removed.put(TRIGGER_STORE_NEXT_EXPIRY, null);
+    for (String key : myStorage.getValuesSafe().keySet()) {
+      if (isMessageKey(key) || isIndexKey(key) || SharedStrings.isSharedStringKey(key)) {
+        removed.put(key, null);
+      }
+      if (isMessageKey(key)) {
+        reported.add(messageId(key));
+      }
+    }
+    myStorage.updateValues(removed);
+    removed(reported);
+  }
+
+  private void removed(@NotNull List<String> messageIds) {
+    RemovalListener listener = myRemovalListener;
+    if (listener != null && !messageIds.isEmpty()) {
+      myStorage.afterFlush(() -> listener.removed(messageIds));
+    }
+  }
+
+  /**
+   * Makes room for the message to be stored under the key.
+   */
+  @NotNull
+  private Eviction evict(@NotNull String newKey, @NotNull String newValue, @Nullable Instant newTimestamp) {
+    Usage usage = getUsage();
+    String replaced = myStorage.getValue(newKey);
+    int count = usage.getMessages() + (replaced == null ? 1 : 0);
+    long bytes = usage.getBytes() - (replaced == null ? 0 : replaced.length()) + newValue.length();
+    if (!myLimits.isEnabled()) {
+      return new Eviction(0, 0, new Usage(count, bytes));
+    }
+
+    long now = System.currentTimeMillis();
+    Long nextExpiry = parseTime(myStorage.getValue(TRIGGER_STORE_NEXT_EXPIRY));
+    long newExpiry = newTimestamp == null || myLimits.getTtlMs() <= 0 ? Long.MAX_VALUE : newTimestamp.toEpochMilli() + myLimits.getTtlMs();
+    boolean expiryDue = myLimits.getTtlMs() > 0 && count > 1 && (nextExpiry == null || nextExpiry <= now);
+    boolean exceeded = myLimits.isExceeded(count, bytes);
+
+    if (!expiryDue && !exceeded) {
+      if (myLimits.getTtlMs() > 0) {
+        // the time of the first message of an empty store replaces a stale one
+        long expiry = count == 1 ? newExpiry : Math.min(nextExpiry, newExpiry);
+        myStorage.putValue(TRIGGER_STORE_NEXT_EXPIRY, expiry == Long.MAX_VALUE ? null : String.valueOf(expiry));
+      }
+      return new Eviction(0, 0, new Usage(count, bytes));
+    }
+
+    Map<String, String> values = myStorage.getValuesSafe();
+    Map<String, SnsPendingMessage> messages = getIndex();
+    messages.remove(messageId(newKey));
+    List<Map.Entry<String, SnsPendingMessage>> oldestFirst = new ArrayList<>(messages.entrySet());
+    oldestFirst.sort(BY_TIMESTAMP);
+
+    Map<String, String> removed = new HashMap<>();
+    List<String> evicted = new ArrayList<>();
+    int expired = 0;
+    int excess = 0;
+    long expiry = newExpiry;
+
+    // messages that can't be decoded have no time, they go first
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      String key = entry.getKey();
+      if (isMessageKey(key) && entry.getValue() != null && !key.equals(newKey) && !messages.containsKey(messageId(key))) {
+        removed.put(key, null);
+        removed.put(indexKey(messageId(key)), null);
+        evicted.add(messageId(key));
+        count--;
+        bytes -= entry.getValue().length();
+        excess++;
+      }
+    }
+
+    for (Map.Entry<String, SnsPendingMessage> entry : oldestFirst) {
+      String key = messageKey(entry.getKey());
+      Instant timestamp = entry.getValue().getTimestamp();
+      boolean isExpired = timestamp != null && myLimits.isExpired(timestamp.toEpochMilli(), now);
+
+      if (isExpired || exceeded && myLimits.isAboveTarget(count, bytes)) {
+        removed.put(key, null);
+        removed.put(indexKey(entry.getKey()), null);
+        evicted.add(entry.getKey());
+        count--;
+        bytes -= entry.getValue().getBytes();
+        if (isExpired) {
+          expired++;
+        } else {
+          excess++;
+        }
+      } else if (timestamp != null) {
+        // the rest is newer, neither expired nor needed to shrink the store
+        expiry = Math.min(expiry, timestamp.toEpochMilli() + myLimits.getTtlMs());
+        break;
+      }
+    }
+
+    if (myLimits.getTtlMs() > 0) {
+      // without times of the pending messages nothing expires until a message with a time is added
+      removed.put(TRIGGER_STORE_NEXT_EXPIRY, String.valueOf(expiry));
+    }
+    myStorage.updateValues(removed);
+    removed(evicted);
+    return new Eviction(expired, excess, new Usage(count, bytes));
+  }
+
+  @Nullable
+  private static Long parseTime(@Nullable String value) {
+    if (value == null) {
+      return null;
+    }
+
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static SharedStrings createSharedStrings(@NotNull Function<String, String> stored) {
+    return isCompactEncodingEnabled() ? new SharedStrings(stored) : SharedStrings.NONE;
+  }
+
+  private static boolean isCompactEncodingEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(STORAGE_COMPACT_MESSAGES_ENABLED_PROPERTY);
+  }
+
+  @NotNull
+  private static String encode(@NotNull SnsNotificationDto message, @NotNull SharedStrings shared) throws IOException {
+    return isCompactEncodingEnabled() ? SnsMessageCodec.encode(message, shared) : SnsJson.MESSAGE_WRITER.writeValueAsString(message);
+  }
+
+  @Nullable
+  private static SnsNotificationDto decode(@Nullable TriggerStorageSession session,
+                                           @NotNull String key,
+                                           @NotNull String value,
+                                           @NotNull SharedStrings shared) {
+    return session == null ? decode(key, value, shared) : session.decode(key, value, (k, v) -> decode(k, v, shared));
+  }
+
+  @Nullable
+  private static SnsNotificationDto decode(@NotNull String key, @NotNull String value, @NotNull SharedStrings shared) {
+    try {
+      return SnsMessageCodec.decode(value, shared);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to decode pending SNS message " + key + ", the message is ignored", e);
+      return null;
+    }
+  }
+
+  private void migrateLegacyMessages() {
+    String legacyMessages = myStorage.getValue(TRIGGER_STORE_MESSAGES);
+    if (legacyMessages == null) {
+      return;
+    }
+
+    Map<String, String> migrated = new HashMap<>();
+    migrated.put(TRIGGER_STORE_MESSAGES, null);
+
+    try {
+      if (!legacyMessages.isBlank()) {
+        SharedStrings shared = createSharedStrings(myStorage::getValue);
+        Map<String, SnsNotificationDto> messages = SnsJson.MESSAGE_MAP_READER.readValue(legacyMessages);
+        for (Map.Entry<String, SnsNotificationDto> entry : messages.entrySet()) {
+          migrated.put(messageKey(entry.getKey()), encode(entry.getValue(), shared));
+          migrated.put(indexKey(entry.getKey()), indexValue(entry.getValue()));
+        }
+        migrated.putAll(shared.getAdded());
+      }
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to migrate pending SNS messages to the key-per-message layout, the messages are dropped", e);
+    }
+
+    myStorage.updateValues(migrated);
+  }
+
+  /**
+   * Learns about messages that left the store.
+   */
+  @FunctionalInterface
+  public interface RemovalListener {
+    void removed(@NotNull Collection<String> messageIds);
+  }
+
+  /**
+   * Number and total size of stored messages.
+   */
+  public static final class Usage {
+    public static final Usage EMPTY = new Usage(0, 0);
+
+    private final int myMessages;
+    private final long myBytes;
+
+    public Usage(int messages, long bytes) {
+      myMessages = messages;
+      myBytes = bytes;
+    }
+
+    public int getMessages() {
+      return myMessages;
+    }
+
+    public long getBytes() {
+      return myBytes;
+    }
+  }
+
+  /**
+   * Messages evicted by a write and the usage of the store after it.
+   */
+  public static final class Eviction {
+    public static final Eviction NONE = new Eviction(0, 0, Usage.EMPTY);
+
+    private final int myExpired;
+    private final int myExcess;
+    private final Usage myUsage;
+
+    public Eviction(int expired, int excess, @NotNull Usage usage) {
+      myExpired = expired;
+      myExcess = excess;
+      myUsage = usage;
+    }
+
+    /**
+     * @return number and total size of the stored messages after the write, the written message included
+     */
+    @NotNull
+    public Usage getUsage() {
+      return myUsage;
+    }
+
+    /**
+     * @return messages older than the TTL
+     */
+    public int getExpired() {
+      return myExpired;
+    }
+
+    /**
+     * @return oldest messages evicted to keep the store within the count and size bounds
+     */
+    public int getExcess() {
+      return myExcess;
+    }
+
+    public int getTotal() {
+      return myExpired + myExcess;
+    }
+  }
+}
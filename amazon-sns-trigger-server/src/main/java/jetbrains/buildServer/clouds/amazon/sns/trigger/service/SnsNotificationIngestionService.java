@@ -0,0 +1,229 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsIngestionRejectedException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Runs the storage part of SNS request handling on a bounded number of workers.
+ * <p>
+ * Every trigger has its own bounded queue. A queue is drained by at most one worker at a time,
+ * so writes to the storage of a single trigger never race with each other.
+ * <p>
+ * SNS redelivers a message only if the delivery fails, so a task that fails after the answer would be lost. A notification
+ * is therefore journaled by the endpoint before its task is {@link #enqueue queued}, see {@link SnsStorageFlushFallback#journal},
+ * and the request is answered without waiting for the worker: the worker replays the journal and the journal survives a restart.
+ * Subscription requests are rare and have nothing to journal, they {@link #execute wait} for their task.
+ * When a queue is full, a task doesn't start in time or the service is stopped, the request is rejected
+ * with a retryable status and SNS redelivers it later.
+ */
+public class SnsNotificationIngestionService {
+  private static final Logger LOG = Logger.getInstance(SnsNotificationIngestionService.class);
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private final Map<String, TriggerQueue> myQueues = new ConcurrentHashMap<>();
+  private final ExecutorService myWorkers;
+  private volatile boolean myShutdown = false;
+
+  public SnsNotificationIngestionService(@NotNull final EventDispatcher<BuildServerListener> serverEvents) {
+    int workers = Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.ASYNC_INGESTION_WORKERS_PROPERTY,
+                                                            AwsSnsTriggerConstants.ASYNC_INGESTION_WORKERS_DEFAULT));
+    myWorkers = Executors.newFixedThreadPool(workers, new IngestionThreadFactory());
+
+    serverEvents.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        shutdown();
+      }
+    });
+  }
+
+  public boolean isEnabled() {
+    return !myShutdown && TeamCityProperties.getBoolean(AwsSnsTriggerConstants.ASYNC_INGESTION_ENABLED_PROPERTY);
+  }
+
+  /**
+   * Runs the task in the queue of the given trigger and waits until it is done.
+   * A task that didn't start in time is removed from the queue.
+   *
+   * @throws AwsSnsIngestionRejectedException if the queue of the trigger is full, the service is stopped or the task didn't finish in time
+   * @throws Exception thrown by the task
+   */
+  public void execute(@NotNull String triggerKey, @NotNull IngestionTask task) throws Exception {
+    QueuedTask queued = offer(triggerKey, task);
+    long timeout = Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.ASYNC_INGESTION_WAIT_TIMEOUT_PROPERTY,
+                                                             AwsSnsTriggerConstants.ASYNC_INGESTION_WAIT_TIMEOUT_DEFAULT));
+    try {
+      queued.myDone.get(timeout, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      TriggerQueue queue = myQueues.get(triggerKey);
+      boolean started = queue == null || !queue.myTasks.remove(queued);
+      throw new AwsSnsIngestionRejectedException("SNS request of the trigger wasn't " + (started ? "stored" : "started") + " in " + timeout +
+                                                 " seconds, try again later", getRetryAfter());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+    }
+  }
+
+  /**
+   * Puts the task into the queue of the given trigger without waiting for it.
+   * Whatever the task stores must be saved durably by the caller beforehand, a failed or dropped task is only logged.
+   *
+   * @throws AwsSnsIngestionRejectedException if the queue of the trigger is full or the service is stopped
+   */
+  public void enqueue(@NotNull String triggerKey, @NotNull IngestionTask task) throws AwsSnsIngestionRejectedException {
+    offer(triggerKey, task).myDone.whenComplete((result, error) -> {
+      if (error != null) {
+        LOG.warnAndDebugDetails("Failed to store an accepted SNS request of trigger " + triggerKey +
+                                ", its journaled changes are written by the next replay", error);
+      }
+    });
+  }
+
+  @NotNull
+  private QueuedTask offer(@NotNull String triggerKey, @NotNull IngestionTask task) throws AwsSnsIngestionRejectedException {
+    if (myShutdown) {
+      throw new AwsSnsIngestionRejectedException("SNS ingestion is stopped", getRetryAfter());
+    }
+
+    QueuedTask queued = new QueuedTask(task);
+    AtomicBoolean accepted = new AtomicBoolean();
+    // offered under the map lock: an idle queue is removed under the same lock, so no task is left in a removed queue
+    TriggerQueue queue = myQueues.compute(triggerKey, (key, existing) -> {
+      TriggerQueue result = existing == null ? new TriggerQueue(getQueueSize()) : existing;
+      accepted.set(result.myTasks.offer(queued));
+      return result;
+    });
+    if (!accepted.get()) {
+      throw new AwsSnsIngestionRejectedException("Too many pending SNS requests for the trigger, try again later", getRetryAfter());
+    }
+
+    scheduleDrain(triggerKey, queue);
+    return queued;
+  }
+
+  private static int getRetryAfter() {
+    return TeamCityProperties.getInteger(AwsSnsTriggerConstants.ASYNC_INGESTION_RETRY_AFTER_PROPERTY,
+                                         AwsSnsTriggerConstants.ASYNC_INGESTION_RETRY_AFTER_DEFAULT);
+  }
+
+  int getPendingCount(@NotNull String triggerKey) {
+    TriggerQueue queue = myQueues.get(triggerKey);
+    return queue == null ? 0 : queue.myTasks.size();
+  }
+
+  private void scheduleDrain(@NotNull String triggerKey, @NotNull TriggerQueue queue) {
+    if (!queue.myDraining.compareAndSet(false, true)) {
+      // the active drain will pick the task up
+      return;
+    }
+
+    try {
+      myWorkers.execute(() -> drain(triggerKey, queue));
+    } catch (RejectedExecutionException e) {
+      queue.myDraining.set(false);
+      reject(triggerKey, queue);
+    }
+  }
+
+  private void drain(@NotNull String triggerKey, @NotNull TriggerQueue queue) {
+    try {
+      QueuedTask queued;
+      while ((queued = queue.myTasks.poll()) != null) {
+        try {
+          queued.myTask.run();
+          queued.myDone.complete(null);
+        } catch (Throwable e) {
+          // the waiting request reports the error and SNS delivers the message again, otherwise the error is logged
+          queued.myDone.completeExceptionally(e);
+        }
+      }
+    } finally {
+      queue.myDraining.set(false);
+      // queues of idle triggers aren't kept, e.g. of deleted ones
+      myQueues.computeIfPresent(triggerKey, (key, existing) ->
+        existing == queue && existing.myTasks.isEmpty() && !existing.myDraining.get() ? null : existing);
+      // a task could be added between the last poll and the flag reset
+      if (!queue.myTasks.isEmpty()) {
+        scheduleDrain(triggerKey, queue);
+      }
+    }
+  }
+
+  /**
+   * Fails the queued tasks: waiting requests are answered with a retryable status, journaled ones are replayed later.
+   */
+  private void reject(@NotNull String triggerKey, @NotNull TriggerQueue queue) {
+    QueuedTask queued;
+    while ((queued = queue.myTasks.poll()) != null) {
+      queued.myDone.completeExceptionally(new AwsSnsIngestionRejectedException("SNS ingestion is stopped", getRetryAfter()));
+    }
+    myQueues.remove(triggerKey, queue);
+  }
+
+  private int getQueueSize() {
+    return Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.ASYNC_INGESTION_QUEUE_SIZE_PROPERTY,
+                                                     AwsSnsTriggerConstants.ASYNC_INGESTION_QUEUE_SIZE_DEFAULT));
+  }
+
+  private void shutdown() {
+    myShutdown = true;
+    myWorkers.shutdown();
+    try {
+      if (!myWorkers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        LOG.warn("SNS ingestion workers didn't finish in " + SHUTDOWN_TIMEOUT_SECONDS + " seconds, queued SNS requests are rejected");
+        myWorkers.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      myWorkers.shutdownNow();
+      Thread.currentThread().interrupt();
+    } finally {
+      // nothing was stored for these requests yet: waiting ones are answered with a retryable status, journaled ones are replayed after the restart
+      myQueues.forEach(this::reject);
+    }
+  }
+
+  @FunctionalInterface
+  public interface IngestionTask {
+    void run() throws Exception;
+  }
+
+  private static class QueuedTask {
+    private final IngestionTask myTask;
+    private final CompletableFuture<Void> myDone = new CompletableFuture<>();
+
+    private QueuedTask(@NotNull IngestionTask task) {
+      myTask = task;
+    }
+  }
+
+  private static class TriggerQueue {
+    private final BlockingQueue<QueuedTask> myTasks;
+    private final AtomicBoolean myDraining = new AtomicBoolean(false);
+
+    private TriggerQueue(int capacity) {
+      myTasks = new LinkedBlockingQueue<>(capacity);
+    }
+  }
+
+  private static class IngestionThreadFactory implements ThreadFactory {
+    private final AtomicInteger myCounter = new AtomicInteger();
+
+    @Override
+    public Thread newThread(@NotNull Runnable r) {
+      Thread thread = new Thread(r, "Amazon SNS Trigger ingestion " + myCounter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
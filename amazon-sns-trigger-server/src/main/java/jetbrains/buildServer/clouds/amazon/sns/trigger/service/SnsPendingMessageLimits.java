@@ -0,0 +1,71 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants.*;
+
+/**
+ * Bounds of the pending messages of a single trigger, so a paused trigger or a build type that can't run
+ * doesn't accumulate messages forever:
+ * <ul>
+ *   <li>max messages;</li>
+ *   <li>max bytes: the total size of the stored messages;</li>
+ *   <li>TTL: messages published longer ago are expired.</li>
+ * </ul>
+ * Messages are evicted by the write that crosses a bound, expired ones first and then the oldest ones.
+ * A store over the count or the size bound is shrunk to {@value #TARGET_PERCENT}% of it,
+ * so the next writes don't have to evict again. A bound of 0 is disabled.
+ */
+public class SnsPendingMessageLimits {
+  private static final int TARGET_PERCENT = 90;
+
+  public static final SnsPendingMessageLimits NONE = new SnsPendingMessageLimits(0, 0, 0);
+
+  private final int myMaxMessages;
+  private final long myMaxBytes;
+  private final long myTtlMs;
+
+  public SnsPendingMessageLimits(int maxMessages, long maxBytes, long ttlMs) {
+    myMaxMessages = maxMessages;
+    myMaxBytes = maxBytes;
+    myTtlMs = ttlMs;
+  }
+
+  @NotNull
+  public static SnsPendingMessageLimits fromServerProperties() {
+    return new SnsPendingMessageLimits(
+      Math.max(0, TeamCityProperties.getInteger(PENDING_MAX_MESSAGES_PROPERTY, PENDING_MAX_MESSAGES_DEFAULT)),
+      Math.max(0, TeamCityProperties.getLong(PENDING_MAX_BYTES_PROPERTY, PENDING_MAX_BYTES_DEFAULT)),
+      TimeUnit.HOURS.toMillis(Math.max(0, TeamCityProperties.getLong(PENDING_TTL_HOURS_PROPERTY, PENDING_TTL_HOURS_DEFAULT)))
+    );
+  }
+
+  public boolean isEnabled() {
+    return myMaxMessages > 0 || myMaxBytes > 0 || myTtlMs > 0;
+  }
+
+  public long getTtlMs() {
+    return myTtlMs;
+  }
+
+  public boolean isExpired(long publishedAt, long now) {
+    return myTtlMs > 0 && publishedAt < now - myTtlMs;
+  }
+
+  public boolean isExceeded(int messages, long bytes) {
+    return myMaxMessages > 0 && messages > myMaxMessages || myMaxBytes > 0 && bytes > myMaxBytes;
+  }
+
+  /**
+   * @return true if an exceeded store must still be shrunk
+   */
+  public boolean isAboveTarget(int messages, long bytes) {
+    return myMaxMessages > 0 && messages > target(myMaxMessages) || myMaxBytes > 0 && bytes > target(myMaxBytes);
+  }
+
+  private static long target(long bound) {
+    return Math.max(1, bound * TARGET_PERCENT / 100);
+  }
+}
@@ -0,0 +1,169 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsIngestionRejectedException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsTriggerKeys;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Server-wide budget for the pending messages of all triggers, on top of the bounds of a single trigger,
+ * see {@link SnsPendingMessageLimits}.
+ * <p>
+ * The stored size of the pending messages of every trigger is tracked as this node last saw it: when the endpoint stores
+ * a message and when the trigger consumes messages. While the total is over the budget, the triggers holding more than
+ * their share, the budget divided by the number of triggers with pending messages, are pushed back:
+ * <ol>
+ *   <li>bodies of their oldest pending messages are dropped, the messages still trigger builds;</li>
+ *   <li>if that doesn't bring a trigger down to its share, its new notifications are rejected with a retryable status
+ *   until it consumes its messages, SNS delivers them again later.</li>
+ * </ol>
+ * Triggers within their share are never pushed back.
+ */
+public class SnsStorageBudget {
+  // trigger key -> usage, only triggers with pending messages
+  private final Map<String, TriggerUsage> myUsage = new ConcurrentHashMap<>();
+  private final AtomicLong myTotalBytes = new AtomicLong();
+
+  public boolean isEnabled() {
+    return getBudgetBytes() > 0;
+  }
+
+  public long getBudgetBytes() {
+    return TeamCityProperties.getLong(AwsSnsTriggerConstants.BUDGET_MAX_BYTES_PROPERTY, AwsSnsTriggerConstants.BUDGET_MAX_BYTES_DEFAULT);
+  }
+
+  public long getTotalBytes() {
+    return myTotalBytes.get();
+  }
+
+  /**
+   * @return size of the pending messages a trigger may hold while the budget is exceeded
+   */
+  public long getShareBytes() {
+    return getBudgetBytes() / Math.max(1, myUsage.size());
+  }
+
+  /**
+   * Records the size of the pending messages of the trigger.
+   */
+  public void update(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor trigger, @NotNull SnsMessageStore.Usage usage) {
+    String key = AwsSnsTriggerKeys.of(buildType, trigger);
+    TriggerUsage previous;
+    if (usage.getMessages() == 0) {
+      previous = myUsage.remove(key);
+    } else {
+      TriggerUsage current = new TriggerUsage(buildType.getExternalId(), trigger.getId(), usage.getMessages(), usage.getBytes());
+      previous = myUsage.put(key, current);
+      if (previous != null && previous.myOverShare && usage.getBytes() >= previous.myBytes) {
+        // the trigger didn't consume anything since its bodies were dropped
+        current.myOverShare = true;
+      }
+    }
+    myTotalBytes.addAndGet(usage.getBytes() - (previous == null ? 0 : previous.myBytes));
+  }
+
+  /**
+   * @return size the trigger has to shed, 0 if the budget isn't exceeded or the trigger is within its share
+   */
+  public long getExcessBytes(@NotNull String triggerKey) {
+    TriggerUsage usage = myUsage.get(triggerKey);
+    if (usage == null || !isEnabled() || getTotalBytes() <= getBudgetBytes()) {
+      return 0;
+    }
+    return Math.max(0, usage.myBytes - getShareBytes());
+  }
+
+  /**
+   * Marks the trigger that is still over its share after its bodies were dropped, its new notifications are rejected.
+   */
+  public void markOverShare(@NotNull String triggerKey) {
+    TriggerUsage usage = myUsage.get(triggerKey);
+    if (usage != null) {
+      usage.myOverShare = true;
+    }
+  }
+
+  /**
+   * Called before a notification is accepted.
+   *
+   * @throws AwsSnsIngestionRejectedException if the trigger is one of the largest ones and the budget is still exceeded
+   */
+  public void checkIngest(@NotNull String triggerKey) throws AwsSnsIngestionRejectedException {
+    TriggerUsage usage = myUsage.get(triggerKey);
+    if (usage == null || !usage.myOverShare || getExcessBytes(triggerKey) == 0) {
+      return;
+    }
+
+    throw new AwsSnsIngestionRejectedException(
+      "Pending SNS messages of all triggers exceed the budget of " + getBudgetBytes() + " bytes and trigger " + triggerKey + " holds " +
+      usage.myBytes + " bytes in " + usage.myMessages + " messages, more than its share of " + getShareBytes() + " bytes",
+      TeamCityProperties.getInteger(AwsSnsTriggerConstants.BUDGET_RETRY_AFTER_PROPERTY, AwsSnsTriggerConstants.BUDGET_RETRY_AFTER_DEFAULT));
+  }
+
+  /**
+   * @return triggers holding the most, largest first
+   */
+  @NotNull
+  public List<TriggerUsage> getLargest(int limit) {
+    List<TriggerUsage> result = new ArrayList<>(myUsage.values());
+    result.sort(Comparator.comparingLong(TriggerUsage::getBytes).reversed());
+    return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+  }
+
+  /**
+   * Pending messages of a single trigger, as seen by this node.
+   */
+  public static final class TriggerUsage {
+    private final String myBuildTypeId;
+    private final String myTriggerId;
+    private final int myMessages;
+    private final long myBytes;
+    private volatile boolean myOverShare;
+
+    TriggerUsage(@NotNull String buildTypeId, @NotNull String triggerId, int messages, long bytes) {
+      myBuildTypeId = buildTypeId;
+      myTriggerId = triggerId;
+      myMessages = messages;
+      myBytes = bytes;
+    }
+
+    @NotNull
+    public String getBuildTypeId() {
+      return myBuildTypeId;
+    }
+
+    @NotNull
+    public String getTriggerId() {
+      return myTriggerId;
+    }
+
+    public int getMessages() {
+      return myMessages;
+    }
+
+    public long getBytes() {
+      return myBytes;
+    }
+
+    /**
+     * @return true if new notifications of the trigger are rejected while the budget is exceeded
+     */
+    public boolean isOverShare() {
+      return myOverShare;
+    }
+
+    @Override
+    public String toString() {
+      return myBuildTypeId + "/" + myTriggerId + ": " + myMessages + " messages, " + myBytes + " bytes";
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Cross-node notifications about changes of trigger storages.
+ * <p>
+ * The endpoint touches a stamp file of the trigger in the plugin data directory, which is shared by all nodes,
+ * after it changes the trigger storage. The node processing the trigger compares the modification time of the stamp
+ * with the one it saw on the last storage refresh, so it reloads the storage only when another node changed it.
+ * Stamps written by this node are recognized and don't cause a refresh, the storage of this node is already up to date.
+ * A change whose stamp couldn't be written is seen by the other nodes on their next periodic refresh.
+ */
+public class SnsStorageChangeStamps {
+  private static final Logger LOG = Logger.getInstance(SnsStorageChangeStamps.class);
+  private static final String DIRECTORY = "amazon-sns-trigger/storage-stamps";
+
+  /**
+   * Stamps modified within this time may be followed by one more change with the same modification time,
+   * file systems keep it with a second or two precision.
+   */
+  public static final long PRECISION_MS = 2000;
+
+  private final File myDirectory;
+  // trigger key -> modification time of the last stamp written by this node
+  private final Map<String, Long> myOwnStamps = new ConcurrentHashMap<>();
+  // trigger key -> stamp file, the stamp is checked by every trigger polling
+  private final Map<String, File> myFiles = new ConcurrentHashMap<>();
+  // triggers whose last stamp update failed, the failure is logged once until an update succeeds
+  private final Set<String> myFailedTouches = ConcurrentHashMap.newKeySet();
+
+  public SnsStorageChangeStamps(@NotNull final ServerPaths serverPaths) {
+    myDirectory = new File(serverPaths.getPluginDataDirectory(), DIRECTORY);
+  }
+
+  public boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(AwsSnsTriggerConstants.STORAGE_CHANGE_STAMPS_ENABLED_PROPERTY);
+  }
+
+  /**
+   * Notifies other nodes that the storage of the trigger was changed by this one.
+   */
+  public void touch(@NotNull String triggerKey) {
+    if (!isEnabled()) {
+      return;
+    }
+
+    File file = fileOf(triggerKey);
+    try {
+      long previous = file.lastModified();
+      if (previous == 0) {
+        Files.createDirectories(myDirectory.toPath());
+        Files.write(file.toPath(), new byte[0]);
+      }
+      Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+
+      // a change of another node that wasn't seen yet must not be hidden by this one
+      Long own = myOwnStamps.get(triggerKey);
+      if (previous == 0 || own != null && own == previous) {
+        myOwnStamps.put(triggerKey, file.lastModified());
+      } else {
+        myOwnStamps.remove(triggerKey);
+      }
+
+      if (myFailedTouches.remove(triggerKey)) {
+        LOG.info("The storage change stamp of trigger " + triggerKey + " is updated again");
+      }
+    } catch (IOException e) {
+      String message = "Failed to update the storage change stamp of trigger " + triggerKey + " in " + myDirectory +
+                       ", other nodes see the change on their next periodic storage refresh";
+      if (myFailedTouches.add(triggerKey)) {
+        LOG.warnAndDebugDetails(message, e);
+      } else {
+        LOG.debug(message, e);
+      }
+    }
+  }
+
+  /**
+   * @return modification time of the last change of the trigger storage made by any node, 0 if it isn't known
+   */
+  public long getStamp(@NotNull String triggerKey) {
+    return isEnabled() ? fileOf(triggerKey).lastModified() : 0;
+  }
+
+  /**
+   * @return true if the stamp was written by this node
+   */
+  public boolean isOwn(@NotNull String triggerKey, long stamp) {
+    Long own = myOwnStamps.get(triggerKey);
+    return own != null && own == stamp;
+  }
+
+  public void forget(@NotNull String triggerKey) {
+    myOwnStamps.remove(triggerKey);
+    myFiles.remove(triggerKey);
+    myFailedTouches.remove(triggerKey);
+  }
+
+  @NotNull
+  private File fileOf(@NotNull String triggerKey) {
+    return myFiles.computeIfAbsent(triggerKey, key -> new File(myDirectory, key.replaceAll("[^A-Za-z0-9_.-]", "_")));
+  }
+}
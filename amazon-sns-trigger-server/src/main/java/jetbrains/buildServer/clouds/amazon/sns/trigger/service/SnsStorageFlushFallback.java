@@ -0,0 +1,296 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsTriggerKeys;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps trigger storage changes that couldn't be flushed because of ongoing concurrent modifications,
+ * and the changes of notifications that are answered before they are stored, see {@link #journal}.
+ * <p>
+ * The changes are saved to the plugin data directory and written to the trigger storage again
+ * before the next request of the trigger is stored and periodically in the background, until a flush succeeds.
+ * The saved file is removed only after the replayed changes are flushed, so they survive a restart in between.
+ * The background replay writes through the {@link SnsTriggerStorageSessions}, like any other change of the trigger storage.
+ * A replayed message may be registered once more if its first flush eventually succeeded, the same as an SNS redelivery.
+ */
+public class SnsStorageFlushFallback {
+  private static final Logger LOG = Logger.getInstance(SnsStorageFlushFallback.class);
+  private static final String DIRECTORY = "amazon-sns-trigger/pending-writes";
+  private static final String FILE_EXTENSION = ".json";
+
+  private final File myDirectory;
+  private final ProjectManager myProjectManager;
+  // trigger key -> changes waiting for a replay
+  private final Map<String, PendingWrites> myPending = new ConcurrentHashMap<>();
+  // trigger key -> changes being replayed, they stay in the saved file until the replay is flushed
+  private final Map<String, PendingWrites> myReplaying = new ConcurrentHashMap<>();
+  // sessions depend on this fallback, so they register themselves
+  private volatile SnsTriggerStorageSessions myStorageSessions;
+  private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Amazon SNS Trigger storage fallback");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public SnsStorageFlushFallback(@NotNull final ServerPaths serverPaths,
+                                 @NotNull final ProjectManager projectManager,
+                                 @NotNull final EventDispatcher<BuildServerListener> serverEvents) {
+    myDirectory = new File(serverPaths.getPluginDataDirectory(), DIRECTORY);
+    myProjectManager = projectManager;
+
+    serverEvents.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        loadFiles();
+        long interval = Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.STORAGE_FALLBACK_REPLAY_INTERVAL_SECONDS_PROPERTY,
+                                                                  AwsSnsTriggerConstants.STORAGE_FALLBACK_REPLAY_INTERVAL_SECONDS_DEFAULT));
+        myExecutor.scheduleWithFixedDelay(SnsStorageFlushFallback.this::replayAll, interval, interval, TimeUnit.SECONDS);
+      }
+
+      @Override
+      public void serverShutdown() {
+        myExecutor.shutdownNow();
+      }
+    });
+  }
+
+  void setStorageSessions(@NotNull SnsTriggerStorageSessions storageSessions) {
+    myStorageSessions = storageSessions;
+  }
+
+  public boolean hasPendingWrites(@NotNull String triggerKey) {
+    return myPending.containsKey(triggerKey);
+  }
+
+  /**
+   * Writes the saved changes of the trigger to the storage, the caller flushes them.
+   * The saved file is removed after the flush; if the flush fails again, the changes come back through the storage's failure listener.
+   */
+  public void replay(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger, @NotNull CustomDataStorageWrapper cds) {
+    String triggerKey = AwsSnsTriggerKeys.of(buildType, buildTrigger);
+    PendingWrites pending = take(triggerKey);
+    if (pending != null) {
+      cds.updateValues(pending.snapshot());
+      cds.afterFlush(() -> removeFile(triggerKey, pending));
+    }
+  }
+
+  void save(@NotNull String buildTypeId, @NotNull String triggerId, @NotNull Map<String, String> changes) {
+    String triggerKey = AwsSnsTriggerKeys.of(buildTypeId, triggerId);
+    try {
+      save(buildTypeId, triggerId, changes, false);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to save " + changes.size() + " unflushed change(s) of trigger " + triggerKey +
+                              ", they are kept in memory until the next replay", e);
+    }
+  }
+
+  /**
+   * Saves the changes of a request that is answered before they are stored, they are written by the next replay of the trigger.
+   * The changes are on disk when the method returns.
+   *
+   * @throws IOException if the changes can't be saved, the request must not be answered as accepted then
+   */
+  public void journal(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger, @NotNull Map<String, String> changes) throws IOException {
+    save(buildType.getInternalId(), buildTrigger.getId(), changes, true);
+  }
+
+  /**
+   * @param durable whether the changes have to be saved to a file even if they are being replayed already
+   */
+  private void save(@NotNull String buildTypeId, @NotNull String triggerId, @NotNull Map<String, String> changes, boolean durable) throws IOException {
+    String triggerKey = AwsSnsTriggerKeys.of(buildTypeId, triggerId);
+    while (true) {
+      PendingWrites pending = myPending.compute(triggerKey, (key, existing) -> {
+        PendingWrites result = existing == null ? new PendingWrites(buildTypeId, triggerId) : existing;
+        result.myValues.putAll(changes);
+        return result;
+      });
+
+      synchronized (pending) {
+        if (!pending.myTaken) {
+          write(triggerKey, pending);
+          return;
+        }
+      }
+
+      // replayed concurrently, the changes are written with the replay and the file is kept until they are flushed;
+      // the file of the replay may miss them, so durable changes are saved once more and replayed again
+      if (!durable) {
+        return;
+      }
+    }
+  }
+
+  @Nullable
+  private PendingWrites take(@NotNull String triggerKey) {
+    PendingWrites pending = myPending.remove(triggerKey);
+    if (pending == null) {
+      return null;
+    }
+
+    synchronized (pending) {
+      pending.myTaken = true;
+    }
+    myReplaying.put(triggerKey, pending);
+    return pending;
+  }
+
+  /**
+   * Removes the saved changes of the trigger unless new ones were saved meanwhile.
+   */
+  private void removeFile(@NotNull String triggerKey, @NotNull PendingWrites replayed) {
+    myReplaying.remove(triggerKey, replayed);
+    myPending.compute(triggerKey, (key, existing) -> {
+      if (existing == null) {
+        try {
+          Files.deleteIfExists(fileOf(triggerKey).toPath());
+        } catch (IOException e) {
+          LOG.warnAndDebugDetails("Failed to remove replayed changes of trigger " + triggerKey + ", they will be replayed again after a restart", e);
+        }
+      }
+      return existing;
+    });
+  }
+
+  private void replayAll() {
+    for (String triggerKey : myPending.keySet()) {
+      try {
+        replay(triggerKey);
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Failed to replay unflushed changes of trigger " + triggerKey, e);
+      }
+    }
+  }
+
+  private void replay(@NotNull String triggerKey) {
+    PendingWrites pending = myPending.get(triggerKey);
+    SnsTriggerStorageSessions storageSessions = myStorageSessions;
+    if (pending == null || storageSessions == null) {
+      return;
+    }
+
+    SBuildType buildType = myProjectManager.findBuildTypeById(pending.myBuildTypeId);
+    BuildTriggerDescriptor buildTrigger = buildType == null ? null : findTrigger(buildType, pending.myTriggerId);
+    if (buildTrigger == null) {
+      LOG.info("Trigger " + triggerKey + " doesn't exist anymore, its " + pending.myValues.size() + " unflushed change(s) are dropped");
+      PendingWrites dropped = take(triggerKey);
+      if (dropped != null) {
+        removeFile(triggerKey, dropped);
+      }
+      return;
+    }
+
+    replay(buildType, buildTrigger, storageSessions.open(buildType, buildTrigger));
+  }
+
+  @Nullable
+  private static BuildTriggerDescriptor findTrigger(@NotNull SBuildType buildType, @NotNull String triggerId) {
+    for (BuildTriggerDescriptor trigger : buildType.getBuildTriggersCollection()) {
+      if (triggerId.equals(trigger.getId())) {
+        return trigger;
+      }
+    }
+    return null;
+  }
+
+  private void write(@NotNull String triggerKey, @NotNull PendingWrites pending) throws IOException {
+    Map<String, Object> content = new HashMap<>();
+    content.put("buildTypeId", pending.myBuildTypeId);
+    content.put("triggerId", pending.myTriggerId);
+    // a crash before the ongoing replay is flushed must not lose its changes
+    Map<String, String> values = new HashMap<>();
+    PendingWrites replaying = myReplaying.get(triggerKey);
+    if (replaying != null) {
+      values.putAll(replaying.snapshot());
+    }
+    values.putAll(pending.snapshot());
+    content.put("values", values);
+
+    Files.createDirectories(myDirectory.toPath());
+    File file = fileOf(triggerKey);
+    File temp = new File(myDirectory, file.getName() + ".tmp");
+    SnsJson.WRITER.writeValue(temp, content);
+    try {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void loadFiles() {
+    File[] files = myDirectory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+    if (files == null) {
+      return;
+    }
+
+    for (File file : files) {
+      try {
+        Map<String, Object> content = SnsJson.OBJECT_READER.readValue(file);
+        Object buildTypeId = content.get("buildTypeId");
+        Object triggerId = content.get("triggerId");
+        if (!(buildTypeId instanceof String) || !(triggerId instanceof String)) {
+          throw new IOException("The trigger of the changes is unknown");
+        }
+        PendingWrites pending = new PendingWrites((String) buildTypeId, (String) triggerId);
+        @SuppressWarnings("unchecked")
+        Map<String, String> values = (Map<String, String>) content.get("values");
+        if (values != null) {
+          pending.myValues.putAll(values);
+        }
+        myPending.merge(AwsSnsTriggerKeys.of(pending.myBuildTypeId, pending.myTriggerId), pending, (existing, loaded) -> {
+          loaded.myValues.putAll(existing.myValues);
+          return loaded;
+        });
+      } catch (IOException | RuntimeException e) {
+        LOG.warnAndDebugDetails("Failed to read unflushed trigger storage changes from " + file + ", they are dropped", e);
+      }
+    }
+  }
+
+  @NotNull
+  private File fileOf(@NotNull String triggerKey) {
+    return new File(myDirectory, triggerKey.replaceAll("[^A-Za-z0-9_.-]", "_") + FILE_EXTENSION);
+  }
+
+  private static class PendingWrites {
+    private final String myBuildTypeId;
+    private final String myTriggerId;
+    // null values are removals
+    private final Map<String, String> myValues = Collections.synchronizedMap(new HashMap<>());
+    // guarded by this
+    private boolean myTaken = false;
+
+    private PendingWrites(@NotNull String buildTypeId, @NotNull String triggerId) {
+      myBuildTypeId = buildTypeId;
+      myTriggerId = triggerId;
+    }
+
+    @NotNull
+    private Map<String, String> snapshot() {
+      synchronized (myValues) {
+        return new HashMap<>(myValues);
+      }
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsBuildTriggerService.TRIGGER_NAME;
+
+/**
+ * Maps SNS trigger UUIDs to the build types and trigger descriptors that own them,
+ * so the endpoint doesn't walk the project model on every request.
+ * <p>
+ * The index is built on server startup (or on the first request, if the plugin is loaded later)
+ * and is kept up to date from project, build type and template change events. Attaching or detaching a template persists
+ * the build type, so inherited triggers are re-indexed along with it. A miss is double-checked against the project model,
+ * the index only saves the walk for known triggers.
+ */
+public class SnsTriggerRoutingIndex {
+  private static final Logger LOG = Logger.getInstance(SnsTriggerRoutingIndex.class);
+
+  private final ProjectManager myProjectManager;
+  private final SecurityContextEx mySecurityContext;
+
+  // trigger UUID -> routes, UUIDs are unique only inside a build type
+  private final Map<String, List<Route>> myRoutesByUuid = new ConcurrentHashMap<>();
+  // internal build type id -> UUIDs of its triggers, used to drop outdated routes
+  private final Map<String, Set<String>> myUuidsByBuildType = new ConcurrentHashMap<>();
+  private volatile boolean myInitialized = false;
+
+  public SnsTriggerRoutingIndex(@NotNull final EventDispatcher<BuildServerListener> serverEvents,
+                                @NotNull final ProjectManager projectManager,
+                                @NotNull final SecurityContextEx securityContext) {
+    myProjectManager = projectManager;
+    mySecurityContext = securityContext;
+
+    serverEvents.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        rebuild();
+      }
+
+      @Override
+      public void buildTypeRegistered(@NotNull SBuildType buildType) {
+        index(buildType);
+      }
+
+      @Override
+      public void buildTypeUnregistered(@NotNull SBuildType buildType) {
+        remove(buildType);
+      }
+
+      @Override
+      public void buildTypePersisted(@NotNull SBuildType buildType) {
+        index(buildType);
+      }
+
+      @Override
+      public void buildTypeMoved(@NotNull SBuildType buildType, @NotNull SProject original) {
+        index(buildType);
+      }
+
+      @Override
+      public void buildTypeTemplatePersisted(@NotNull BuildTypeTemplate template) {
+        List<SBuildType> usages = mySecurityContext.runAsSystemUnchecked(template::getUsages);
+        usages.forEach(SnsTriggerRoutingIndex.this::index);
+      }
+
+      @Override
+      public void projectPersisted(@NotNull String projectId) {
+        indexProject(projectId);
+      }
+
+      @Override
+      public void projectRestored(@NotNull String projectId) {
+        indexProject(projectId);
+      }
+
+      @Override
+      public void projectCreated(@NotNull String projectId, @Nullable SUser user) {
+        indexProject(projectId);
+      }
+    });
+  }
+
+  /**
+   * @return the route for the given endpoint path parts, or null if there is no such SNS trigger
+   */
+  @Nullable
+  public Route findRoute(@NotNull String projectExternalId, @NotNull String buildTypeExternalId, @NotNull String triggerUuid) {
+    ensureInitialized();
+
+    Route route = findIndexed(projectExternalId, buildTypeExternalId, triggerUuid);
+    if (route != null) {
+      return route;
+    }
+
+    // the index may have missed a change, look the build type up the way it is done without the index
+    SBuildType buildType = mySecurityContext.runAsSystemUnchecked(() -> {
+      SProject project = myProjectManager.findProjectByExternalId(projectExternalId);
+      return project == null ? null : project.findBuildTypeByExternalId(buildTypeExternalId);
+    });
+    if (buildType == null) {
+      return null;
+    }
+
+    index(buildType);
+    route = findIndexed(projectExternalId, buildTypeExternalId, triggerUuid);
+    if (route != null) {
+      LOG.debug("Amazon SNS trigger " + triggerUuid + " of " + buildType.getExternalId() + " was missing in the routing index, re-indexed");
+    }
+    return route;
+  }
+
+  @Nullable
+  private Route findIndexed(@NotNull String projectExternalId, @NotNull String buildTypeExternalId, @NotNull String triggerUuid) {
+    List<Route> routes = myRoutesByUuid.get(triggerUuid);
+    if (routes == null) {
+      return null;
+    }
+
+    for (Route route : routes) {
+      SBuildType buildType = route.getBuildType();
+      if (buildTypeExternalId.equals(buildType.getExternalId()) && projectExternalId.equals(buildType.getProjectExternalId())) {
+        return route;
+      }
+    }
+
+    return null;
+  }
+
+  private void ensureInitialized() {
+    if (!myInitialized) {
+      synchronized (this) {
+        if (!myInitialized) {
+          rebuild();
+        }
+      }
+    }
+  }
+
+  private synchronized void rebuild() {
+    myRoutesByUuid.clear();
+    myUuidsByBuildType.clear();
+    List<SBuildType> buildTypes = mySecurityContext.runAsSystemUnchecked(myProjectManager::getAllBuildTypes);
+    buildTypes.forEach(this::index);
+    myInitialized = true;
+    LOG.debug("Amazon SNS trigger routing index is built: " + myRoutesByUuid.size() + " trigger UUID(s)");
+  }
+
+  private void indexProject(@NotNull String projectId) {
+    List<SBuildType> buildTypes = mySecurityContext.runAsSystemUnchecked(() -> {
+      SProject project = myProjectManager.findProjectById(projectId);
+      return project == null ? Collections.<SBuildType>emptyList() : project.getBuildTypes();
+    });
+    buildTypes.forEach(this::index);
+  }
+
+  private synchronized void index(@NotNull SBuildType buildType) {
+    remove(buildType);
+
+    Set<String> uuids = new HashSet<>();
+    for (BuildTriggerDescriptor trigger : buildType.getBuildTriggersCollection()) {
+      if (!TRIGGER_NAME.equals(trigger.getType())) {
+        continue;
+      }
+
+      String uuid = trigger.getProperties().get(AwsSnsTriggerConstants.TRIGGER_UUID_PROPERTY_KEY);
+      if (uuid == null || uuid.trim().isEmpty()) {
+        continue;
+      }
+
+      uuid = uuid.trim();
+      uuids.add(uuid);
+      myRoutesByUuid.merge(uuid, Collections.singletonList(new Route(buildType, trigger)), (existing, added) -> {
+        List<Route> merged = new ArrayList<>(existing);
+        merged.addAll(added);
+        return merged;
+      });
+    }
+
+    if (!uuids.isEmpty()) {
+      myUuidsByBuildType.put(buildType.getInternalId(), uuids);
+    }
+  }
+
+  private synchronized void remove(@NotNull SBuildType buildType) {
+    String buildTypeId = buildType.getInternalId();
+    Set<String> uuids = myUuidsByBuildType.remove(buildTypeId);
+    if (uuids == null) {
+      return;
+    }
+
+    for (String uuid : uuids) {
+      myRoutesByUuid.computeIfPresent(uuid, (key, routes) -> {
+        List<Route> rest = new ArrayList<>(routes.size());
+        for (Route route : routes) {
+          if (!buildTypeId.equals(route.getBuildType().getInternalId())) {
+            rest.add(route);
+          }
+        }
+        return rest.isEmpty() ? null : rest;
+      });
+    }
+  }
+
+  public static class Route {
+    private final SBuildType myBuildType;
+    private final BuildTriggerDescriptor myTrigger;
+
+    public Route(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor trigger) {
+      myBuildType = buildType;
+      myTrigger = trigger;
+    }
+
+    @NotNull
+    public SBuildType getBuildType() {
+      return myBuildType;
+    }
+
+    @NotNull
+    public BuildTriggerDescriptor getTrigger() {
+      return myTrigger;
+    }
+  }
+}
@@ -0,0 +1,325 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import jetbrains.buildServer.buildTriggers.BuildTriggerException;
+import jetbrains.buildServer.buildTriggers.PolledTriggerContext;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsTriggerKeys;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TokenBucket;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TriggerStorageSession;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Runtime state of the active SNS triggers of this server node, kept from the activation or the first polling of a trigger
+ * till its deactivation: the storage session with the decoded messages, the storage refresh schedule, the build rate limit
+ * token bucket and polling statistics.
+ * Policy objects come and go, so nothing that has to survive between polls is kept in them.
+ * <p>
+ * The storage of a trigger is reloaded when another node changed it, see {@link SnsStorageChangeStamps}.
+ * Besides that, it is reloaded at an adaptive interval: the minimal one while the trigger has pending messages,
+ * doubled with every reload that finds nothing up to the maximal one, so idle triggers almost stop reloading.
+ * <p>
+ * The endpoint uses the registry to wake a trigger up as soon as a notification is stored
+ * instead of waiting for the next trigger polling. The woken up trigger is evaluated by a small pool of background threads,
+ * the request is answered without waiting for it; wake-ups of a trigger that is already scheduled are coalesced.
+ * <p>
+ * A trigger is known after its first activation or polling on this node. Its evaluations are serialized:
+ * a wake-up that comes while the trigger is being evaluated doesn't wait, the running evaluation repeats itself instead.
+ * Triggers processed by another node are not known here, they still see the new messages on the next polling.
+ * A wake-up evaluates the trigger with the context of its last polling, so it is skipped, leaving the messages to the polling,
+ * when the build configuration is paused or this node has lost the responsibility for processing build triggers.
+ */
+public class SnsTriggerRuntimeRegistry {
+  private static final Logger LOG = Logger.getInstance(SnsTriggerRuntimeRegistry.class);
+
+  private final SnsTriggerStorageSessions myStorageSessions;
+  private final SnsStorageChangeStamps myChangeStamps;
+  private final ServerResponsibility myServerResponsibility;
+  private final Executor myWakeUpExecutor;
+  private final Map<String, TriggerRuntime> myTriggers = new ConcurrentHashMap<>();
+
+  public SnsTriggerRuntimeRegistry(@NotNull final SnsTriggerStorageSessions storageSessions,
+                                   @NotNull final SnsStorageChangeStamps changeStamps,
+                                   @NotNull final ServerResponsibility serverResponsibility,
+                                   @NotNull final EventDispatcher<BuildServerListener> serverEvents) {
+    this(storageSessions, changeStamps, serverResponsibility, createWakeUpExecutor());
+
+    serverEvents.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        ((ExecutorService) myWakeUpExecutor).shutdownNow();
+      }
+    });
+  }
+
+  SnsTriggerRuntimeRegistry(@NotNull final SnsTriggerStorageSessions storageSessions,
+                            @NotNull final SnsStorageChangeStamps changeStamps,
+                            @NotNull final ServerResponsibility serverResponsibility,
+                            @NotNull final Executor wakeUpExecutor) {
+    myStorageSessions = storageSessions;
+    myChangeStamps = changeStamps;
+    myServerResponsibility = serverResponsibility;
+    myWakeUpExecutor = wakeUpExecutor;
+  }
+
+  @NotNull
+  private static ExecutorService createWakeUpExecutor() {
+    int threads = Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.WAKE_UP_THREADS_PROPERTY,
+                                                            AwsSnsTriggerConstants.WAKE_UP_THREADS_DEFAULT));
+    AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "Amazon SNS Trigger wake-up " + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Registers the activated trigger, its storage is refreshed on the next evaluation.
+   */
+  public void attach(@NotNull PolledTriggerContext context, @NotNull SnsBuildTriggeringPolicy policy) {
+    TriggerRuntime runtime = getOrCreate(context);
+    runtime.update(context, policy);
+    runtime.resetRefresh();
+  }
+
+  /**
+   * Forgets the deactivated trigger together with its storage session.
+   */
+  public void detach(@NotNull PolledTriggerContext context) {
+    TriggerRuntime runtime = myTriggers.remove(keyOf(context));
+    myStorageSessions.remove(context);
+    myChangeStamps.forget(keyOf(context));
+    if (runtime != null && LOG.isDebugEnabled()) {
+      LOG.debug("SNS trigger " + keyOf(context) + " is deactivated after " + runtime.getPolls() + " poll(s) and " +
+                runtime.getEvaluations() + " evaluation(s), " + runtime.getIdleEvaluations() + " of them skipped as idle");
+    }
+  }
+
+  /**
+   * Evaluates the trigger on behalf of the trigger polling, waits for a running wake-up evaluation if needed.
+   */
+  public void poll(@NotNull PolledTriggerContext context, @NotNull SnsBuildTriggeringPolicy policy) throws BuildTriggerException {
+    TriggerRuntime runtime = getOrCreate(context);
+    runtime.update(context, policy);
+    runtime.myPolls.incrementAndGet();
+    runtime.evaluate(true);
+  }
+
+  /**
+   * Asks the trigger to check its messages right away, the check runs in the background.
+   *
+   * @return false if the trigger isn't active on this node, its build configuration is paused, this node doesn't process
+   * build triggers anymore, wake-ups are disabled or the server is stopping; the next polling will pick the messages up
+   */
+  public boolean wakeUp(@NotNull String triggerKey) {
+    if (!TeamCityProperties.getBooleanOrTrue(AwsSnsTriggerConstants.WAKE_UP_ENABLED_PROPERTY)) {
+      return false;
+    }
+
+    TriggerRuntime runtime = myTriggers.get(triggerKey);
+    PolledTriggerContext context = runtime == null ? null : runtime.myContext;
+    if (context == null) {
+      return false;
+    }
+
+    if (!myServerResponsibility.canProcessBuildTriggers()) {
+      LOG.debug("Not waking SNS trigger " + triggerKey + " up: this node doesn't process build triggers");
+      return false;
+    }
+
+    SBuildType buildType = context.getBuildType();
+    if (buildType.isPaused()) {
+      LOG.debug("Not waking SNS trigger " + triggerKey + " up: build configuration " + buildType.getExternalId() + " is paused");
+      return false;
+    }
+
+    if (!runtime.myWakeUpScheduled.compareAndSet(false, true)) {
+      // the scheduled evaluation hasn't started yet, it will see the new messages
+      return true;
+    }
+
+    try {
+      myWakeUpExecutor.execute(() -> {
+        // reset before the evaluation: a message stored after this point schedules one more
+        runtime.myWakeUpScheduled.set(false);
+        try {
+          runtime.evaluate(false);
+        } catch (Exception e) {
+          LOG.warnAndDebugDetails("Failed to check SNS messages of trigger " + triggerKey + ", the next polling will retry", e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      runtime.myWakeUpScheduled.set(false);
+      return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  private TriggerRuntime getOrCreate(@NotNull PolledTriggerContext context) {
+    return myTriggers.computeIfAbsent(keyOf(context), key -> new TriggerRuntime(key, myStorageSessions.getSession(context), myChangeStamps));
+  }
+
+  @NotNull
+  private static String keyOf(@NotNull PolledTriggerContext context) {
+    return AwsSnsTriggerKeys.of(context.getBuildType(), context.getTriggerDescriptor());
+  }
+
+  /**
+   * Runtime state of a single trigger.
+   */
+  static class TriggerRuntime {
+    private final String myKey;
+    private final TriggerStorageSession mySession;
+    private final SnsStorageChangeStamps myChangeStamps;
+    private final ReentrantLock myLock = new ReentrantLock();
+    private final AtomicBoolean myRequested = new AtomicBoolean(false);
+    private final AtomicBoolean myWakeUpScheduled = new AtomicBoolean(false);
+    private volatile PolledTriggerContext myContext;
+    private volatile SnsBuildTriggeringPolicy myPolicy;
+
+    private final AtomicLong myPolls = new AtomicLong();
+    private final AtomicLong myIdleEvaluations = new AtomicLong();
+    private final AtomicLong myEvaluations = new AtomicLong();
+
+    // refresh schedule, used only by the serialized evaluations
+    private long myLastRefresh = 0;
+    private long myRefreshIntervalMs = getMinRefreshIntervalMs();
+    private long mySeenStamp = 0;
+    // restored from the trigger storage on the first build of this runtime, used only by the serialized evaluations
+    private TokenBucket myTokenBucket;
+
+    private TriggerRuntime(@NotNull String key, @NotNull TriggerStorageSession session, @NotNull SnsStorageChangeStamps changeStamps) {
+      myKey = key;
+      mySession = session;
+      myChangeStamps = changeStamps;
+    }
+
+    @NotNull
+    TriggerStorageSession getSession() {
+      return mySession;
+    }
+
+    /**
+     * Reloads the trigger storage if another node changed it or the refresh interval has passed since the last reload.
+     *
+     * @return true if the storage was reloaded
+     */
+    boolean refreshStorageIfDue(@NotNull PolledTriggerContext context) {
+      long now = System.currentTimeMillis();
+      long stamp = myChangeStamps.getStamp(myKey);
+      boolean changedElsewhere = stamp != 0 && stamp != mySeenStamp && !myChangeStamps.isOwn(myKey, stamp);
+      if (!changedElsewhere && now - myLastRefresh < myRefreshIntervalMs) {
+        return false;
+      }
+
+      mySession.refresh(context.getCustomDataStorage());
+      myLastRefresh = now;
+      // a recent stamp can be touched again without a visible change of its modification time, it is checked until it settles
+      mySeenStamp = now - stamp > SnsStorageChangeStamps.PRECISION_MS ? stamp : -1;
+      return true;
+    }
+
+    /**
+     * The trigger has pending messages: more are likely to come, the storage is reloaded often.
+     */
+    void storageActive() {
+      myRefreshIntervalMs = getMinRefreshIntervalMs();
+    }
+
+    /**
+     * A reload found no pending messages: the storage is reloaded less often.
+     */
+    void storageIdle() {
+      long maxMs = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(AwsSnsTriggerConstants.STORAGE_REFRESH_MAX_INTERVAL_SECONDS_PROPERTY,
+                                                                           AwsSnsTriggerConstants.STORAGE_REFRESH_MAX_INTERVAL_SECONDS_DEFAULT));
+      myRefreshIntervalMs = Math.max(getMinRefreshIntervalMs(), Math.min(maxMs, myRefreshIntervalMs * 2));
+    }
+
+    long getRefreshIntervalMs() {
+      return myRefreshIntervalMs;
+    }
+
+    private void resetRefresh() {
+      myLastRefresh = 0;
+      myRefreshIntervalMs = getMinRefreshIntervalMs();
+    }
+
+    private static long getMinRefreshIntervalMs() {
+      return TimeUnit.SECONDS.toMillis(Math.max(1, TeamCityProperties.getInteger(AwsSnsTriggerConstants.STORAGE_REFRESH_MIN_INTERVAL_SECONDS_PROPERTY,
+                                                                                 AwsSnsTriggerConstants.STORAGE_REFRESH_MIN_INTERVAL_SECONDS_DEFAULT)));
+    }
+
+    @Nullable
+    TokenBucket getTokenBucket() {
+      return myTokenBucket;
+    }
+
+    void setTokenBucket(@Nullable TokenBucket tokenBucket) {
+      myTokenBucket = tokenBucket;
+    }
+
+    void idleEvaluation() {
+      myIdleEvaluations.incrementAndGet();
+    }
+
+    long getPolls() {
+      return myPolls.get();
+    }
+
+    long getIdleEvaluations() {
+      return myIdleEvaluations.get();
+    }
+
+    long getEvaluations() {
+      return myEvaluations.get();
+    }
+
+    private void update(@NotNull PolledTriggerContext context, @NotNull SnsBuildTriggeringPolicy policy) {
+      myContext = context;
+      myPolicy = policy;
+    }
+
+    /**
+     * @param wait whether to wait for a running evaluation; otherwise the running one is asked to repeat
+     */
+    private void evaluate(boolean wait) throws BuildTriggerException {
+      myRequested.set(true);
+      if (wait) {
+        myLock.lock();
+      } else if (!myLock.tryLock()) {
+        return;
+      }
+
+      while (true) {
+        try {
+          while (myRequested.getAndSet(false)) {
+            myEvaluations.incrementAndGet();
+            myPolicy.evaluate(myContext, this);
+          }
+        } finally {
+          myLock.unlock();
+        }
+
+        // a request could come between the last check and the unlock, its sender didn't get the lock
+        if (!myRequested.get() || !myLock.tryLock()) {
+          return;
+        }
+      }
+    }
+  }
+}
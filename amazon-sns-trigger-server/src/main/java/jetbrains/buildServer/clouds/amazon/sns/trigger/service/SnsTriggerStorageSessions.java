@@ -0,0 +1,68 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.buildTriggers.PolledTriggerContext;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsTriggerKeys;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TriggerStorageSession;
+import jetbrains.buildServer.serverSide.SBuildType;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.serverSide.impl.PolledTriggerContextImpl.getCustomDataStorage;
+
+/**
+ * Storage sessions of the SNS triggers, one per trigger for the lifetime of the trigger on this node.
+ * <p>
+ * The SNS endpoint and the trigger policy open the trigger storage through the same session,
+ * so messages stored by the endpoint are decoded once and changes that fail to flush go to the {@link SnsStorageFlushFallback}.
+ * Other nodes are notified about every flushed change through the {@link SnsStorageChangeStamps}.
+ */
+public class SnsTriggerStorageSessions {
+  private final SnsStorageFlushFallback myFlushFallback;
+  private final SnsStorageChangeStamps myChangeStamps;
+  // trigger key -> session
+  private final Map<String, TriggerStorageSession> mySessions = new ConcurrentHashMap<>();
+
+  public SnsTriggerStorageSessions(@NotNull final SnsStorageFlushFallback flushFallback,
+                                   @NotNull final SnsStorageChangeStamps changeStamps) {
+    myFlushFallback = flushFallback;
+    myChangeStamps = changeStamps;
+    flushFallback.setStorageSessions(this);
+  }
+
+  @NotNull
+  public TriggerStorageSession getSession(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger) {
+    final String buildTypeId = buildType.getInternalId();
+    final String triggerId = buildTrigger.getId();
+    return mySessions.computeIfAbsent(AwsSnsTriggerKeys.of(buildTypeId, triggerId),
+                                      key -> new TriggerStorageSession(changes -> myFlushFallback.save(buildTypeId, triggerId, changes),
+                                                                       () -> myChangeStamps.touch(key)));
+  }
+
+  @NotNull
+  public TriggerStorageSession getSession(@NotNull PolledTriggerContext context) {
+    return getSession(context.getBuildType(), context.getTriggerDescriptor());
+  }
+
+  /**
+   * Opens the storage of the trigger for a single unit of work.
+   */
+  @NotNull
+  public CustomDataStorageWrapper open(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor buildTrigger) {
+    return getSession(buildType, buildTrigger).open(getCustomDataStorage(buildType, buildTrigger));
+  }
+
+  @NotNull
+  public CustomDataStorageWrapper open(@NotNull PolledTriggerContext context) {
+    return getSession(context).open(context.getCustomDataStorage());
+  }
+
+  /**
+   * Drops the session of a trigger that isn't active anymore, the decoded state is released.
+   */
+  public void remove(@NotNull PolledTriggerContext context) {
+    mySessions.remove(AwsSnsTriggerKeys.of(context.getBuildType(), context.getTriggerDescriptor()));
+  }
+}
@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
 
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsMessageType;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException;
@@ -17,6 +18,7 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.time.Instant;
 import java.util.Map;
+import java.util.function.LongConsumer;
 
 public class AwsSnsMessageDetailsHelper {
 
@@ -36,15 +38,41 @@ public class AwsSnsMessageDetailsHelper {
   }
 
   public static boolean isValidSignature(@NotNull Map<String, Object> payload, @NotNull HttpApi myServerApi) {
-    String messageType = (String) payload.get(AwsSnsTriggerConstants.MESSAGE_TYPE_KEY);
-    return new AwsSnsSignatureVerification(SnsMessageType.asMessageType(messageType), payload, myServerApi).isValid();
+    return isValidSignature(payload, myServerApi, nanos -> {});
+  }
+
+  /**
+   * @param certificateFetchNanos receives the time spent downloading the signing certificate, 0 if it was cached
+   */
+  public static boolean isValidSignature(@NotNull Map<String, Object> payload,
+                                         @NotNull HttpApi myServerApi,
+                                         @NotNull LongConsumer certificateFetchNanos) {
+    return isValidSignature(SnsEnvelope.fromMap(payload), myServerApi, certificateFetchNanos);
+  }
+
+  /**
+   * @param certificateFetchNanos receives the time spent downloading the signing certificate, 0 if it was cached
+   */
+  public static boolean isValidSignature(@NotNull SnsEnvelope envelope,
+                                         @NotNull HttpApi myServerApi,
+                                         @NotNull LongConsumer certificateFetchNanos) {
+    AwsSnsSignatureVerification verification = new AwsSnsSignatureVerification(envelope, myServerApi);
+    boolean valid = verification.isValid();
+    certificateFetchNanos.accept(verification.getCertificateFetchNanos());
+    return valid;
   }
 
   @Nullable
   public static String subscribe(@NotNull Map<String, Object> payload,
                                  @NotNull HttpApi serverApi) throws AwsSnsHttpEndpointException {
+    return subscribe(SnsEnvelope.fromMap(payload), serverApi);
+  }
+
+  @Nullable
+  public static String subscribe(@NotNull SnsEnvelope envelope,
+                                 @NotNull HttpApi serverApi) throws AwsSnsHttpEndpointException {
     try {
-      String subscribeUrl = (String) payload.get(AwsSnsTriggerConstants.SUBSCRIBE_URL_KEY);
+      String subscribeUrl = envelope.getSubscribeUrl();
       HttpApi.Response response = serverApi.get(subscribeUrl);
       String body = response.getBody();
 
@@ -60,25 +88,26 @@ public class AwsSnsMessageDetailsHelper {
 
   @NotNull
   public static SnsNotificationDto convertToNotificationDto(HttpServletRequest request, @NotNull Map<String, Object> payload) {
+    return convertToNotificationDto(request, SnsEnvelope.fromMap(payload));
+  }
+
+  @NotNull
+  public static SnsNotificationDto convertToNotificationDto(HttpServletRequest request, @NotNull SnsEnvelope envelope) {
     String subscriptionArn = request.getHeader(AwsSnsTriggerConstants.AWS_SUBSCRIPTION_ARN_HEADER);
     String messageId = request.getHeader(AwsSnsTriggerConstants.AWS_MESSAGE_ID_HEADER);
     String topic = request.getHeader(AwsSnsTriggerConstants.AWS_TOPIC_ARN_HEADER);
-    String subject = (String) payload.get(AwsSnsTriggerConstants.NOTIFICATION_SUBJECT_KEY);
-    String message = (String) payload.get(AwsSnsTriggerConstants.NOTIFICATION_MESSAGE_KEY);
-    Instant timestamp = Instant.parse((String) payload.get(AwsSnsTriggerConstants.NOTIFICATION_TIMESTAMP_KEY));
-    String unsubscribeUrl = (String) payload.get(AwsSnsTriggerConstants.UNSUBSCRIBE_URL_KEY);
-    Map<String, Object> attributes = (Map<String, Object>) payload.get(AwsSnsTriggerConstants.NOTIFICATION_ATTRIBUTES_KEY);
+    Instant timestamp = Instant.parse(envelope.getTimestamp());
 
     return new SnsNotificationDto(
             messageId,
             subscriptionArn,
             topic,
-            subject,
-            message,
+            envelope.getSubject(),
+            envelope.getMessage(),
             timestamp,
-            unsubscribeUrl,
-            attributes
+            envelope.getUnsubscribeUrl(),
+            envelope.getAttributes()
     );
   }
 
-}
\ No newline at end of file
+}
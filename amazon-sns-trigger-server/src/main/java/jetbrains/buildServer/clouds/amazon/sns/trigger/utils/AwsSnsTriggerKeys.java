@@ -0,0 +1,25 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import org.jetbrains.annotations.NotNull;
+
+public final class AwsSnsTriggerKeys {
+
+  private AwsSnsTriggerKeys() {
+  }
+
+  /**
+   * Trigger ids are unique only inside a build type, so the internal build type id is part of the key.
+   * Internal ids survive renames of the build type, unlike the external ones used in the endpoint URL.
+   */
+  @NotNull
+  public static String of(@NotNull SBuildType buildType, @NotNull BuildTriggerDescriptor trigger) {
+    return of(buildType.getInternalId(), trigger.getId());
+  }
+
+  @NotNull
+  public static String of(@NotNull String buildTypeInternalId, @NotNull String triggerId) {
+    return buildTypeInternalId + "_" + triggerId;
+  }
+}
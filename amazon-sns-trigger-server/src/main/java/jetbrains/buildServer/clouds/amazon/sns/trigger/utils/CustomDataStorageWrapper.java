@@ -1,46 +1,85 @@
 package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
 import com.intellij.openapi.diagnostic.Logger;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
 import jetbrains.buildServer.serverSide.CustomDataStorage;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * Writes to a {@link CustomDataStorage} with a merge of concurrent changes.
+ * <p>
+ * A flush that fails because the storage was changed concurrently is retried after the stored values are merged with the local changes:
+ * keys written through this wrapper keep the written values, all other keys take the stored ones.
+ * Retries back off exponentially with full jitter, so writers that collided don't collide again on the next attempt.
+ * When the retry budget is exhausted, the changes not flushed yet are handed to the {@link FlushFailureListener}, if there is one.
+ */
 public class CustomDataStorageWrapper {
   private static final Logger LOG = Logger.getInstance(CustomDataStorageWrapper.class);
-  // copy from jetbrains.buildServer.clouds.amazon.sns.trigger.service.AwsSnsTriggeringContext
-  private final ObjectMapper myObjectMapper = new ObjectMapper()
-    .registerModule(new ParameterNamesModule())
-    .registerModule(new Jdk8Module())
-    .registerModule(new JavaTimeModule());
-
   @NotNull
   private final CustomDataStorage myCustomDataStorage;
+  @Nullable
+  private final TriggerStorageSession mySession;
+  // legacy messages map as it was when the wrapper was created, decoded only if it has to be merged
+  @Nullable
+  private final String myInitialMessages;
+
+  // values written through this wrapper, they win over the stored ones on conflicts
   @NotNull
-  private final Map<String, SnsNotificationDto> myInitialMessagesState;
+  private final ConcurrentHashMap<String, Optional<String>> myWrittenValues = new ConcurrentHashMap<>();
 
+  private final AtomicInteger myFlushRetries = new AtomicInteger();
+  private final AtomicInteger myFlushConflicts = new AtomicInteger();
+  private final AtomicInteger myFlushFailures = new AtomicInteger();
+
+  @Nullable
+  private final FlushFailureListener myFlushFailureListener;
+  // changes written through this wrapper since the last successful flush, null values are removals
   @NotNull
-  private final ConcurrentHashMap<String, Optional<String>> myStateCopy = new ConcurrentHashMap<>();
+  private final Map<String, String> myUnflushedChanges = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  // nesting level of the open batches and whether a change is waiting for their commit
+  private int myBatchDepth = 0;
+  private boolean myBatchChanged = false;
+  // run when the outermost batch is committed
+  private final List<Runnable> myAfterFlushActions = new ArrayList<>();
 
   public CustomDataStorageWrapper(@NotNull CustomDataStorage customDataStorage) {
+    this(customDataStorage, null);
+  }
+
+  public CustomDataStorageWrapper(@NotNull CustomDataStorage customDataStorage, @Nullable FlushFailureListener flushFailureListener) {
+    this(customDataStorage, flushFailureListener, null);
+  }
+
+  CustomDataStorageWrapper(@NotNull CustomDataStorage customDataStorage,
+                           @Nullable FlushFailureListener flushFailureListener,
+                           @Nullable TriggerStorageSession session) {
     myCustomDataStorage = customDataStorage;
-    myStateCopy.putAll(transformToStringOptionalMap(getValuesSafe()));
-    myInitialMessagesState = getInitialMessagesState();
+    myFlushFailureListener = flushFailureListener;
+    mySession = session;
+    myInitialMessages = getValuesSafe().get(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES);
   }
 
+  /**
+   * @return the session this wrapper was opened in, if any
+   */
+  @Nullable
+  public TriggerStorageSession getSession() {
+    return mySession;
+  }
+
+  @NotNull
   private Map<String, SnsNotificationDto> getInitialMessagesState() {
     try {
-      String messagesMapAsString = myStateCopy.get(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES).orElse(null);
-      return safeGetMessagesMap(messagesMapAsString);
+      return safeGetMessagesMap(myInitialMessages);
     } catch (Exception e) {
       LOG.warnAndDebugDetails("Failed to parse initial messages state", e);
     }
@@ -48,10 +87,102 @@ public class CustomDataStorageWrapper {
     return Collections.emptyMap();
   }
 
+  /**
+   * Writes the value, a value equal to the stored one is not written and doesn't cause a flush.
+   */
   public void putValue(@NotNull String key, @Nullable String value) {
-    myStateCopy.put(key, Optional.ofNullable(value));
+    if (putValueNoFlush(key, value)) {
+      flushChanges();
+    }
+  }
+
+  /**
+   * Applies several changes with a single flush, null values remove keys.
+   * Values equal to the stored ones are skipped, nothing is flushed if no value differs.
+   */
+  public void updateValues(@NotNull Map<String, String> values) {
+    boolean changed = false;
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      changed |= putValueNoFlush(entry.getKey(), entry.getValue());
+    }
+
+    if (changed) {
+      flushChanges();
+    }
+  }
+
+  /**
+   * Starts a batch: changes made with {@link #putValue} and {@link #updateValues} until the matching {@link #commitBatch()}
+   * are flushed once, by the commit. Batches may be nested, the changes are flushed when the outermost one is committed.
+   * <pre>
+   * cds.startBatch();
+   * try {
+   *   ...
+   * } finally {
+   *   cds.commitBatch();
+   * }
+   * </pre>
+   * A batch is bound to the wrapper, not to a thread, so a wrapper with an open batch must not be shared.
+   */
+  public void startBatch() {
+    myBatchDepth++;
+  }
+
+  public void commitBatch() {
+    if (myBatchDepth == 0) {
+      throw new IllegalStateException("No batch was started");
+    }
+
+    if (--myBatchDepth > 0) {
+      return;
+    }
+
+    if (myBatchChanged) {
+      myBatchChanged = false;
+      flush();
+    }
+
+    List<Runnable> actions = new ArrayList<>(myAfterFlushActions);
+    myAfterFlushActions.clear();
+    actions.forEach(Runnable::run);
+  }
+
+  /**
+   * Runs the action once the changes written so far are flushed or handed over to the {@link FlushFailureListener}:
+   * right away outside of a batch, when the outermost batch is committed otherwise.
+   */
+  public void afterFlush(@NotNull Runnable action) {
+    if (myBatchDepth > 0) {
+      myAfterFlushActions.add(action);
+    } else {
+      action.run();
+    }
+  }
+
+  private void flushChanges() {
+    if (myBatchDepth > 0) {
+      myBatchChanged = true;
+    } else {
+      flush();
+    }
+  }
+
+  /**
+   * @return false if the value is the stored one and nothing was written
+   */
+  private boolean putValueNoFlush(@NotNull String key, @Nullable String value) {
+    String storedValue = myCustomDataStorage.getValue(key);
+    if (Objects.equals(storedValue, value)) {
+      return false;
+    }
+
+    myWrittenValues.put(key, Optional.ofNullable(value));
+    myUnflushedChanges.put(key, value);
     myCustomDataStorage.putValue(key, value);
-    flush();
+    if (mySession != null && key.startsWith(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGE_KEY_PREFIX)) {
+      mySession.messageChanged(storedValue, value);
+    }
+    return true;
   }
 
   public @Nullable String getValue(@NotNull String key) {
@@ -62,6 +193,27 @@ public class CustomDataStorageWrapper {
     safeFlushWithLogging();
   }
 
+  /**
+   * @return number of flushes of this wrapper retried because the storage was changed concurrently
+   */
+  public int getFlushRetries() {
+    return myFlushRetries.get();
+  }
+
+  /**
+   * @return number of flushes of this wrapper that failed at least once because the storage was changed concurrently
+   */
+  public int getFlushConflicts() {
+    return myFlushConflicts.get();
+  }
+
+  /**
+   * @return number of flushes of this wrapper that failed after all retries
+   */
+  public int getFlushFailures() {
+    return myFlushFailures.get();
+  }
+
   public @Nullable Map<String, String> getValues() {
     return myCustomDataStorage.getValues();
   }
@@ -76,31 +228,41 @@ public class CustomDataStorageWrapper {
 
   // with putValues data will be overwritten
   public void putValues(@NotNull Map<String, String> values) {
-    myStateCopy.putAll(transformToStringOptionalMap(values));
+    values.forEach((key, value) -> myWrittenValues.put(key, Optional.ofNullable(value)));
+    myUnflushedChanges.putAll(values);
     myCustomDataStorage.putValues(values);
-    flush();
-  }
-
-  @NotNull
-  private static Map<String, Optional<String>> transformToStringOptionalMap(@NotNull Map<String, String> values) {
-    return values.entrySet().stream()
-                 .collect(
-                   HashMap::new,
-                   (map, entry) -> map.put(entry.getKey(), Optional.ofNullable(entry.getValue())),
-                   HashMap::putAll
-                 );
+    if (mySession != null) {
+      mySession.forgetStoredMessages();
+    }
+    flushChanges();
   }
 
   private void safeFlushWithLogging() {
-    if (!safeFlush()) {
-      LOG.error("Failed to flush session storage after 10 retries. Session data may be lost.");
-    }
+    int maxRetries = Math.max(0, TeamCityProperties.getInteger(AwsSnsTriggerConstants.STORAGE_FLUSH_MAX_RETRIES_PROPERTY,
+                                                               AwsSnsTriggerConstants.STORAGE_FLUSH_MAX_RETRIES_DEFAULT));
+    if (safeFlush(maxRetries)) {
+      myUnflushedChanges.clear();
+      if (mySession != null) {
+        mySession.flushed();
+      }
+    } else {
+      myFlushFailures.incrementAndGet();
+      Map<String, String> unflushed;
+      synchronized (myUnflushedChanges) {
+        unflushed = new HashMap<>(myUnflushedChanges);
+        myUnflushedChanges.clear();
+      }
 
-    // in any case, we need to update our state copy with the latest values from store
-    myStateCopy.putAll(transformToStringOptionalMap(getValuesSafe()));
+      if (myFlushFailureListener != null && !unflushed.isEmpty()) {
+        LOG.warn("Failed to flush session storage after " + maxRetries + " retries, " + unflushed.size() + " change(s) are handed over to the fallback");
+        myFlushFailureListener.flushFailed(unflushed);
+      } else {
+        LOG.error("Failed to flush session storage after " + maxRetries + " retries. Session data may be lost.");
+      }
+    }
   }
 
-  private boolean safeFlush() {
+  private boolean safeFlush(int maxRetries) {
     int iteration = 0;
 
     do {
@@ -108,11 +270,15 @@ public class CustomDataStorageWrapper {
         myCustomDataStorage.flush(CustomDataStorage.ConflictResolution.FAIL);
         return true;
       } catch (Throwable e) {
-        LOG.debug("Failed to flush session storage: ${e.message}", e);
+        LOG.debug("Failed to flush session storage: " + e.getMessage(), e);
 
-        if (iteration++ >= 10) {
+        if (iteration == 0) {
+          myFlushConflicts.incrementAndGet();
+        }
+        if (iteration++ >= maxRetries || !backOff(iteration)) {
           return false;
         }
+        myFlushRetries.incrementAndGet();
 
         // Refresh storage to get latest values
         myCustomDataStorage.refresh();
@@ -121,7 +287,8 @@ public class CustomDataStorageWrapper {
         // Create a merged map with conflict resolution
         Map<String, String> mergedValues = new HashMap<>(storageValues);
 
-        for (Map.Entry<String, Optional<String>> entry : myStateCopy.entrySet()) {
+        // keys we've only seen keep whatever is stored now, it is newer, e.g. a message was consumed by the trigger
+        for (Map.Entry<String, Optional<String>> entry : myWrittenValues.entrySet()) {
           String key = entry.getKey();
           String localValue = entry.getValue().orElse(null);
           String storageValue = storageValues.get(key);
@@ -138,22 +305,50 @@ public class CustomDataStorageWrapper {
 
         // Update storage with merged values
         myCustomDataStorage.putValues(mergedValues);
+        if (mySession != null) {
+          mySession.forgetStoredMessages();
+        }
       }
     } while (true);
   }
 
+  /**
+   * Sleeps a random time up to an exponentially growing limit before the given retry.
+   *
+   * @return false if the thread was interrupted and the flush shouldn't be retried
+   */
+  private static boolean backOff(int retry) {
+    long baseMs = TeamCityProperties.getLong(AwsSnsTriggerConstants.STORAGE_FLUSH_BACKOFF_BASE_MS_PROPERTY,
+                                             AwsSnsTriggerConstants.STORAGE_FLUSH_BACKOFF_BASE_MS_DEFAULT);
+    long maxMs = TeamCityProperties.getLong(AwsSnsTriggerConstants.STORAGE_FLUSH_BACKOFF_MAX_MS_PROPERTY,
+                                            AwsSnsTriggerConstants.STORAGE_FLUSH_BACKOFF_MAX_MS_DEFAULT);
+    long limit = Math.min(maxMs, baseMs << Math.min(retry - 1, 20));
+    if (limit <= 0) {
+      return true;
+    }
+
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
   private @Nullable String resolveConflict(@NotNull String key, @Nullable String localValue, @Nullable String storageValue) {
     LOG.warn("Conflict detected for key " + key + ": localValue=" + localValue + ", storageValue=" + storageValue);
 
     if (AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES.equals(key)) {
       try {
         Map<String, SnsNotificationDto> localMessages = safeGetMessagesMap(localValue);
+        Map<String, SnsNotificationDto> initialMessages = getInitialMessagesState();
         // Calculate added keys: keys present in currentState but not in InitialMessagesState
         Set<String> addedKeys = new HashSet<>(localMessages.keySet());
-        addedKeys.removeAll(myInitialMessagesState.keySet());
+        addedKeys.removeAll(initialMessages.keySet());
 
         // Calculate deleted keys: keys present in InitialMessagesState but not in currentState
-        Set<String> deletedKeys = new HashSet<>(myInitialMessagesState.keySet());
+        Set<String> deletedKeys = new HashSet<>(initialMessages.keySet());
         deletedKeys.removeAll(localMessages.keySet());
 
         // Merge messages
@@ -165,7 +360,7 @@ public class CustomDataStorageWrapper {
           return null;
         }
 
-        return myObjectMapper.writeValueAsString(mergedMessages);
+        return SnsJson.MESSAGE_MAP_WRITER.writeValueAsString(mergedMessages);
       } catch (Exception e) {
         LOG.warnAndDebugDetails("Failed to merge messages", e);
       }
@@ -183,7 +378,17 @@ public class CustomDataStorageWrapper {
   }
 
   private @NotNull Map<String, SnsNotificationDto> getMessagesMap(@NotNull String localValue) throws JsonProcessingException {
-    return myObjectMapper.readValue(localValue, new TypeReference<HashMap<String, SnsNotificationDto>>() {
-    });
+    return SnsJson.MESSAGE_MAP_READER.readValue(localValue);
+  }
+
+  /**
+   * Receives the changes that couldn't be flushed, so they aren't lost.
+   */
+  @FunctionalInterface
+  public interface FlushFailureListener {
+    /**
+     * @param changes changed keys with their values, null values are removals
+     */
+    void flushFailed(@NotNull Map<String, String> changes);
   }
 }
@@ -0,0 +1,247 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Time-bounded set of recently seen SNS MessageIds.
+ * <ul>
+ *   <li>the most recent ids are kept as is, lookups of them are exact;</li>
+ *   <li>all ids are also added to a Bloom filter generation. A generation is closed when it is full
+ *   or covers a slice of the window, it is dropped once its newest id is older than the window.</li>
+ * </ul>
+ * A Bloom filter never misses an added id, but may report an id that was never added.
+ * The per-generation false positive rate is kept low, so a new message is taken for a redelivery
+ * with a negligible probability, while an id costs a few bytes.
+ * <p>
+ * When there are more generations than allowed, the oldest ones are dropped before they expire,
+ * so a burst of messages shortens the window instead of growing the memory.
+ * <p>
+ * Not thread-safe.
+ */
+public class MessageIdWindow {
+  private static final int FORMAT_VERSION = 1;
+  // generations covering a part of the window expire gradually
+  private static final int TIME_SLICES = 8;
+  private static final double LN2 = Math.log(2);
+
+  private final long myWindowMs;
+  private final int myGenerationCapacity;
+  private final int myMaxGenerations;
+  private final int myRecentCapacity;
+  private final double myFalsePositiveRate;
+
+  // id -> time it was seen, ordered by time
+  private final LinkedHashMap<String, Long> myRecent = new LinkedHashMap<>();
+  // oldest first
+  private final ArrayDeque<Generation> myGenerations = new ArrayDeque<>();
+
+  /**
+   * @param maxIds             number of ids the window holds before the oldest ones are dropped early
+   * @param generationCapacity number of ids in a single Bloom filter generation
+   * @param recentCapacity     number of the most recent ids kept exactly
+   * @param falsePositiveRate  false positive rate of a single generation
+   */
+  public MessageIdWindow(long windowMs, int maxIds, int generationCapacity, int recentCapacity, double falsePositiveRate) {
+    myWindowMs = windowMs;
+    myGenerationCapacity = Math.max(1, generationCapacity);
+    myMaxGenerations = Math.max(1, (maxIds + myGenerationCapacity - 1) / myGenerationCapacity);
+    myRecentCapacity = Math.max(1, recentCapacity);
+    myFalsePositiveRate = falsePositiveRate;
+  }
+
+  public boolean mightContain(@NotNull String id, long now) {
+    expire(now);
+
+    if (myRecent.containsKey(id)) {
+      return true;
+    }
+
+    long h1 = hash(id, 0x9E3779B97F4A7C15L);
+    long h2 = hash(id, 0xC2B2AE3D27D4EB4FL);
+    for (Generation generation : myGenerations) {
+      if (generation.mightContain(h1, h2)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void add(@NotNull String id, long now) {
+    expire(now);
+
+    myRecent.remove(id);
+    myRecent.put(id, now);
+    if (myRecent.size() > myRecentCapacity) {
+      Iterator<String> eldest = myRecent.keySet().iterator();
+      eldest.next();
+      eldest.remove();
+    }
+
+    Generation current = myGenerations.peekLast();
+    if (current == null || current.myCount >= myGenerationCapacity || now - current.myCreatedAt >= myWindowMs / TIME_SLICES) {
+      current = new Generation(myGenerationCapacity, myFalsePositiveRate, now);
+      myGenerations.addLast(current);
+      while (myGenerations.size() > myMaxGenerations) {
+        myGenerations.removeFirst();
+      }
+    }
+    current.add(hash(id, 0x9E3779B97F4A7C15L), hash(id, 0xC2B2AE3D27D4EB4FL), now);
+  }
+
+  public boolean isEmpty(long now) {
+    expire(now);
+    return myRecent.isEmpty() && myGenerations.isEmpty();
+  }
+
+  /**
+   * @return approximate number of ids in the window, ids seen several times are counted several times
+   */
+  public long size() {
+    long result = 0;
+    for (Generation generation : myGenerations) {
+      result += generation.myCount;
+    }
+    return result;
+  }
+
+  public void writeTo(@NotNull DataOutput out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+
+    out.writeInt(myRecent.size());
+    for (Map.Entry<String, Long> entry : myRecent.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeLong(entry.getValue());
+    }
+
+    out.writeInt(myGenerations.size());
+    for (Generation generation : myGenerations) {
+      out.writeLong(generation.myCreatedAt);
+      out.writeLong(generation.myLastAddedAt);
+      out.writeInt(generation.myCount);
+      out.writeInt(generation.myHashes);
+      out.writeInt(generation.myBits.length);
+      for (long word : generation.myBits) {
+        out.writeLong(word);
+      }
+    }
+  }
+
+  /**
+   * Replaces the content of this window with the one written by {@link #writeTo}. Expired ids are dropped on the next access.
+   */
+  public void readFrom(@NotNull DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported message id window format " + version);
+    }
+
+    myRecent.clear();
+    myGenerations.clear();
+
+    int recent = in.readInt();
+    for (int i = 0; i < recent; i++) {
+      String id = in.readUTF();
+      myRecent.put(id, in.readLong());
+    }
+
+    int generations = in.readInt();
+    for (int i = 0; i < generations; i++) {
+      long createdAt = in.readLong();
+      long lastAddedAt = in.readLong();
+      int count = in.readInt();
+      int hashes = in.readInt();
+      int words = in.readInt();
+      if (hashes <= 0 || words <= 0) {
+        throw new IOException("Corrupted message id window");
+      }
+      long[] bits = new long[words];
+      for (int w = 0; w < words; w++) {
+        bits[w] = in.readLong();
+      }
+      myGenerations.addLast(new Generation(bits, hashes, count, createdAt, lastAddedAt));
+    }
+
+    while (myGenerations.size() > myMaxGenerations) {
+      myGenerations.removeFirst();
+    }
+  }
+
+  private void expire(long now) {
+    long threshold = now - myWindowMs;
+
+    Iterator<Long> recent = myRecent.values().iterator();
+    while (recent.hasNext() && recent.next() <= threshold) {
+      recent.remove();
+    }
+
+    while (!myGenerations.isEmpty() && myGenerations.peekFirst().myLastAddedAt <= threshold) {
+      myGenerations.removeFirst();
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a over the UTF-16 chars, finished with the MurmurHash3 mixer for a uniform distribution of all bits.
+   */
+  private static long hash(@NotNull String id, long seed) {
+    long h = seed ^ 0xCBF29CE484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      h ^= id.charAt(i);
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static class Generation {
+    private final long[] myBits;
+    private final int myHashes;
+    private final long myCreatedAt;
+    private int myCount;
+    private long myLastAddedAt;
+
+    private Generation(int capacity, double falsePositiveRate, long now) {
+      long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+      myBits = new long[(int) Math.max(1, (bits + 63) / 64)];
+      myHashes = Math.max(1, (int) Math.round((double) myBits.length * 64 / capacity * LN2));
+      myCreatedAt = now;
+      myLastAddedAt = now;
+    }
+
+    private Generation(@NotNull long[] bits, int hashes, int count, long createdAt, long lastAddedAt) {
+      myBits = bits;
+      myHashes = hashes;
+      myCount = count;
+      myCreatedAt = createdAt;
+      myLastAddedAt = lastAddedAt;
+    }
+
+    private void add(long h1, long h2, long now) {
+      long size = (long) myBits.length * 64;
+      for (int i = 0; i < myHashes; i++) {
+        long bit = Math.floorMod(h1 + i * (h2 | 1), size);
+        myBits[(int) (bit >>> 6)] |= 1L << bit;
+      }
+      myCount++;
+      myLastAddedAt = now;
+    }
+
+    private boolean mightContain(long h1, long h2) {
+      long size = (long) myBits.length * 64;
+      for (int i = 0; i < myHashes; i++) {
+        long bit = Math.floorMod(h1 + i * (h2 | 1), size);
+        if ((myBits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
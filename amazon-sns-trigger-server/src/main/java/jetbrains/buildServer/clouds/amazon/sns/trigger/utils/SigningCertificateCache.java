@@ -0,0 +1,271 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Cache of SNS signing certificates keyed by the certificate URL.
+ * <ul>
+ *   <li>the number of entries is bounded, least recently used entries are evicted first;</li>
+ *   <li>an entry expires at the certificate's notAfter date, or after the maximum TTL, whichever is earlier;</li>
+ *   <li>failed fetches are cached for a short time, so a broken URL isn't fetched on every request;</li>
+ *   <li>concurrent misses for the same URL wait for a single fetch.</li>
+ * </ul>
+ */
+public class SigningCertificateCache {
+  private static final Logger LOG = Logger.getInstance(SigningCertificateCache.class);
+
+  private final int myMaxSize;
+  private final long myMaxTtlMs;
+  private final long myNegativeTtlMs;
+  private final Clock myClock;
+
+  private final Map<String, Entry> myEntries = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Entry>> myLoading = new ConcurrentHashMap<>();
+
+  private final LongAdder myHits = new LongAdder();
+  private final LongAdder myMisses = new LongAdder();
+  private final LongAdder myLoadSuccesses = new LongAdder();
+  private final LongAdder myLoadFailures = new LongAdder();
+  private final LongAdder myTotalLoadTimeNanos = new LongAdder();
+  private final LongAdder myEvictions = new LongAdder();
+
+  public SigningCertificateCache(int maxSize, long maxTtlMs, long negativeTtlMs) {
+    this(maxSize, maxTtlMs, negativeTtlMs, Clock.systemUTC());
+  }
+
+  public SigningCertificateCache(int maxSize, long maxTtlMs, long negativeTtlMs, @NotNull Clock clock) {
+    myMaxSize = Math.max(1, maxSize);
+    myMaxTtlMs = maxTtlMs;
+    myNegativeTtlMs = negativeTtlMs;
+    myClock = clock;
+  }
+
+  @NotNull
+  public PublicKey get(@NotNull String certificateUrl, @NotNull CertificateLoader loader) throws IOException, CertificateException {
+    Entry entry = myEntries.get(certificateUrl);
+    long now = myClock.millis();
+
+    if (entry != null && !entry.isExpired(now)) {
+      myHits.increment();
+      entry.myLastAccess = now;
+      return entry.getKeyOrThrow(certificateUrl);
+    }
+
+    myMisses.increment();
+    CompletableFuture<Entry> loading = new CompletableFuture<>();
+    CompletableFuture<Entry> inFlight = myLoading.putIfAbsent(certificateUrl, loading);
+
+    if (inFlight != null) {
+      return await(certificateUrl, inFlight);
+    }
+
+    try {
+      entry = load(certificateUrl, loader);
+      loading.complete(entry);
+    } catch (Throwable e) {
+      // unexpected errors are not cached, but the waiting threads get them too
+      loading.completeExceptionally(e);
+      throw e;
+    } finally {
+      myLoading.remove(certificateUrl, loading);
+    }
+
+    return entry.getKeyOrThrow(certificateUrl);
+  }
+
+  @NotNull
+  public Stats getStats() {
+    return new Stats(myHits.sum(), myMisses.sum(), myLoadSuccesses.sum(), myLoadFailures.sum(),
+                     myTotalLoadTimeNanos.sum(), myEvictions.sum(), myEntries.size());
+  }
+
+  public void invalidateAll() {
+    myEntries.clear();
+  }
+
+  @NotNull
+  private Entry load(@NotNull String certificateUrl, @NotNull CertificateLoader loader) {
+    long start = System.nanoTime();
+    Entry entry;
+
+    try {
+      X509Certificate certificate = loader.load(certificateUrl);
+      certificate.checkValidity();
+      long now = myClock.millis();
+      long expiresAt = Math.min(certificate.getNotAfter().getTime(), now + myMaxTtlMs);
+      entry = new Entry(certificate.getPublicKey(), null, expiresAt, now);
+      myLoadSuccesses.increment();
+    } catch (IOException | CertificateException e) {
+      long now = myClock.millis();
+      LOG.debug("Failed to load SNS signing certificate from " + certificateUrl + ": " + e.getMessage());
+      entry = new Entry(null, e, now + myNegativeTtlMs, now);
+      myLoadFailures.increment();
+    } finally {
+      myTotalLoadTimeNanos.add(System.nanoTime() - start);
+    }
+
+    myEntries.put(certificateUrl, entry);
+    evictIfNeeded();
+    return entry;
+  }
+
+  @NotNull
+  private static PublicKey await(@NotNull String certificateUrl, @NotNull CompletableFuture<Entry> inFlight) throws IOException, CertificateException {
+    try {
+      return inFlight.get().getKeyOrThrow(certificateUrl);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the signing certificate " + certificateUrl, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to load the signing certificate " + certificateUrl, cause);
+    }
+  }
+
+  private synchronized void evictIfNeeded() {
+    if (myEntries.size() <= myMaxSize) {
+      return;
+    }
+
+    long now = myClock.millis();
+    myEntries.entrySet().removeIf(it -> {
+      if (it.getValue().isExpired(now)) {
+        myEvictions.increment();
+        return true;
+      }
+      return false;
+    });
+
+    while (myEntries.size() > myMaxSize) {
+      String eldest = null;
+      long eldestAccess = Long.MAX_VALUE;
+
+      for (Map.Entry<String, Entry> it : myEntries.entrySet()) {
+        if (it.getValue().myLastAccess < eldestAccess) {
+          eldestAccess = it.getValue().myLastAccess;
+          eldest = it.getKey();
+        }
+      }
+
+      if (eldest == null || myEntries.remove(eldest) == null) {
+        break;
+      }
+      myEvictions.increment();
+    }
+  }
+
+  @FunctionalInterface
+  public interface CertificateLoader {
+    @NotNull
+    X509Certificate load(@NotNull String certificateUrl) throws IOException, CertificateException;
+  }
+
+  private static class Entry {
+    @Nullable
+    private final PublicKey myKey;
+    @Nullable
+    private final Exception myFailure;
+    private final long myExpiresAt;
+    private volatile long myLastAccess;
+
+    private Entry(@Nullable PublicKey key, @Nullable Exception failure, long expiresAt, long now) {
+      myKey = key;
+      myFailure = failure;
+      myExpiresAt = expiresAt;
+      myLastAccess = now;
+    }
+
+    private boolean isExpired(long now) {
+      return now >= myExpiresAt;
+    }
+
+    @NotNull
+    private PublicKey getKeyOrThrow(@NotNull String certificateUrl) throws IOException, CertificateException {
+      if (myKey != null) {
+        return myKey;
+      }
+
+      if (myFailure instanceof IOException) {
+        throw new IOException("Signing certificate " + certificateUrl + " is unavailable: " + myFailure.getMessage(), myFailure);
+      }
+      throw new CertificateException("Signing certificate " + certificateUrl + " is invalid: " +
+                                     (myFailure == null ? "unknown error" : myFailure.getMessage()), myFailure);
+    }
+  }
+
+  public static class Stats {
+    private final long myHitCount;
+    private final long myMissCount;
+    private final long myLoadSuccessCount;
+    private final long myLoadFailureCount;
+    private final long myTotalLoadTimeNanos;
+    private final long myEvictionCount;
+    private final int mySize;
+
+    public Stats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+                 long totalLoadTimeNanos, long evictionCount, int size) {
+      myHitCount = hitCount;
+      myMissCount = missCount;
+      myLoadSuccessCount = loadSuccessCount;
+      myLoadFailureCount = loadFailureCount;
+      myTotalLoadTimeNanos = totalLoadTimeNanos;
+      myEvictionCount = evictionCount;
+      mySize = size;
+    }
+
+    public long getHitCount() {
+      return myHitCount;
+    }
+
+    public long getMissCount() {
+      return myMissCount;
+    }
+
+    public long getLoadSuccessCount() {
+      return myLoadSuccessCount;
+    }
+
+    public long getLoadFailureCount() {
+      return myLoadFailureCount;
+    }
+
+    public long getTotalLoadTimeNanos() {
+      return myTotalLoadTimeNanos;
+    }
+
+    public long getEvictionCount() {
+      return myEvictionCount;
+    }
+
+    public int getSize() {
+      return mySize;
+    }
+
+    public double getAverageLoadTimeNanos() {
+      long loads = myLoadSuccessCount + myLoadFailureCount;
+      return loads == 0 ? 0 : (double) myTotalLoadTimeNanos / loads;
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + myHitCount + ", misses=" + myMissCount + ", loads=" + myLoadSuccessCount +
+             ", loadFailures=" + myLoadFailureCount + ", averageLoadTimeMs=" + getAverageLoadTimeNanos() / 1_000_000 +
+             ", evictions=" + myEvictionCount + ", size=" + mySize;
+    }
+  }
+}
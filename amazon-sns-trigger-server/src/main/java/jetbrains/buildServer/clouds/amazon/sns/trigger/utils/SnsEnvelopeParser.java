@@ -0,0 +1,113 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsPayloadTooLargeException;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads an SNS request body in a single streaming pass.
+ * <p>
+ * Only the fields of {@link SnsEnvelope#KNOWN_FIELDS} and the message attributes are kept, everything else is skipped
+ * without being materialized. Reading stops as soon as more than the allowed number of bytes is consumed.
+ */
+public final class SnsEnvelopeParser {
+  private SnsEnvelopeParser() {
+  }
+
+  @NotNull
+  public static SnsEnvelope parse(@NotNull InputStream body, long maxBytes) throws AwsSnsHttpEndpointException {
+    try (JsonParser parser = SnsJson.FACTORY.createParser(new LimitedInputStream(body, maxBytes))) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new AwsSnsHttpEndpointException("Can't parse request body: JSON object expected");
+      }
+
+      Map<String, String> fields = new HashMap<>();
+      Map<String, Object> attributes = null;
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+
+        if (AwsSnsTriggerConstants.NOTIFICATION_ATTRIBUTES_KEY.equals(name)) {
+          attributes = value == JsonToken.VALUE_NULL ? null : SnsJson.OBJECT_READER.readValue(parser);
+        } else if (SnsEnvelope.KNOWN_FIELDS.contains(name)) {
+          if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+            throw new AwsSnsHttpEndpointException("Can't parse request body: unexpected value of " + name);
+          }
+          fields.put(name, value == JsonToken.VALUE_NULL ? null : parser.getText());
+        } else {
+          parser.skipChildren();
+        }
+      }
+
+      return new SnsEnvelope(fields, attributes);
+    } catch (PayloadTooLargeIOException e) {
+      throw new AwsSnsPayloadTooLargeException("Request body exceeds " + maxBytes + " bytes");
+    } catch (AwsSnsHttpEndpointException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new AwsSnsHttpEndpointException("Can't parse request body", e);
+    }
+  }
+
+  private static class PayloadTooLargeIOException extends IOException {
+  }
+
+  /**
+   * Fails the read that goes past the limit, so an oversized body is never buffered as a whole.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    private long myRemaining;
+
+    LimitedInputStream(@NotNull InputStream in, long maxBytes) {
+      super(in);
+      myRemaining = maxBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) {
+        consumed(1);
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int result = super.read(b, off, len);
+      if (result > 0) {
+        consumed(result);
+      }
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long result = super.skip(n);
+      consumed(result);
+      return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void consumed(long bytes) throws PayloadTooLargeIOException {
+      myRemaining -= bytes;
+      if (myRemaining < 0) {
+        throw new PayloadTooLargeIOException();
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+
+/**
+ * JSON serialization of the plugin: SNS request bodies, stored messages, error responses and plugin data files.
+ * <p>
+ * All readers and writers share a single configuration, e.g. dates are always written as ISO-8601 strings,
+ * so every writer produces the same stored format. They are built once and are thread-safe.
+ */
+public final class SnsJson {
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+    .registerModule(new ParameterNamesModule())
+    .registerModule(new Jdk8Module())
+    .registerModule(new JavaTimeModule())
+    .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+  /**
+   * Streaming parsers, e.g. for request bodies, see {@link SnsEnvelopeParser}.
+   */
+  public static final JsonFactory FACTORY = MAPPER.getFactory();
+
+  /**
+   * A single stored message.
+   */
+  public static final ObjectReader MESSAGE_READER = MAPPER.readerFor(SnsNotificationDto.class);
+  public static final ObjectWriter MESSAGE_WRITER = MAPPER.writerFor(SnsNotificationDto.class);
+
+  /**
+   * Messages by MessageId, the layout of the legacy {@code messages} storage key.
+   */
+  public static final ObjectReader MESSAGE_MAP_READER = MAPPER.readerFor(new TypeReference<HashMap<String, SnsNotificationDto>>() {
+  });
+  public static final ObjectWriter MESSAGE_MAP_WRITER = MAPPER.writerFor(new TypeReference<Map<String, SnsNotificationDto>>() {
+  });
+
+  /**
+   * Any JSON object, e.g. SNS message attributes or plugin data files.
+   */
+  public static final ObjectReader OBJECT_READER = MAPPER.readerFor(new TypeReference<Map<String, Object>>() {
+  });
+
+  /**
+   * Values of runtime types, e.g. error responses or plugin data files.
+   */
+  public static final ObjectWriter WRITER = MAPPER.writer();
+
+  private SnsJson() {
+  }
+}
@@ -0,0 +1,303 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compact encoding of pending SNS messages in the trigger storage.
+ * <p>
+ * A message is written in a versioned binary format, Base64-encoded as storage values are strings:
+ * <ul>
+ *   <li>no field names: a mask tells which fields are present;</li>
+ *   <li>the topic ARN, the subscription ARN and the unsubscribe URL, the same for all messages of a subscription,
+ *   are stored once under their own keys of the trigger storage, a message keeps only a reference, see {@link SharedStrings};</li>
+ *   <li>a record larger than {@value #COMPRESSION_THRESHOLD} bytes is deflated if that makes it smaller.</li>
+ * </ul>
+ * Values in the JSON format of older plugin versions are read transparently, a JSON object always starts with '{'
+ * which is not a Base64 character.
+ */
+public final class SnsMessageCodec {
+  private static final byte VERSION = 1;
+  private static final int COMPRESSION_THRESHOLD = 512;
+  private static final byte FLAG_COMPRESSED = 1;
+
+  // fields present in the record
+  private static final int MESSAGE_ID = 1;
+  private static final int SUBJECT = 1 << 1;
+  private static final int MESSAGE = 1 << 2;
+  private static final int MESSAGE_FILE = 1 << 3;
+  private static final int TIMESTAMP = 1 << 4;
+  private static final int ATTRIBUTES = 1 << 5;
+  private static final int TOPIC = 1 << 6;
+  private static final int SUBSCRIPTION_ARN = 1 << 7;
+  private static final int UNSUBSCRIBE_URL = 1 << 8;
+  // fields stored as references to shared strings
+  private static final int SHARED_TOPIC = 1 << 9;
+  private static final int SHARED_SUBSCRIPTION_ARN = 1 << 10;
+  private static final int SHARED_UNSUBSCRIBE_URL = 1 << 11;
+
+  private SnsMessageCodec() {
+  }
+
+  public static boolean isLegacy(@NotNull String value) {
+    return value.startsWith("{");
+  }
+
+  @NotNull
+  public static String encode(@NotNull SnsNotificationDto message, @NotNull SharedStrings shared) throws IOException {
+    int mask = 0;
+    mask |= present(message.getMessageId(), MESSAGE_ID);
+    mask |= present(message.getSubject(), SUBJECT);
+    mask |= present(message.getMessage(), MESSAGE);
+    mask |= present(message.getMessageFile(), MESSAGE_FILE);
+    mask |= present(message.getTimestamp(), TIMESTAMP);
+    mask |= present(message.getAttributes(), ATTRIBUTES);
+    String topic = shared.reference(message.getTopic());
+    String subscriptionArn = shared.reference(message.getSubscriptionArn());
+    String unsubscribeUrl = shared.reference(message.getUnsubscribeUrl());
+    mask |= referenceOrPresent(message.getTopic(), topic, TOPIC, SHARED_TOPIC);
+    mask |= referenceOrPresent(message.getSubscriptionArn(), subscriptionArn, SUBSCRIPTION_ARN, SHARED_SUBSCRIPTION_ARN);
+    mask |= referenceOrPresent(message.getUnsubscribeUrl(), unsubscribeUrl, UNSUBSCRIBE_URL, SHARED_UNSUBSCRIBE_URL);
+
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(record)) {
+      writeVarInt(out, mask);
+      if ((mask & MESSAGE_ID) != 0) writeString(out, message.getMessageId());
+      if ((mask & SUBJECT) != 0) writeString(out, message.getSubject());
+      if ((mask & MESSAGE) != 0) writeString(out, message.getMessage());
+      if ((mask & MESSAGE_FILE) != 0) writeString(out, message.getMessageFile());
+      if ((mask & TIMESTAMP) != 0) {
+        out.writeLong(message.getTimestamp().getEpochSecond());
+        writeVarInt(out, message.getTimestamp().getNano());
+      }
+      if ((mask & ATTRIBUTES) != 0) writeBytes(out, SnsJson.WRITER.writeValueAsBytes(message.getAttributes()));
+      if ((mask & TOPIC) != 0) writeString(out, message.getTopic());
+      if ((mask & SUBSCRIPTION_ARN) != 0) writeString(out, message.getSubscriptionArn());
+      if ((mask & UNSUBSCRIBE_URL) != 0) writeString(out, message.getUnsubscribeUrl());
+      if ((mask & SHARED_TOPIC) != 0) writeString(out, topic);
+      if ((mask & SHARED_SUBSCRIPTION_ARN) != 0) writeString(out, subscriptionArn);
+      if ((mask & SHARED_UNSUBSCRIBE_URL) != 0) writeString(out, unsubscribeUrl);
+    }
+
+    byte flags = 0;
+    byte[] payload = record.toByteArray();
+    if (payload.length > COMPRESSION_THRESHOLD) {
+      byte[] compressed = deflate(payload);
+      if (compressed.length < payload.length) {
+        flags |= FLAG_COMPRESSED;
+        payload = compressed;
+      }
+    }
+
+    byte[] result = new byte[payload.length + 2];
+    result[0] = VERSION;
+    result[1] = flags;
+    System.arraycopy(payload, 0, result, 2, payload.length);
+    return Base64.getEncoder().encodeToString(result);
+  }
+
+  /**
+   * @throws IOException if the value is neither a compact nor a legacy JSON message
+   */
+  @NotNull
+  public static SnsNotificationDto decode(@NotNull String value, @NotNull SharedStrings shared) throws IOException {
+    if (isLegacy(value)) {
+      return SnsJson.MESSAGE_READER.readValue(value);
+    }
+
+    byte[] bytes;
+    try {
+      bytes = Base64.getDecoder().decode(value);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Not an encoded SNS message", e);
+    }
+    if (bytes.length < 2) {
+      throw new IOException("Encoded SNS message is truncated");
+    }
+    if (bytes[0] != VERSION) {
+      throw new IOException("Unsupported encoded SNS message version: " + bytes[0]);
+    }
+
+    InputStream payload = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+    if ((bytes[1] & FLAG_COMPRESSED) != 0) {
+      payload = new InflaterInputStream(payload);
+    }
+
+    SnsNotificationDto message = new SnsNotificationDto();
+    try (DataInputStream in = new DataInputStream(payload)) {
+      int mask = readVarInt(in);
+      if ((mask & MESSAGE_ID) != 0) message.setMessageId(readString(in));
+      if ((mask & SUBJECT) != 0) message.setSubject(readString(in));
+      if ((mask & MESSAGE) != 0) message.setMessage(readString(in));
+      if ((mask & MESSAGE_FILE) != 0) message.setMessageFile(readString(in));
+      if ((mask & TIMESTAMP) != 0) message.setTimestamp(Instant.ofEpochSecond(in.readLong(), readVarInt(in)));
+      if ((mask & ATTRIBUTES) != 0) message.setAttributes(SnsJson.OBJECT_READER.readValue(readBytes(in)));
+      if ((mask & TOPIC) != 0) message.setTopic(readString(in));
+      if ((mask & SUBSCRIPTION_ARN) != 0) message.setSubscriptionArn(readString(in));
+      if ((mask & UNSUBSCRIBE_URL) != 0) message.setUnsubscribeUrl(readString(in));
+      if ((mask & SHARED_TOPIC) != 0) message.setTopic(shared.resolve(readString(in)));
+      if ((mask & SHARED_SUBSCRIPTION_ARN) != 0) message.setSubscriptionArn(shared.resolve(readString(in)));
+      if ((mask & SHARED_UNSUBSCRIBE_URL) != 0) message.setUnsubscribeUrl(shared.resolve(readString(in)));
+    }
+    return message;
+  }
+
+  private static int present(@Nullable Object value, int field) {
+    return value != null ? field : 0;
+  }
+
+  private static int referenceOrPresent(@Nullable String value, @Nullable String reference, int field, int referenceField) {
+    if (value == null) {
+      return 0;
+    }
+    return reference != null ? referenceField : field;
+  }
+
+  @NotNull
+  private static byte[] deflate(@NotNull byte[] payload) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream(payload.length / 2);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try (DeflaterOutputStream out = new DeflaterOutputStream(result, deflater)) {
+      out.write(payload);
+    } finally {
+      deflater.end();
+    }
+    return result.toByteArray();
+  }
+
+  private static void writeString(@NotNull DataOutput out, @NotNull String value) throws IOException {
+    writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @NotNull
+  private static String readString(@NotNull DataInput in) throws IOException {
+    return new String(readBytes(in), StandardCharsets.UTF_8);
+  }
+
+  private static void writeBytes(@NotNull DataOutput out, @NotNull byte[] value) throws IOException {
+    writeVarInt(out, value.length);
+    out.write(value);
+  }
+
+  @NotNull
+  private static byte[] readBytes(@NotNull DataInput in) throws IOException {
+    int length = readVarInt(in);
+    if (length < 0) {
+      throw new IOException("Invalid length in an encoded SNS message: " + length);
+    }
+    byte[] result = new byte[length];
+    in.readFully(result);
+    return result;
+  }
+
+  private static void writeVarInt(@NotNull DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(@NotNull DataInput in) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = in.readByte();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed length in an encoded SNS message");
+  }
+
+  /**
+   * Strings repeated by messages of a trigger, stored once under {@code sharedString.<hash>} keys of the trigger storage.
+   * <p>
+   * A key depends only on the string, so writers on different nodes produce the same keys and values and never conflict.
+   * Keys are not removed with messages, there are only a few of them per subscription, they are removed when the store is cleared.
+   */
+  public static final class SharedStrings {
+    /**
+     * Strings are written into every message, e.g. for tests or for older plugin versions.
+     */
+    public static final SharedStrings NONE = new SharedStrings(key -> null, false);
+
+    private final Function<String, String> myStored;
+    private final boolean myEnabled;
+    private final Map<String, String> myAdded = new HashMap<>();
+
+    /**
+     * @param stored values of the trigger storage by key
+     */
+    public SharedStrings(@NotNull Function<String, String> stored) {
+      this(stored, true);
+    }
+
+    private SharedStrings(@NotNull Function<String, String> stored, boolean enabled) {
+      myStored = stored;
+      myEnabled = enabled;
+    }
+
+    @NotNull
+    public static String keyOf(@NotNull String value) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < value.length(); i++) {
+        hash ^= value.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+      return AwsSnsTriggerConstants.TRIGGER_STORE_SHARED_STRING_KEY_PREFIX + Long.toHexString(hash);
+    }
+
+    public static boolean isSharedStringKey(@NotNull String key) {
+      return key.startsWith(AwsSnsTriggerConstants.TRIGGER_STORE_SHARED_STRING_KEY_PREFIX);
+    }
+
+    /**
+     * Shared strings referenced by encoded messages that are not in the storage yet, they must be stored along with the messages.
+     */
+    @NotNull
+    public Map<String, String> getAdded() {
+      return myAdded;
+    }
+
+    /**
+     * @return key of the shared string, null if the value must be written into the message
+     */
+    @Nullable
+    String reference(@Nullable String value) {
+      if (value == null || !myEnabled) {
+        return null;
+      }
+
+      String key = keyOf(value);
+      String stored = myAdded.containsKey(key) ? myAdded.get(key) : myStored.apply(key);
+      if (stored == null) {
+        myAdded.put(key, value);
+        return key;
+      }
+      // another string with the same hash is kept in the message
+      return stored.equals(value) ? key : null;
+    }
+
+    @NotNull
+    String resolve(@NotNull String key) throws IOException {
+      String value = myAdded.containsKey(key) ? myAdded.get(key) : myStored.apply(key);
+      if (value == null) {
+        throw new IOException("Shared string " + key + " of an encoded SNS message is missing");
+      }
+      return value;
+    }
+  }
+}
@@ -0,0 +1,203 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsMessageType;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Verifies SNS message signatures without per-call allocations of the crypto objects.
+ * <p>
+ * Every thread keeps its own {@link Signature} instance per {@link SignatureVersion} and reusable buffers:
+ * the canonical string to sign is encoded to UTF-8 straight into a byte buffer,
+ * and the Base64 signature is decoded into another one.
+ */
+public final class SnsSignatureVerifier {
+  private static final Logger LOG = Logger.getInstance(SnsSignatureVerifier.class.getName());
+  private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+  // buffers grown by an unusually large message are not kept by the thread
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+  private static final byte NEW_LINE = '\n';
+
+  private static final ThreadLocal<VerifierState> STATE = ThreadLocal.withInitial(VerifierState::new);
+
+  private SnsSignatureVerifier() {
+  }
+
+  /**
+   * Loads the security providers and the signature implementations, so the first SNS request doesn't pay for it.
+   */
+  public static void warmUp() {
+    try {
+      for (SignatureVersion version : SignatureVersion.values()) {
+        Signature.getInstance(version.getAlgorithm());
+      }
+      CertificateFactory.getInstance(AwsSnsSignatureVerification.X_509_CERT);
+      Base64.getDecoder();
+    } catch (GeneralSecurityException e) {
+      LOG.warn("Failed to initialize the SNS signature verification", e);
+    }
+  }
+
+  /**
+   * @return true if the message has any of the fields signed for the given message type
+   */
+  public static boolean hasSignedFields(@NotNull SnsEnvelope envelope, @NotNull SnsMessageType messageType) {
+    for (String key : signedKeys(messageType)) {
+      if (envelope.hasField(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @throws GeneralSecurityException if the signature version is unknown or the signature can't be checked
+   * @throws IllegalArgumentException if the signature isn't a valid Base64 string
+   */
+  public static boolean verify(@NotNull SnsEnvelope envelope,
+                               @NotNull SnsMessageType messageType,
+                               @NotNull String signature,
+                               @NotNull PublicKey publicKey) throws GeneralSecurityException {
+    VerifierState state = STATE.get();
+    try {
+      Signature checker = state.getSignature(SignatureVersion.fromValue(envelope.getSignatureVersion()));
+      checker.initVerify(publicKey);
+
+      int length = state.writeStringToSign(envelope, signedKeys(messageType));
+      checker.update(state.myCanonical, 0, length);
+
+      int signatureLength = state.decodeSignature(signature);
+      return checker.verify(state.mySignature, 0, signatureLength);
+    } finally {
+      state.trim();
+    }
+  }
+
+  @NotNull
+  private static List<String> signedKeys(@NotNull SnsMessageType messageType) {
+    return SnsMessageType.NOTIFICATION.equals(messageType)
+           ? AwsSnsTriggerConstants.NOTIFICATION_KEYS_LIST
+           : AwsSnsTriggerConstants.SUBSCRIPTION_CONFIRMATION_KEYS_LIST;
+  }
+
+  private static class VerifierState {
+    private final Map<SignatureVersion, Signature> mySignatures = new EnumMap<>(SignatureVersion.class);
+    private final Base64.Decoder myDecoder = Base64.getDecoder();
+    private byte[] myCanonical = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] myEncodedSignature = new byte[0];
+    private byte[] mySignature = new byte[0];
+
+    @NotNull
+    private Signature getSignature(@NotNull SignatureVersion version) throws GeneralSecurityException {
+      Signature signature = mySignatures.get(version);
+      if (signature == null) {
+        signature = Signature.getInstance(version.getAlgorithm());
+        mySignatures.put(version, signature);
+      }
+      return signature;
+    }
+
+    /**
+     * Writes "key\nvalue\n" for every present key, the same way SNS builds the string to sign.
+     *
+     * @return number of written bytes
+     */
+    private int writeStringToSign(@NotNull SnsEnvelope envelope, @NotNull List<String> keys) {
+      int position = 0;
+      for (String key : keys) {
+        if (envelope.hasField(key)) {
+          position = writeUtf8(key, position);
+          position = writeByte(NEW_LINE, position);
+          position = writeUtf8(String.valueOf(envelope.getField(key)), position);
+          position = writeByte(NEW_LINE, position);
+        }
+      }
+      return position;
+    }
+
+    private int decodeSignature(@NotNull String signature) {
+      int length = signature.length();
+      // SNS signatures have the same length for the same key size, so the arrays are reused
+      if (myEncodedSignature.length != length) {
+        myEncodedSignature = new byte[length];
+      }
+      for (int i = 0; i < length; i++) {
+        char c = signature.charAt(i);
+        // non-ASCII characters are invalid anyway, the decoder rejects them
+        myEncodedSignature[i] = c < 0x80 ? (byte) c : (byte) '?';
+      }
+
+      int maxDecodedLength = length / 4 * 3 + 3;
+      if (mySignature.length < maxDecodedLength) {
+        mySignature = new byte[maxDecodedLength];
+      }
+      return myDecoder.decode(myEncodedSignature, mySignature);
+    }
+
+    /**
+     * Same as {@code value.getBytes(UTF_8)}: unpaired surrogates are replaced with '?'.
+     */
+    private int writeUtf8(@NotNull String value, int position) {
+      int length = value.length();
+      ensureCapacity(position + length);
+
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+          myCanonical[position++] = (byte) c;
+          continue;
+        }
+
+        // room for this character and one byte for each of the remaining ones
+        ensureCapacity(position + 4 + (length - i));
+        if (c < 0x800) {
+          myCanonical[position++] = (byte) (0xC0 | (c >> 6));
+          myCanonical[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          myCanonical[position++] = (byte) (0xF0 | (codePoint >> 18));
+          myCanonical[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          myCanonical[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          myCanonical[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+          myCanonical[position++] = (byte) '?';
+        } else {
+          myCanonical[position++] = (byte) (0xE0 | (c >> 12));
+          myCanonical[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          myCanonical[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      return position;
+    }
+
+    private int writeByte(byte b, int position) {
+      ensureCapacity(position + 1);
+      myCanonical[position] = b;
+      return position + 1;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (myCanonical.length < capacity) {
+        byte[] grown = new byte[Math.max(capacity, myCanonical.length * 2)];
+        System.arraycopy(myCanonical, 0, grown, 0, myCanonical.length);
+        myCanonical = grown;
+      }
+    }
+
+    private void trim() {
+      if (myCanonical.length > MAX_RETAINED_BUFFER_SIZE) {
+        myCanonical = new byte[INITIAL_BUFFER_SIZE];
+      }
+    }
+  }
+}
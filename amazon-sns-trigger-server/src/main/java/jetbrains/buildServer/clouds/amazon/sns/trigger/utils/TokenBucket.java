@@ -0,0 +1,97 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Token bucket: tokens are added at a constant rate up to the capacity, every permitted action takes one.
+ * <p>
+ * Tokens are added lazily, from the time of the last permitted action, so the state changes only when an action is permitted
+ * or the bucket becomes exhausted. The state is encoded as a short string, e.g. to be stored along with other changes.
+ * <p>
+ * Not thread-safe.
+ */
+public class TokenBucket {
+  private static final String SEPARATOR = ";";
+
+  private double myTokens;
+  private long myUpdatedAt;
+  private boolean myExhausted;
+
+  public TokenBucket(double tokens, long updatedAt, boolean exhausted) {
+    myTokens = tokens;
+    myUpdatedAt = updatedAt;
+    myExhausted = exhausted;
+  }
+
+  @NotNull
+  public static TokenBucket full(int capacity, long now) {
+    return new TokenBucket(capacity, now, false);
+  }
+
+  /**
+   * Takes a token if there is one.
+   *
+   * @param tokensPerMs rate at which tokens are added
+   * @return false if the bucket is exhausted
+   */
+  public boolean tryAcquire(int capacity, double tokensPerMs, long now) {
+    double available = getAvailable(capacity, tokensPerMs, now);
+    if (available < 1) {
+      myExhausted = true;
+      return false;
+    }
+
+    myTokens = available - 1;
+    myUpdatedAt = now;
+    myExhausted = false;
+    return true;
+  }
+
+  /**
+   * @return time till the next token is available, 0 if there is one
+   */
+  public long getMillisUntilAvailable(int capacity, double tokensPerMs, long now) {
+    double missing = 1 - getAvailable(capacity, tokensPerMs, now);
+    return missing <= 0 || tokensPerMs <= 0 ? 0 : (long) Math.ceil(missing / tokensPerMs);
+  }
+
+  /**
+   * @return true if the last acquisition failed
+   */
+  public boolean isExhausted() {
+    return myExhausted;
+  }
+
+  @NotNull
+  public String encode() {
+    return myTokens + SEPARATOR + myUpdatedAt + SEPARATOR + myExhausted;
+  }
+
+  /**
+   * @return null if the value is not an encoded bucket
+   */
+  @Nullable
+  public static TokenBucket decode(@Nullable String value) {
+    if (value == null) {
+      return null;
+    }
+
+    String[] parts = value.split(SEPARATOR);
+    if (parts.length != 3) {
+      return null;
+    }
+
+    try {
+      return new TokenBucket(Double.parseDouble(parts[0]), Long.parseLong(parts[1]), Boolean.parseBoolean(parts[2]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private double getAvailable(int capacity, double tokensPerMs, long now) {
+    // a clock going backwards doesn't take tokens away
+    long elapsed = Math.max(0, now - myUpdatedAt);
+    return Math.min(capacity, myTokens + elapsed * tokensPerMs);
+  }
+}
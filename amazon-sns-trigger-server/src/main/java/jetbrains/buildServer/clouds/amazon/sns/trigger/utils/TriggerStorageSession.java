@@ -0,0 +1,217 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto;
+import jetbrains.buildServer.serverSide.CustomDataStorage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Long-lived state of the storage of a single trigger, shared by the SNS endpoint and the trigger policy of this node.
+ * <ul>
+ *   <li>stored messages are decoded once: a decoded message is reused as long as its stored value is the same;</li>
+ *   <li>the version is increased by every flush of changes through the session and every refresh,
+ *   so callers can tell whether the storage could have changed since they looked at it;</li>
+ *   <li>the version at which the storage had no pending messages is remembered,
+ *   so idle trigger polls don't touch the storage until something is written or the storage is refreshed;</li>
+ *   <li>the number and total size of stored messages are counted once and then kept up to date by the writes through the session,
+ *   so adding a message doesn't walk all stored values. They are counted again after a refresh or a merge with concurrent changes.</li>
+ * </ul>
+ * The session doesn't hold the storage itself, every unit of work opens a {@link CustomDataStorageWrapper} for the current one.
+ */
+public class TriggerStorageSession {
+  @Nullable
+  private final CustomDataStorageWrapper.FlushFailureListener myFlushFailureListener;
+  @Nullable
+  private final Runnable myFlushListener;
+  private final AtomicLong myVersion = new AtomicLong();
+  private volatile long myIdleVersion = -1;
+  // storage key -> decoded message with the stored value it was decoded from
+  private final Map<String, DecodedMessage> myDecodedMessages = new ConcurrentHashMap<>();
+  // null until counted, guarded by this
+  @Nullable
+  private StoredMessages myStoredMessages;
+  // increased by every change of the stored messages, guarded by this
+  private long myStoredMessagesChanges = 0;
+
+  public TriggerStorageSession(@Nullable CustomDataStorageWrapper.FlushFailureListener flushFailureListener) {
+    this(flushFailureListener, null);
+  }
+
+  /**
+   * @param flushListener called after every successful flush of changes through the session
+   */
+  public TriggerStorageSession(@Nullable CustomDataStorageWrapper.FlushFailureListener flushFailureListener,
+                               @Nullable Runnable flushListener) {
+    myFlushFailureListener = flushFailureListener;
+    myFlushListener = flushListener;
+  }
+
+  @NotNull
+  public CustomDataStorageWrapper open(@NotNull CustomDataStorage storage) {
+    return new CustomDataStorageWrapper(storage, myFlushFailureListener, this);
+  }
+
+  /**
+   * Reloads the storage from the database.
+   */
+  public void refresh(@NotNull CustomDataStorage storage) {
+    storage.refresh();
+    forgetStoredMessages();
+    changed();
+  }
+
+  public long getVersion() {
+    return myVersion.get();
+  }
+
+  void changed() {
+    myVersion.incrementAndGet();
+  }
+
+  void flushed() {
+    changed();
+    if (myFlushListener != null) {
+      myFlushListener.run();
+    }
+  }
+
+  /**
+   * Remembers that the storage had no pending messages at the given version.
+   *
+   * @param version the version read before the storage was checked
+   */
+  public void markIdle(long version) {
+    myIdleVersion = version;
+  }
+
+  /**
+   * @return true if the storage had no pending messages at the given version
+   */
+  public boolean isIdle(long version) {
+    return myIdleVersion == version;
+  }
+
+  /**
+   * Decodes a stored message, the message decoded earlier is returned if the stored value didn't change.
+   * Returned messages are shared and must not be modified.
+   *
+   * @return null if the value can't be decoded
+   */
+  @Nullable
+  public SnsNotificationDto decode(@NotNull String key, @NotNull String value, @NotNull MessageDecoder decoder) {
+    DecodedMessage decoded = myDecodedMessages.get(key);
+    if (decoded != null && decoded.myValue.equals(value)) {
+      return decoded.myMessage;
+    }
+
+    SnsNotificationDto message = decoder.decode(key, value);
+    if (message != null) {
+      myDecodedMessages.put(key, new DecodedMessage(value, message));
+    } else {
+      myDecodedMessages.remove(key);
+    }
+    return message;
+  }
+
+  /**
+   * Forgets decoded messages that are not stored anymore.
+   */
+  public void retainDecoded(@NotNull Set<String> storedKeys) {
+    myDecodedMessages.keySet().retainAll(storedKeys);
+  }
+
+  /**
+   * @return number and total size of the stored messages, null if they have to be counted, see {@link #countStoredMessages}
+   */
+  @Nullable
+  public synchronized StoredMessages getStoredMessages() {
+    return myStoredMessages;
+  }
+
+  /**
+   * Counts the stored messages with the given function and remembers the result,
+   * unless the messages were changed through the session while they were counted.
+   */
+  @NotNull
+  public StoredMessages countStoredMessages(@NotNull Supplier<StoredMessages> counter) {
+    long changes;
+    synchronized (this) {
+      if (myStoredMessages != null) {
+        return myStoredMessages;
+      }
+      changes = myStoredMessagesChanges;
+    }
+
+    StoredMessages counted = counter.get();
+    synchronized (this) {
+      if (changes == myStoredMessagesChanges) {
+        myStoredMessages = counted;
+      }
+    }
+    return counted;
+  }
+
+  /**
+   * The stored value of a message was written through the session.
+   */
+  synchronized void messageChanged(@Nullable String oldValue, @Nullable String newValue) {
+    myStoredMessagesChanges++;
+    if (myStoredMessages == null) {
+      return;
+    }
+
+    int count = myStoredMessages.myCount - (oldValue == null ? 0 : 1) + (newValue == null ? 0 : 1);
+    long bytes = myStoredMessages.myBytes - (oldValue == null ? 0 : oldValue.length()) + (newValue == null ? 0 : newValue.length());
+    myStoredMessages = new StoredMessages(count, bytes);
+  }
+
+  /**
+   * The stored messages could have been changed not through the session, they have to be counted again.
+   */
+  synchronized void forgetStoredMessages() {
+    myStoredMessagesChanges++;
+    myStoredMessages = null;
+  }
+
+  /**
+   * Number and total length of the stored message values.
+   */
+  public static final class StoredMessages {
+    private final int myCount;
+    private final long myBytes;
+
+    public StoredMessages(int count, long bytes) {
+      myCount = count;
+      myBytes = bytes;
+    }
+
+    public int getCount() {
+      return myCount;
+    }
+
+    public long getBytes() {
+      return myBytes;
+    }
+  }
+
+  private static class DecodedMessage {
+    private final String myValue;
+    private final SnsNotificationDto myMessage;
+
+    private DecodedMessage(@NotNull String value, @NotNull SnsNotificationDto message) {
+      myValue = value;
+      myMessage = message;
+    }
+  }
+
+  @FunctionalInterface
+  public interface MessageDecoder {
+    @Nullable
+    SnsNotificationDto decode(@NotNull String key, @NotNull String value);
+  }
+}
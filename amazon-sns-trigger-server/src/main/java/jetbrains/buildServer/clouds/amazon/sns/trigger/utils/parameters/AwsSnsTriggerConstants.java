@@ -13,16 +13,37 @@ public final class AwsSnsTriggerConstants {
     // controller specific properties
     public static final String SNS_CONNECTION_CONTROLLER_URL = "/app/trigger/sns/**";
     public static final String SNS_CONNECTION_CONTROLLER_URL_PATTERN = "/app/trigger/sns/(.*)/(.*)/(.*)$";
+    public static final String SNS_METRICS_CONTROLLER_URL = "/app/trigger/sns-metrics";
+    public static final String SNS_STORAGE_CONTROLLER_URL = "/app/trigger/sns-storage";
 
     // trigger store keys
     public static final String TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN = "subscriptionArn";
     public static final String TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL = "unsubscribeURL";
     public static final String TRIGGER_STORE_CURRENT_TOPIC_ARN = "topicArn";
+    // legacy layout: all pending messages as a single JSON map
     public static final String TRIGGER_STORE_MESSAGES = "messages";
+    // every pending message is stored under its own key with this prefix followed by the MessageId
+    public static final String TRIGGER_STORE_MESSAGE_KEY_PREFIX = "message.";
+    // publication time in ms of every pending message, under this prefix followed by the MessageId
+    public static final String TRIGGER_STORE_MESSAGE_INDEX_KEY_PREFIX = "messageIndex.";
+    // strings repeated by pending messages, e.g. the topic ARN, are stored once under this prefix followed by a hash of the string
+    public static final String TRIGGER_STORE_SHARED_STRING_KEY_PREFIX = "sharedString.";
+    // time in ms when the oldest pending message expires, pending messages are checked for expiry from this time on
+    public static final String TRIGGER_STORE_NEXT_EXPIRY = "nextExpiry";
+    // encoded token bucket of the build rate limit
+    public static final String TRIGGER_STORE_RATE_LIMIT = "rateLimit";
 
     // trigger properties keys
     public static final String TRIGGER_UUID_PROPERTY_KEY = "triggerUuid";
     public static final String TRIGGER_NAME_PROPERTY_KEY = "displayName";
+    public static final String TRIGGER_QUIET_PERIOD_PROPERTY_KEY = "quietPeriodSeconds";
+    public static final String TRIGGER_MAX_WAIT_PROPERTY_KEY = "maxWaitSeconds";
+    public static final long TRIGGER_MAX_WAIT_DEFAULT_SECONDS = 600;
+    public static final String TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY = "maxMessagesPerBuild";
+    public static final String TRIGGER_MERGE_INTO_QUEUED_BUILD_PROPERTY_KEY = "mergeIntoQueuedBuild";
+    public static final String TRIGGER_MAX_BUILDS_PER_HOUR_PROPERTY_KEY = "maxBuildsPerHour";
+    public static final String TRIGGER_BUILD_BURST_PROPERTY_KEY = "buildBurst";
+    public static final long TRIGGER_BUILD_BURST_DEFAULT = 1;
 
     // SNS Notification body keys
     public static final String NOTIFICATION_MESSAGE_KEY = "Message";
@@ -56,8 +77,68 @@ public final class AwsSnsTriggerConstants {
     // Custom parameters placeholders
     public static final String SNS_MESSAGE_SUBJECT_PARAMETER_PLACEHOLDER = "sns.message.subject";
     public static final String SNS_MESSAGE_BODY_PARAMETER_PLACEHOLDER = "sns.message.body";
+    public static final String SNS_MESSAGE_BODY_FILE_PARAMETER_PLACEHOLDER = "sns.message.body.file";
     public static final String SNS_MESSAGE_ATTRIBUTES_PARAMETER_PLACEHOLDER = "sns.message.attributes.";
 
+    // server internal properties
+    public static final String ASYNC_INGESTION_ENABLED_PROPERTY = "teamcity.internal.sns.trigger.ingestion.async.enabled";
+    public static final String ASYNC_INGESTION_QUEUE_SIZE_PROPERTY = "teamcity.internal.sns.trigger.ingestion.async.queueSize";
+    public static final int ASYNC_INGESTION_QUEUE_SIZE_DEFAULT = 1000;
+    public static final String ASYNC_INGESTION_WORKERS_PROPERTY = "teamcity.internal.sns.trigger.ingestion.async.workers";
+    public static final int ASYNC_INGESTION_WORKERS_DEFAULT = 4;
+    public static final String ASYNC_INGESTION_RETRY_AFTER_PROPERTY = "teamcity.internal.sns.trigger.ingestion.async.retryAfterSeconds";
+    public static final int ASYNC_INGESTION_RETRY_AFTER_DEFAULT = 30;
+    public static final String ASYNC_INGESTION_WAIT_TIMEOUT_PROPERTY = "teamcity.internal.sns.trigger.ingestion.async.waitTimeoutSeconds";
+    public static final int ASYNC_INGESTION_WAIT_TIMEOUT_DEFAULT = 10;
+    public static final String CERTIFICATE_CACHE_SIZE_PROPERTY = "teamcity.internal.sns.trigger.certificateCache.size";
+    public static final int CERTIFICATE_CACHE_SIZE_DEFAULT = 100;
+    public static final String CERTIFICATE_CACHE_MAX_TTL_MS_PROPERTY = "teamcity.internal.sns.trigger.certificateCache.maxTtlMs";
+    public static final long CERTIFICATE_CACHE_MAX_TTL_MS_DEFAULT = 24 * 60 * 60 * 1000L;
+    public static final String CERTIFICATE_CACHE_NEGATIVE_TTL_MS_PROPERTY = "teamcity.internal.sns.trigger.certificateCache.negativeTtlMs";
+    public static final long CERTIFICATE_CACHE_NEGATIVE_TTL_MS_DEFAULT = 60 * 1000L;
+    public static final String METRICS_MAX_SERIES_PROPERTY = "teamcity.internal.sns.trigger.metrics.maxSeries";
+    public static final int METRICS_MAX_SERIES_DEFAULT = 1000;
+    public static final String MAX_BODY_SIZE_PROPERTY = "teamcity.internal.sns.trigger.maxBodySize";
+    public static final long MAX_BODY_SIZE_DEFAULT = 1024 * 1024L;
+    public static final String MESSAGE_BODY_FILE_THRESHOLD_PROPERTY = "teamcity.internal.sns.trigger.messageBody.fileThresholdBytes";
+    public static final long MESSAGE_BODY_FILE_THRESHOLD_DEFAULT = 32 * 1024L;
+    public static final String MESSAGE_BODY_FILE_RETENTION_HOURS_PROPERTY = "teamcity.internal.sns.trigger.messageBody.fileRetentionHours";
+    public static final long MESSAGE_BODY_FILE_RETENTION_HOURS_DEFAULT = 7 * 24L;
+    public static final String MESSAGE_BODY_FILE_CLEANUP_INTERVAL_MINUTES_PROPERTY = "teamcity.internal.sns.trigger.messageBody.fileCleanupIntervalMinutes";
+    public static final int MESSAGE_BODY_FILE_CLEANUP_INTERVAL_MINUTES_DEFAULT = 60;
+    public static final String WAKE_UP_ENABLED_PROPERTY = "teamcity.internal.sns.trigger.wakeUp.enabled";
+    public static final String WAKE_UP_THREADS_PROPERTY = "teamcity.internal.sns.trigger.wakeUp.threads";
+    public static final int WAKE_UP_THREADS_DEFAULT = 2;
+    public static final String DEDUP_ENABLED_PROPERTY = "teamcity.internal.sns.trigger.dedup.enabled";
+    public static final String DEDUP_WINDOW_SECONDS_PROPERTY = "teamcity.internal.sns.trigger.dedup.windowSeconds";
+    public static final long DEDUP_WINDOW_SECONDS_DEFAULT = 24 * 60 * 60L;
+    public static final String DEDUP_MAX_MESSAGES_PROPERTY = "teamcity.internal.sns.trigger.dedup.maxMessages";
+    public static final int DEDUP_MAX_MESSAGES_DEFAULT = 500_000;
+    public static final String STORAGE_FLUSH_MAX_RETRIES_PROPERTY = "teamcity.internal.sns.trigger.storage.flushMaxRetries";
+    public static final int STORAGE_FLUSH_MAX_RETRIES_DEFAULT = 10;
+    public static final String STORAGE_FLUSH_BACKOFF_BASE_MS_PROPERTY = "teamcity.internal.sns.trigger.storage.flushBackoffBaseMs";
+    public static final long STORAGE_FLUSH_BACKOFF_BASE_MS_DEFAULT = 5;
+    public static final String STORAGE_FLUSH_BACKOFF_MAX_MS_PROPERTY = "teamcity.internal.sns.trigger.storage.flushBackoffMaxMs";
+    public static final long STORAGE_FLUSH_BACKOFF_MAX_MS_DEFAULT = 500;
+    public static final String STORAGE_FALLBACK_REPLAY_INTERVAL_SECONDS_PROPERTY = "teamcity.internal.sns.trigger.storage.fallbackReplayIntervalSeconds";
+    public static final int STORAGE_FALLBACK_REPLAY_INTERVAL_SECONDS_DEFAULT = 60;
+    public static final String STORAGE_CHANGE_STAMPS_ENABLED_PROPERTY = "teamcity.internal.sns.trigger.storage.changeStamps.enabled";
+    public static final String STORAGE_REFRESH_MIN_INTERVAL_SECONDS_PROPERTY = "teamcity.internal.sns.trigger.storage.refreshMinIntervalSeconds";
+    public static final int STORAGE_REFRESH_MIN_INTERVAL_SECONDS_DEFAULT = 10;
+    public static final String STORAGE_REFRESH_MAX_INTERVAL_SECONDS_PROPERTY = "teamcity.internal.sns.trigger.storage.refreshMaxIntervalSeconds";
+    public static final int STORAGE_REFRESH_MAX_INTERVAL_SECONDS_DEFAULT = 2 * 60;
+    public static final String PENDING_MAX_MESSAGES_PROPERTY = "teamcity.internal.sns.trigger.pending.maxMessages";
+    public static final int PENDING_MAX_MESSAGES_DEFAULT = 20_000;
+    public static final String PENDING_MAX_BYTES_PROPERTY = "teamcity.internal.sns.trigger.pending.maxBytes";
+    public static final long PENDING_MAX_BYTES_DEFAULT = 32 * 1024 * 1024L;
+    public static final String PENDING_TTL_HOURS_PROPERTY = "teamcity.internal.sns.trigger.pending.ttlHours";
+    public static final long PENDING_TTL_HOURS_DEFAULT = 7 * 24L;
+    public static final String BUDGET_MAX_BYTES_PROPERTY = "teamcity.internal.sns.trigger.budget.maxBytes";
+    public static final long BUDGET_MAX_BYTES_DEFAULT = 256 * 1024 * 1024L;
+    public static final String BUDGET_RETRY_AFTER_PROPERTY = "teamcity.internal.sns.trigger.budget.retryAfterSeconds";
+    public static final int BUDGET_RETRY_AFTER_DEFAULT = 300;
+    public static final String STORAGE_COMPACT_MESSAGES_ENABLED_PROPERTY = "teamcity.internal.sns.trigger.storage.compactMessages.enabled";
+
     // Key-collections for SNS message verification
     public static final List<String> SUBSCRIPTION_CONFIRMATION_KEYS_LIST = Collections.unmodifiableList(Arrays.asList(
             // same fields-set used for Unsubscription message validation
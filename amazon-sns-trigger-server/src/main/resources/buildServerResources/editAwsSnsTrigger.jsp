@@ -1,5 +1,7 @@
 <%@ include file="include.jsp" %>
 <%@ page import="jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor" %>
+<%@ page import="jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsBuildRateLimit" %>
+<%@ page import="jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TokenBucket" %>
 <%@ page import="jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants" %>
 <%@ page import="jetbrains.buildServer.controllers.admin.projects.BuildTriggerInfo" %>
 <%@ page import="jetbrains.buildServer.serverSide.CustomDataStorage" %>
@@ -60,6 +62,57 @@
     <span class="error" id="error_triggerUuid"></span>
 </td>
 
+<l:settingsGroup title="Build Coalescing" className="advancedSetting"/>
+<tr class="advancedSetting">
+    <td><label for="quietPeriodSeconds">Quiet period:</label></td>
+    <td>
+        <props:textProperty name="quietPeriodSeconds" style="width: 6em;"/> seconds
+        <span class="smallNote">Wait until no SNS message is published for this time, then queue one build for all pending messages. Leave empty to queue a build on every poll.</span>
+        <span class="error" id="error_quietPeriodSeconds"></span>
+    </td>
+</tr>
+<tr class="advancedSetting">
+    <td><label for="maxWaitSeconds">Max wait:</label></td>
+    <td>
+        <props:textProperty name="maxWaitSeconds" style="width: 6em;"/> seconds
+        <span class="smallNote">Queue a build at the latest this time after the oldest pending message, even if messages keep coming. Default: 600.</span>
+        <span class="error" id="error_maxWaitSeconds"></span>
+    </td>
+</tr>
+<tr class="advancedSetting">
+    <td><label for="maxMessagesPerBuild">Max messages per build:</label></td>
+    <td>
+        <props:textProperty name="maxMessagesPerBuild" style="width: 6em;"/>
+        <span class="smallNote">Larger bursts are split into several builds. Leave empty for no limit.</span>
+        <span class="error" id="error_maxMessagesPerBuild"></span>
+    </td>
+</tr>
+<tr class="advancedSetting">
+    <td><label for="mergeIntoQueuedBuild">Merge into queued build:</label></td>
+    <td>
+        <props:checkboxProperty name="mergeIntoQueuedBuild"/>
+        <span class="smallNote">While a build queued by this trigger is still waiting in the queue, pass newer messages to it instead of queueing another build.</span>
+    </td>
+</tr>
+
+<l:settingsGroup title="Build Rate Limit" className="advancedSetting"/>
+<tr class="advancedSetting">
+    <td><label for="maxBuildsPerHour">Max builds per hour:</label></td>
+    <td>
+        <props:textProperty name="maxBuildsPerHour" style="width: 6em;"/>
+        <span class="smallNote">When the limit is reached, messages accumulate and are passed to the next allowed build. Leave empty for no limit.</span>
+        <span class="error" id="error_maxBuildsPerHour"></span>
+    </td>
+</tr>
+<tr class="advancedSetting">
+    <td><label for="buildBurst">Burst:</label></td>
+    <td>
+        <props:textProperty name="buildBurst" style="width: 6em;"/>
+        <span class="smallNote">Number of builds that can be queued at once after a quiet time. Default: 1.</span>
+        <span class="error" id="error_buildBurst"></span>
+    </td>
+</tr>
+
 <c:if test="${not empty currentBuildTypeExternalId}">
     <l:settingsGroup title="HTTP(S) Endpoint"/>
     <tr>
@@ -77,6 +130,8 @@
         String topicArn = null;
         String topicSubscriptionArn = null;
         String topicUnsubscriptionUrl = null;
+        // the stored bucket is written only when builds are queued or the limit is reached, its state is computed for now
+        long rateLimitWaitMs = 0;
 
         BuildTriggerInfo triggerInfo = triggerDescriptorBean.getSelectedTrigger();
 
@@ -89,6 +144,11 @@
                 topicArn = cds.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN);
                 topicSubscriptionArn = cds.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN);
                 topicUnsubscriptionUrl = cds.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL);
+                SnsBuildRateLimit rateLimit = SnsBuildRateLimit.fromProperties(triggerDescriptor.getProperties());
+                TokenBucket bucket = TokenBucket.decode(cds.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_RATE_LIMIT));
+                if (rateLimit.isEnabled() && bucket != null) {
+                    rateLimitWaitMs = rateLimit.getMillisUntilNextBuild(bucket, System.currentTimeMillis());
+                }
             }
         }
     %>
@@ -121,6 +181,12 @@
                 </c:if>
             </c:otherwise>
         </c:choose>
+        <c:if test="<%=rateLimitWaitMs > 0%>">
+            <tr>
+                <td><label>Build rate limit:</label></td>
+                <td><label>Reached, new messages accumulate until the next build is allowed in <%=rateLimitWaitMs / 1000 + 1%>s</label></td>
+            </tr>
+        </c:if>
     </c:if>
 
     <script type="text/javascript">
@@ -5,8 +5,15 @@ import io.mockk.junit5.MockKExtension
 import io.mockk.mockk
 import io.mockk.mockkStatic
 import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricLabels
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricsRegistry
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics
 import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsBuildTriggerService
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsTriggerRoutingIndex
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsStorageFlushFallback
+import jetbrains.buildServer.clouds.amazon.sns.trigger.service.SnsTriggerStorageSessions
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.AwsSnsMessageDetailsHelper
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
 import jetbrains.buildServer.controllers.AuthorizationInterceptor
@@ -14,12 +21,12 @@ import jetbrains.buildServer.http.HttpApi
 import jetbrains.buildServer.serverSide.CustomDataStorage
 import jetbrains.buildServer.serverSide.ProjectManager
 import jetbrains.buildServer.serverSide.SBuildType
-import jetbrains.buildServer.serverSide.SProject
 import jetbrains.buildServer.serverSide.SecurityContextEx
 import jetbrains.buildServer.serverSide.ServerResponsibilityImpl
 import jetbrains.buildServer.serverSide.impl.PolledTriggerContextImpl
 import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl
 import jetbrains.buildServer.web.openapi.WebControllerManager
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.extension.ExtendWith
 import java.time.Instant
@@ -39,24 +46,34 @@ class AwsSnsHttpEndpointControllerTest {
         val pmMock = mockk<ProjectManager>()
         val saMock = mockk<HttpApi>()
         val aiMock = mockk<AuthorizationInterceptor>(relaxed = true)
-        val projectMock = mockk<SProject>()
         val buildTypeMock = mockk<SBuildType>()
         val buildTriggerMock = mockk<BuildTriggerDescriptor>()
         val btdCollection: Collection<BuildTriggerDescriptor> = listOf(buildTriggerMock)
+        val metrics = SnsTriggerMetrics(MetricsRegistry(100))
+        val flushFallback = SnsStorageFlushFallback(mockk(relaxed = true), mockk(relaxed = true), mockk(relaxed = true))
 
-        every { pmMock.findProjectByExternalId(any()) } returns projectMock
-        every { projectMock.findBuildTypeByExternalId(any()) } returns buildTypeMock
+        every { pmMock.allBuildTypes } returns listOf(buildTypeMock)
+        every { buildTypeMock.internalId } returns "bt1"
+        every { buildTypeMock.externalId } returns "TeamcityGoogleStorage_Build"
+        every { buildTypeMock.projectExternalId } returns "TeamcityGoogleStorage"
         every { buildTypeMock.buildTriggersCollection } returns btdCollection
         every { buildTriggerMock.type } returns SnsBuildTriggerService.TRIGGER_NAME
+        every { buildTriggerMock.id } returns "TRIGGER_1"
 
         testable =
             AwsSnsHttpEndpointController(
                 mockk(),
                 wcmMock,
-                pmMock,
+                SnsTriggerRoutingIndex(mockk(relaxed = true), pmMock, SecurityContextImpl(ServerResponsibilityImpl())),
                 saMock,
                 aiMock,
-                SecurityContextImpl(ServerResponsibilityImpl())
+                mockk(relaxed = true),
+                metrics,
+                mockk(relaxed = true),
+                flushFallback,
+                SnsTriggerStorageSessions(flushFallback, mockk(relaxed = true)),
+                mockk(relaxed = true),
+                mockk(relaxed = true)
             )
 
         val reqMock = mockk<HttpServletRequest>(relaxed = true)
@@ -70,7 +87,7 @@ class AwsSnsHttpEndpointControllerTest {
         every { buildTriggerMock.properties } returns mapOf(AwsSnsTriggerConstants.TRIGGER_UUID_PROPERTY_KEY to "2d1c326f-8d1a-479c-9d33-ba6a1afe2483")
         every { reqMock.method } returns "POST"
 
-        val stream = "{}".byteInputStream()
+        val stream = """{"Type":"Notification","MessageId":"fab38dbf-9f2b-50f7-9897-d633977b095a"}""".byteInputStream()
         every { reqMock.inputStream } returns object : ServletInputStream() {
             override fun read(): Int = stream.read()
             override fun isFinished(): Boolean = stream.available() <= 0
@@ -79,10 +96,9 @@ class AwsSnsHttpEndpointControllerTest {
         }
 
         every { PolledTriggerContextImpl.getCustomDataStorage(buildTypeMock, buildTriggerMock) } returns cdsMock
-        every { AwsSnsMessageDetailsHelper.isValidSignature(any(), any()) } returns true
-        every { AwsSnsMessageDetailsHelper.isNotification(any()) } returns true
+        every { AwsSnsMessageDetailsHelper.isValidSignature(any<SnsEnvelope>(), any(), any()) } returns true
         val subscriptionArn = "arn:aws:sns:us-west-2:123456789012:MyTopic:2bcfbf39-05c3-41de-beaa-fcfcc21c8f55"
-        every { AwsSnsMessageDetailsHelper.convertToNotificationDto(reqMock, any()) } returns SnsNotificationDto(
+        every { AwsSnsMessageDetailsHelper.convertToNotificationDto(reqMock, any<SnsEnvelope>()) } returns SnsNotificationDto(
             "fab38dbf-9f2b-50f7-9897-d633977b095a",
             subscriptionArn,
             "arn:aws:sns:us-west-2:123456789012:MyTopic",
@@ -97,5 +113,13 @@ class AwsSnsHttpEndpointControllerTest {
 
         val result = testable.doHandle(reqMock, resMock)
         assert(result == null)
+
+        val labels = MetricLabels.forTrigger(buildTypeMock, buildTriggerMock)
+        val requests = metrics.registry.findCounter(
+            SnsTriggerMetrics.REQUESTS,
+            labels.with("type", "Notification").with("outcome", SnsTriggerMetrics.OUTCOME_ACCEPTED)
+        )
+        assertEquals(1L, requests?.value)
+        assertEquals(1L, metrics.registry.findHistogram(SnsTriggerMetrics.STAGE_DURATION, labels.with("stage", SnsTriggerMetrics.STAGE_STORE))?.count)
     }
 }
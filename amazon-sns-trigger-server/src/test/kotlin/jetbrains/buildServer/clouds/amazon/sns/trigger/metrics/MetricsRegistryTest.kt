@@ -0,0 +1,63 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.metrics
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.StringWriter
+
+class MetricsRegistryTest {
+    private val testable = MetricsRegistry(2)
+
+    private fun trigger(id: String) = MetricLabels.of(MetricLabels.PROJECT, "Project", MetricLabels.BUILD_TYPE, "Project_Build", MetricLabels.TRIGGER, id)
+
+    @Test
+    fun `series over the limit are folded into the overflow series`() {
+        testable.counter("requests", "help", trigger("T1")).increment()
+        testable.counter("requests", "help", trigger("T2")).increment()
+        testable.counter("requests", "help", trigger("T3")).increment()
+        testable.counter("requests", "help", trigger("T4")).add(2)
+        testable.counter("requests", "help", trigger("T1")).increment()
+
+        assertEquals(2L, testable.findCounter("requests", trigger("T1"))?.value)
+        assertNull(testable.findCounter("requests", trigger("T3")))
+        assertEquals(3L, testable.findCounter("requests", trigger("T3").overflow())?.value)
+        assertEquals(3, testable.getSeries("requests").count())
+    }
+
+    @Test
+    fun `non trigger labels are kept in the overflow series`() {
+        val labels = trigger("T1").with("stage", "parse")
+
+        assertEquals(
+            MetricLabels.of(
+                MetricLabels.PROJECT, MetricLabels.OVERFLOW_VALUE,
+                MetricLabels.BUILD_TYPE, MetricLabels.OVERFLOW_VALUE,
+                MetricLabels.TRIGGER, MetricLabels.OVERFLOW_VALUE,
+                "stage", "parse"
+            ),
+            labels.overflow()
+        )
+    }
+
+    @Test
+    fun `histogram buckets are exported cumulatively`() {
+        val histogram = testable.histogram("latency_seconds", "Latency", doubleArrayOf(0.1, 1.0), trigger("T1"))
+        histogram.observe(0.05)
+        histogram.observe(0.5)
+        histogram.observe(5.0)
+        testable.counter("requests_total", "Requests", MetricLabels.of("outcome", "a\"b")).increment()
+
+        val text = StringWriter().also { testable.writeTextFormat(it) }.toString()
+        val labels = "project=\"Project\",build_type=\"Project_Build\",trigger=\"T1\""
+
+        assertTrue(text.contains("# TYPE latency_seconds histogram\n"), text)
+        assertTrue(text.contains("latency_seconds_bucket{$labels,le=\"0.1\"} 1\n"), text)
+        assertTrue(text.contains("latency_seconds_bucket{$labels,le=\"1\"} 2\n"), text)
+        assertTrue(text.contains("latency_seconds_bucket{$labels,le=\"+Inf\"} 3\n"), text)
+        assertTrue(text.contains("latency_seconds_sum{$labels} 5.55\n"), text)
+        assertTrue(text.contains("latency_seconds_count{$labels} 3\n"), text)
+        assertTrue(text.contains("# TYPE requests_total counter\n"), text)
+        assertTrue(text.contains("requests_total{outcome=\"a\\\"b\"} 1\n"), text)
+    }
+}
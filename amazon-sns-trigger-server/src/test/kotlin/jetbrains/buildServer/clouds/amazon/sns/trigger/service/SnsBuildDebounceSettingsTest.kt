@@ -0,0 +1,107 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsPendingMessage
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
+import jetbrains.buildServer.serverSide.InvalidProperty
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.time.Instant
+
+class SnsBuildDebounceSettingsTest {
+    private val now = Instant.parse("2024-01-01T12:00:00Z")
+
+    private fun messages(count: Int, newestSecondsAgo: Long, intervalSeconds: Long = 0): Map<String, SnsPendingMessage> =
+        (0 until count).associate { i ->
+            val id = "m$i"
+            id to SnsPendingMessage(id, now.minusSeconds(newestSecondsAgo + (count - 1 - i) * intervalSeconds), 100)
+        }
+
+    private fun settings(quietPeriod: String? = null, maxWait: String? = null, maxMessages: String? = null) =
+        SnsBuildDebounceSettings.fromProperties(
+            listOfNotNull(
+                quietPeriod?.let { AwsSnsTriggerConstants.TRIGGER_QUIET_PERIOD_PROPERTY_KEY to it },
+                maxWait?.let { AwsSnsTriggerConstants.TRIGGER_MAX_WAIT_PROPERTY_KEY to it },
+                maxMessages?.let { AwsSnsTriggerConstants.TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY to it }
+            ).toMap()
+        )
+
+    @Test
+    fun `without settings all pending messages go to a single build`() {
+        val batches = settings().selectBatches(messages(500, 0), now)
+
+        assertFalse(settings().isDebounceEnabled)
+        assertEquals(1, batches.size)
+        assertEquals(500, batches[0].size)
+    }
+
+    @Test
+    fun `build waits for the quiet period`() {
+        val settings = settings(quietPeriod = "30")
+
+        assertTrue(settings.selectBatches(messages(10, 10), now).isEmpty())
+        assertEquals(listOf(10), settings.selectBatches(messages(10, 30), now).map { it.size })
+    }
+
+    @Test
+    fun `steady trickle triggers after max wait`() {
+        val settings = settings(quietPeriod = "30", maxWait = "120")
+
+        // a message every 10 seconds never leaves a 30 seconds gap
+        assertTrue(settings.selectBatches(messages(11, 5, 10), now).isEmpty())
+        assertEquals(listOf(13), settings.selectBatches(messages(13, 5, 10), now).map { it.size })
+    }
+
+    @Test
+    fun `burst is split into full batches and the rest waits for the quiet period`() {
+        val settings = settings(quietPeriod = "30", maxMessages = "100")
+        val pending = messages(550, 1)
+
+        val batches = settings.selectBatches(pending, now)
+
+        assertEquals(listOf(100, 100, 100, 100, 100), batches.map { it.size })
+        assertEquals(500, batches.flatMap { it.keys }.toSet().size)
+
+        val rest = pending.filterKeys { key -> batches.none { it.containsKey(key) } }
+        assertEquals(listOf(50), settings.selectBatches(rest, now.plusSeconds(30)).map { it.size })
+    }
+
+    @Test
+    fun `max wait is never less than the quiet period`() {
+        val settings = settings(quietPeriod = "900")
+
+        assertEquals(900, settings.maxWait.seconds)
+        assertEquals(0, settings.maxMessagesPerBuild)
+    }
+
+    @Test
+    fun `merge into queued build is off by default`() {
+        val settings = SnsBuildDebounceSettings.fromProperties(
+            mapOf(AwsSnsTriggerConstants.TRIGGER_MERGE_INTO_QUEUED_BUILD_PROPERTY_KEY to "true")
+        )
+
+        assertFalse(settings().isMergeIntoQueuedBuild)
+        assertTrue(settings.isMergeIntoQueuedBuild)
+        assertEquals("merge into queued build", settings.describe())
+    }
+
+    @Test
+    fun validate() {
+        val errors = mutableListOf<InvalidProperty>()
+
+        SnsBuildDebounceSettings.validate(
+            mapOf(
+                AwsSnsTriggerConstants.TRIGGER_QUIET_PERIOD_PROPERTY_KEY to "60",
+                AwsSnsTriggerConstants.TRIGGER_MAX_WAIT_PROPERTY_KEY to "30",
+                AwsSnsTriggerConstants.TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY to "many"
+            ),
+            errors
+        )
+
+        assertEquals(
+            setOf(AwsSnsTriggerConstants.TRIGGER_MAX_WAIT_PROPERTY_KEY, AwsSnsTriggerConstants.TRIGGER_MAX_MESSAGES_PER_BUILD_PROPERTY_KEY),
+            errors.map { it.propertyName }.toSet()
+        )
+    }
+}
@@ -10,6 +10,8 @@ import io.mockk.mockkStatic
 import io.mockk.verifyOrder
 import jetbrains.buildServer.ExtensionHolder
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricsRegistry
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
 import jetbrains.buildServer.serverSide.CustomDataStorage
@@ -17,10 +19,12 @@ import jetbrains.buildServer.serverSide.ProjectManager
 import jetbrains.buildServer.serverSide.WebLinks
 import jetbrains.buildServer.serverSide.impl.PolledTriggerContextImpl
 import jetbrains.buildServer.web.openapi.PluginDescriptor
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.extension.ExtendWith
+import java.util.concurrent.Executor
 
 @ExtendWith(MockKExtension::class)
 class SnsBuildTriggerServiceTest {
@@ -43,11 +47,18 @@ class SnsBuildTriggerServiceTest {
     fun startUp() {
         every { descriptorMock.getPluginResourcesPath(SnsBuildTriggerService.EDIT_PARAMS_URL) } returns SnsBuildTriggerService.EDIT_PARAMS_URL
         every { webLinksMock.getRootUrlByProjectExternalId(null) } returns "root/url"
+        val changeStamps = mockk<SnsStorageChangeStamps>(relaxed = true)
+        val storageSessions = SnsTriggerStorageSessions(mockk(relaxed = true), changeStamps)
         triggerContext =
             AwsSnsTriggeringContext(
                 projectManagerMock,
                 webLinksMock,
-                SnsMessageParametersCustomisationService(mockk(relaxed = true))
+                SnsMessageParametersCustomisationService(mockk(relaxed = true)),
+                SnsTriggerMetrics(MetricsRegistry(100)),
+                SnsTriggerRuntimeRegistry(storageSessions, changeStamps, mockk(relaxed = true), Executor { it.run() }),
+                storageSessions,
+                mockk<SnsMessageBodyFiles>(relaxed = true).also { every { it.getAbsolutePath(any()) } returns null },
+                mockk(relaxed = true)
             )
         testable = SnsBuildTriggerService(
             extensionHolderMock,
@@ -75,13 +86,20 @@ class SnsBuildTriggerServiceTest {
         val cdsMock = mockk<CustomDataStorageWrapper>(relaxed = true)
 
         every { cdsMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES) } returns null
+        every { cdsMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_NEXT_EXPIRY) } returns null
+        every { cdsMock.valuesSafe } returns emptyMap()
 
-        testable.registerMessage(dto, cdsMock)
+        assertEquals(0, testable.registerMessage(mockk(relaxed = true), mockk(relaxed = true), dto, cdsMock).total)
 
         verifyOrder {
+            cdsMock.startBatch()
             cdsMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES)
-            cdsMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, any())
-            cdsMock.flush()
+            cdsMock.valuesSafe
+            cdsMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_NEXT_EXPIRY)
+            cdsMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_NEXT_EXPIRY, null)
+            cdsMock.putValue(SnsMessageStore.messageKey("some-id"), any())
+            cdsMock.putValue(SnsMessageStore.indexKey("some-id"), null)
+            cdsMock.commitBatch()
         }
         confirmVerified(cdsMock)
     }
@@ -1,19 +1,26 @@
 package jetbrains.buildServer.clouds.amazon.sns.trigger.service
 
-import com.fasterxml.jackson.core.type.TypeReference
-import com.fasterxml.jackson.databind.ObjectMapper
 import io.mockk.*
 import io.mockk.impl.annotations.MockK
 import io.mockk.impl.annotations.RelaxedMockK
 import io.mockk.junit5.MockKExtension
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
 import jetbrains.buildServer.buildTriggers.PolledTriggerContext
 import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricLabels
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.MetricsRegistry
+import jetbrains.buildServer.clouds.amazon.sns.trigger.metrics.SnsTriggerMetrics
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.SnsJson
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TokenBucket
 import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
 import jetbrains.buildServer.serverSide.BuildCustomizerEx
 import jetbrains.buildServer.serverSide.BuildPromotionEx
 import jetbrains.buildServer.serverSide.BuildTypeEx
 import jetbrains.buildServer.serverSide.CustomDataStorage
 import jetbrains.buildServer.serverSide.ProjectManager
+import jetbrains.buildServer.serverSide.SQueuedBuild
+import jetbrains.buildServer.serverSide.TriggeredBy
+import jetbrains.buildServer.serverSide.TriggeredByBuilder
 import jetbrains.buildServer.serverSide.WebLinks
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Assertions.assertTrue
@@ -21,6 +28,7 @@ import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.extension.ExtendWith
 import java.time.Instant
+import java.util.concurrent.Executor
 
 @ExtendWith(MockKExtension::class)
 class SnsBuildTriggeringPolicyTest {
@@ -50,12 +58,19 @@ class SnsBuildTriggeringPolicyTest {
 
     @BeforeEach
     fun startUp() {
+        val changeStamps = mockk<SnsStorageChangeStamps>(relaxed = true)
+        val storageSessions = SnsTriggerStorageSessions(mockk(relaxed = true), changeStamps)
         triggerContext =
             spyk(
                 AwsSnsTriggeringContext(
                     projectManagerMock,
                     webLinksMock,
-                    parametersCustomizerMock
+                    parametersCustomizerMock,
+                    SnsTriggerMetrics(MetricsRegistry(100)),
+                    SnsTriggerRuntimeRegistry(storageSessions, changeStamps, mockk(relaxed = true), Executor { it.run() }),
+                    storageSessions,
+                    mockk<SnsMessageBodyFiles>(relaxed = true).also { every { it.getAbsolutePath(any()) } returns null },
+                    mockk(relaxed = true)
                 )
             )
         testable = spyk(SnsBuildTriggeringPolicy(triggerContext), recordPrivateCalls = true)
@@ -65,48 +80,217 @@ class SnsBuildTriggeringPolicyTest {
     fun triggerBuild() {
         val contextMock = mockk<PolledTriggerContext>(relaxed = true)
         val slot = slot<String>()
-        val objectMapperMock = mockk<ObjectMapper>(relaxed = true)
+        val storage = mutableMapOf(
+            SnsMessageStore.messageKey("1") to SnsJson.MESSAGE_WRITER.writeValueAsString(
+                SnsNotificationDto().apply { messageId = "1"; timestamp = Instant.now() }
+            ),
+            // left from a rate limit that isn't configured anymore
+            AwsSnsTriggerConstants.TRIGGER_STORE_RATE_LIMIT to TokenBucket(0.0, 0, true).encode()
+        )
 
         every { contextMock.customDataStorage } returns customDataStorageMock
         every { contextMock.createBuildCustomizer(null) } returns buildCustomizerMock
         every { contextMock.buildType } returns buildTypeMock
-        every { customDataStorageMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES) } returns "something"
+        every { customDataStorageMock.values } answers { HashMap(storage) }
+        every { customDataStorageMock.getValue(any()) } answers { storage[firstArg()] }
+        every { customDataStorageMock.putValue(any(), any()) } answers {
+            val value = secondArg<String?>()
+            if (value == null) {
+                storage.remove(firstArg())
+            } else {
+                storage[firstArg()] = value
+            }
+            Unit
+        }
         every { buildCustomizerMock.createPromotion() } returns buildPromotionMock
         every { buildPromotionMock.customParameters = any() } returns Unit
         every { buildPromotionMock.persist() } returns Unit
         every { buildTypeMock.addToQueue(buildPromotionMock, capture(slot)) } returns mockk()
-        every { triggerContext.objectMapper } returns objectMapperMock
-        every {
-            objectMapperMock.readValue(
-                "something",
-                any() as TypeReference<*>
-            )
-        } returns mutableMapOf("1" to SnsNotificationDto().apply { timestamp = Instant.now() })
 
         testable.triggerBuild(contextMock)
         assertTrue(slot.isCaptured)
         Assertions.assertEquals("##type='sns' triggerId='' queueMergingEnabled='false'", slot.captured)
+        assertTrue(storage.isEmpty())
         verify(exactly = 1) { customDataStorageMock.refresh() }
-        verify(exactly = 3) { customDataStorageMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES) }
-        verify(exactly = 1) { customDataStorageMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, null) }
-        verify(exactly = 2) { customDataStorageMock.flush(any()) }
-        verify(exactly = 3) { customDataStorageMock.values }
-        confirmVerified(customDataStorageMock)
+        verify(exactly = 1) { customDataStorageMock.putValue(SnsMessageStore.messageKey("1"), null) }
+        verify(exactly = 0) { customDataStorageMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, any()) }
+
+        val labels = MetricLabels.of(MetricLabels.PROJECT, "", MetricLabels.BUILD_TYPE, "", MetricLabels.TRIGGER, "")
+        val registry = triggerContext.metrics.registry
+        Assertions.assertEquals(1L, registry.findCounter(SnsTriggerMetrics.BUILDS_TRIGGERED, labels)?.value)
+        Assertions.assertEquals(1L, registry.findHistogram(SnsTriggerMetrics.MESSAGES_PER_BUILD, labels)?.count)
+        Assertions.assertEquals(1L, registry.findHistogram(SnsTriggerMetrics.MESSAGE_DELAY, labels)?.count)
+    }
+
+    @Test
+    fun `new messages are merged into the build queued by the trigger`() {
+        val contextMock = mockk<PolledTriggerContext>(relaxed = true)
+        val trigger = mockk<BuildTriggerDescriptor>(relaxed = true)
+        val storage = mutableMapOf(
+            SnsMessageStore.messageKey("2") to SnsJson.MESSAGE_WRITER.writeValueAsString(
+                SnsNotificationDto().apply { messageId = "2"; subject = "second"; timestamp = Instant.now() }
+            )
+        )
+        val queuedBuild = mockk<SQueuedBuild>(relaxed = true)
+        val triggeredBy = mockk<TriggeredBy>()
+        val parameters = slot<Map<String, String>>()
+
+        every { trigger.id } returns "TRIGGER_1"
+        every { trigger.properties } returns mapOf(AwsSnsTriggerConstants.TRIGGER_MERGE_INTO_QUEUED_BUILD_PROPERTY_KEY to "true")
+        every { contextMock.triggerDescriptor } returns trigger
+        every { contextMock.customDataStorage } returns customDataStorageMock
+        every { contextMock.buildType } returns buildTypeMock
+        every { customDataStorageMock.values } answers { HashMap(storage) }
+        every { customDataStorageMock.getValue(any()) } answers { storage[firstArg()] }
+        every { customDataStorageMock.putValue(any(), any()) } answers {
+            storage.remove(firstArg())
+            Unit
+        }
+        every { triggeredBy.parameters } returns mapOf(
+            TriggeredByBuilder.TYPE_PARAM_NAME to SnsBuildTriggeringPolicy.TRIGGERED_BY_TYPE,
+            TriggeredByBuilder.TRIGGER_ID_PARAM_NAME to "TRIGGER_1"
+        )
+        every { queuedBuild.triggeredBy } returns triggeredBy
+        every { queuedBuild.buildPromotion } returns buildPromotionMock
+        every { buildPromotionMock.queuedBuild } returns queuedBuild
+        every { buildPromotionMock.customParameters } returns mapOf(
+            AwsSnsTriggerConstants.SNS_MESSAGE_SUBJECT_PARAMETER_PLACEHOLDER to "first",
+            AwsSnsTriggerConstants.SNS_MESSAGE_ATTRIBUTES_PARAMETER_PLACEHOLDER + "stale" to "value",
+            "custom" to "kept"
+        )
+        every { buildPromotionMock.customParameters = capture(parameters) } returns Unit
+        every { buildPromotionMock.persist() } returns Unit
+        every { buildTypeMock.getQueuedBuilds(null) } returns listOf(queuedBuild)
+
+        testable.triggerBuild(contextMock)
+
+        verify(exactly = 0) { buildTypeMock.addToQueue(any(), any()) }
+        verify(exactly = 1) { buildPromotionMock.persist() }
+        Assertions.assertEquals(
+            mapOf(AwsSnsTriggerConstants.SNS_MESSAGE_SUBJECT_PARAMETER_PLACEHOLDER to "second", "custom" to "kept"),
+            parameters.captured
+        )
+        assertTrue(storage.isEmpty())
+
+        val labels = MetricLabels.of(MetricLabels.PROJECT, "", MetricLabels.BUILD_TYPE, "", MetricLabels.TRIGGER, "TRIGGER_1")
+        Assertions.assertEquals(1L, triggerContext.metrics.registry.findCounter(SnsTriggerMetrics.BUILDS_MERGED, labels)?.value)
+    }
+
+    @Test
+    fun `messages accumulate while the build rate limit is reached`() {
+        val contextMock = mockk<PolledTriggerContext>(relaxed = true)
+        val trigger = mockk<BuildTriggerDescriptor>(relaxed = true)
+        val storage = mutableMapOf<String, String>()
+        fun message(id: String) = SnsJson.MESSAGE_WRITER.writeValueAsString(
+            SnsNotificationDto().apply { messageId = id; timestamp = Instant.now() }
+        )
+        storage[SnsMessageStore.messageKey("1")] = message("1")
+
+        every { trigger.id } returns "TRIGGER_1"
+        every { trigger.properties } returns mapOf(
+            AwsSnsTriggerConstants.TRIGGER_MAX_BUILDS_PER_HOUR_PROPERTY_KEY to "1",
+            AwsSnsTriggerConstants.TRIGGER_BUILD_BURST_PROPERTY_KEY to "1"
+        )
+        every { contextMock.triggerDescriptor } returns trigger
+        every { contextMock.customDataStorage } returns customDataStorageMock
+        every { contextMock.createBuildCustomizer(null) } returns buildCustomizerMock
+        every { contextMock.buildType } returns buildTypeMock
+        every { customDataStorageMock.values } answers { HashMap(storage) }
+        every { customDataStorageMock.getValue(any()) } answers { storage[firstArg()] }
+        every { customDataStorageMock.putValue(any(), any()) } answers {
+            val value = secondArg<String?>()
+            if (value == null) {
+                storage.remove(firstArg())
+            } else {
+                storage[firstArg()] = value
+            }
+            Unit
+        }
+        every { buildCustomizerMock.createPromotion() } returns buildPromotionMock
+        every { buildTypeMock.addToQueue(buildPromotionMock, any()) } returns mockk()
+
+        testable.triggerBuild(contextMock)
+        verify(exactly = 1) { buildTypeMock.addToQueue(any(), any()) }
+
+        triggerContext.storageSessions.open(contextMock).putValue(SnsMessageStore.messageKey("2"), message("2"))
+        testable.triggerBuild(contextMock)
+        testable.triggerBuild(contextMock)
+
+        verify(exactly = 1) { buildTypeMock.addToQueue(any(), any()) }
+        assertTrue(storage.containsKey(SnsMessageStore.messageKey("2")))
+        assertTrue(TokenBucket.decode(storage[AwsSnsTriggerConstants.TRIGGER_STORE_RATE_LIMIT])!!.isExhausted)
+
+        val labels = MetricLabels.of(MetricLabels.PROJECT, "", MetricLabels.BUILD_TYPE, "", MetricLabels.TRIGGER, "TRIGGER_1")
+        Assertions.assertEquals(2L, triggerContext.metrics.registry.findCounter(SnsTriggerMetrics.BUILDS_THROTTLED, labels)?.value)
+    }
+
+    @Test
+    fun `idle trigger doesn't read the storage until something is stored`() {
+        val contextMock = mockk<PolledTriggerContext>(relaxed = true)
+        every { contextMock.customDataStorage } returns customDataStorageMock
+        every { contextMock.buildType } returns buildTypeMock
+        every { customDataStorageMock.values } returns emptyMap()
+        every { customDataStorageMock.getValue(any()) } returns null
+
+        testable.triggerBuild(contextMock)
+        testable.triggerBuild(contextMock)
+        verify(exactly = 1) { customDataStorageMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES) }
+
+        triggerContext.storageSessions.open(contextMock).putValue(SnsMessageStore.messageKey("1"), "stored by another thread")
+
+        testable.triggerBuild(contextMock)
+        testable.triggerBuild(contextMock)
+        verify(exactly = 2) { customDataStorageMock.getValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES) }
     }
 
     @Test
     fun triggerActivated() {
+        val subscriptionStorage = mockk<CustomDataStorage>(relaxed = true)
+        every { subscriptionStorage.values } returns mapOf(
+            AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN to "topic",
+            AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN to "subscription",
+            SnsMessageStore.messageKey("1") to "stale message"
+        )
+        every { buildTypeMock.getCustomDataStorage(any()) } returns subscriptionStorage
         val context = mockk<PolledTriggerContext>(relaxed = true)
+        every { context.buildType } returns buildTypeMock
         every { context.customDataStorage } returns customDataStorageMock
 
         testable.triggerActivated(context)
 
         verifyOrder {
-            customDataStorageMock.putValues(any())
+            customDataStorageMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN, "topic")
             customDataStorageMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES, null)
         }
-        verify { customDataStorageMock.flush(any()) }
-        verify { customDataStorageMock.values }
-        confirmVerified(customDataStorageMock)
+        verify { customDataStorageMock.putValue(AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN, "subscription") }
+        verify(exactly = 0) { customDataStorageMock.putValue(SnsMessageStore.messageKey("1"), "stale message") }
+        verify(exactly = 0) { customDataStorageMock.putValues(any()) }
+    }
+
+    @Test
+    fun triggerDeactivated() {
+        val subscriptionStorage = mockk<CustomDataStorage>(relaxed = true)
+        every { buildTypeMock.getCustomDataStorage(any()) } returns subscriptionStorage
+        every { customDataStorageMock.values } returns mapOf(
+            AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN to "topic",
+            AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN to "subscription",
+            AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL to "unsubscribe",
+            SnsMessageStore.messageKey("1") to "pending message",
+            SnsMessageStore.indexKey("1") to "index",
+            "sharedString.abc" to "shared"
+        )
+        val context = mockk<PolledTriggerContext>(relaxed = true)
+        every { context.buildType } returns buildTypeMock
+        every { context.customDataStorage } returns customDataStorageMock
+
+        testable.triggerDeactivated(context)
+
+        verify {
+            subscriptionStorage.putValues(mapOf(
+                AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_TOPIC_ARN to "topic",
+                AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_SUBSCRIPTION_ARN to "subscription",
+                AwsSnsTriggerConstants.TRIGGER_STORE_CURRENT_UNSUBSCRIBE_URL to "unsubscribe"
+            ))
+        }
     }
 }
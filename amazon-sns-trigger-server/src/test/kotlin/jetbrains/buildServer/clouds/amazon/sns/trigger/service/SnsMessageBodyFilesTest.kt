@@ -0,0 +1,70 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.mockk
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
+import jetbrains.buildServer.serverSide.SBuildType
+import jetbrains.buildServer.serverSide.ServerPaths
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.time.Instant
+
+class SnsMessageBodyFilesTest {
+    private val buildType = mockk<SBuildType>().also { every { it.internalId } returns "bt1" }
+    private val trigger = mockk<BuildTriggerDescriptor>().also { every { it.id } returns "TRIGGER_1" }
+
+    private fun create(dataDir: File) = SnsMessageBodyFiles(
+        mockk<ServerPaths>().also { every { it.pluginDataDirectory } returns dataDir },
+        mockk(relaxed = true)
+    )
+
+    private fun message(body: String) = SnsNotificationDto().apply {
+        messageId = "fab38dbf-9f2b-50f7-9897-d633977b095a"
+        message = body
+        timestamp = Instant.now()
+    }
+
+    @Test
+    fun `test large body is moved to a file`(@TempDir dataDir: File) {
+        val testable = create(dataDir)
+        val body = "x".repeat(AwsSnsTriggerConstants.MESSAGE_BODY_FILE_THRESHOLD_DEFAULT.toInt() + 1)
+        val message = message(body)
+
+        testable.offload(buildType, trigger, message)
+
+        assertNull(message.message)
+        val file = File(testable.getAbsolutePath(message)!!)
+        assertEquals(body, file.readText())
+        assertEquals(File(dataDir, message.messageFile!!).absolutePath, file.absolutePath)
+    }
+
+    @Test
+    fun `test small body stays with the message`(@TempDir dataDir: File) {
+        val testable = create(dataDir)
+        val message = message("small")
+
+        testable.offload(buildType, trigger, message)
+
+        assertEquals("small", message.message)
+        assertNull(message.messageFile)
+        assertNull(testable.getAbsolutePath(message))
+    }
+
+    @Test
+    fun `test file is removed with its message`(@TempDir dataDir: File) {
+        val testable = create(dataDir)
+        val message = message("x".repeat(AwsSnsTriggerConstants.MESSAGE_BODY_FILE_THRESHOLD_DEFAULT.toInt() + 1))
+        testable.offload(buildType, trigger, message)
+        val file = File(testable.getAbsolutePath(message)!!)
+
+        testable.removalListener(buildType, trigger).removed(listOf("unknown", message.messageId!!))
+
+        assertFalse(file.exists())
+    }
+}
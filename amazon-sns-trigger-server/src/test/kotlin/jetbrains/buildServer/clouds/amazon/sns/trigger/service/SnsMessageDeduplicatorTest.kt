@@ -0,0 +1,51 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.ServerPaths
+import jetbrains.buildServer.util.EventDispatcher
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+class SnsMessageDeduplicatorTest {
+    @TempDir
+    lateinit var pluginData: File
+
+    private fun create(): Pair<SnsMessageDeduplicator, BuildServerListener> {
+        val serverPaths = mockk<ServerPaths>()
+        val events = mockk<EventDispatcher<BuildServerListener>>()
+        val listener = slot<BuildServerListener>()
+        every { serverPaths.pluginDataDirectory } returns pluginData
+        every { events.addListener(capture(listener)) } returns Unit
+        return SnsMessageDeduplicator(serverPaths, events) to listener.captured
+    }
+
+    @Test
+    fun `redelivery is detected after a restart`() {
+        val (testable, listener) = create()
+
+        assertFalse(testable.isDuplicate("bt1_T1", "message-1"))
+        testable.markSeen("bt1_T1", "message-1")
+        assertTrue(testable.isDuplicate("bt1_T1", "message-1"))
+        assertFalse(testable.isDuplicate("bt1_T2", "message-1"))
+
+        listener.serverShutdown()
+
+        val (restarted, _) = create()
+        assertTrue(restarted.isDuplicate("bt1_T1", "message-1"))
+        assertFalse(restarted.isDuplicate("bt1_T1", "message-2"))
+    }
+
+    @Test
+    fun `messages without id are never duplicates`() {
+        val (testable, _) = create()
+        testable.markSeen("bt1_T1", null)
+
+        assertFalse(testable.isDuplicate("bt1_T1", null))
+    }
+}
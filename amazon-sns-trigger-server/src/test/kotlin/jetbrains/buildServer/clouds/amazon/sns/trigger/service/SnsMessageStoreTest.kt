@@ -0,0 +1,223 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.TriggerStorageSession
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
+import jetbrains.buildServer.serverSide.CustomDataStorage
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.time.Instant
+
+class SnsMessageStoreTest {
+    private val objectMapper = ObjectMapper()
+        .registerModule(ParameterNamesModule())
+        .registerModule(Jdk8Module())
+        .registerModule(JavaTimeModule())
+
+    private val storage = mutableMapOf<String, String>()
+    private lateinit var customDataStorageMock: CustomDataStorage
+    private lateinit var testable: SnsMessageStore
+
+    @BeforeEach
+    fun setUp() {
+        customDataStorageMock = mockk(relaxed = true)
+        every { customDataStorageMock.values } answers { HashMap(storage) }
+        every { customDataStorageMock.getValue(any()) } answers { storage[firstArg()] }
+        every { customDataStorageMock.putValue(any(), any()) } answers {
+            val value = secondArg<String?>()
+            if (value == null) {
+                storage.remove(firstArg())
+            } else {
+                storage[firstArg()] = value
+            }
+            Unit
+        }
+        testable = SnsMessageStore(CustomDataStorageWrapper(customDataStorageMock), SnsPendingMessageLimits.NONE)
+    }
+
+    @Test
+    fun `every message is stored under its own key`() {
+        testable.add(message("1"))
+        testable.add(message("2"))
+
+        assertEquals(
+            setOf("1", "2").flatMap { listOf(SnsMessageStore.messageKey(it), SnsMessageStore.indexKey(it)) }.toSet(),
+            storage.keys
+        )
+        assertEquals(setOf("1", "2"), testable.all.keys)
+        assertFalse(testable.isEmpty)
+
+        testable.remove(setOf("1"))
+
+        assertEquals(setOf(SnsMessageStore.messageKey("2"), SnsMessageStore.indexKey("2")), storage.keys)
+        verify(exactly = 0) { customDataStorageMock.putValue(SnsMessageStore.messageKey("2"), null) }
+    }
+
+    @Test
+    fun `messages leaving the store are reported after the flush`() {
+        val removed = mutableListOf<String>()
+        val cds = CustomDataStorageWrapper(customDataStorageMock)
+        val store = SnsMessageStore(cds, SnsPendingMessageLimits.NONE) { removed.addAll(it) }
+        listOf("1", "2", "3", "4").forEach { store.add(message(it)) }
+
+        cds.startBatch()
+        store.remove(setOf("1", "2"), "2")
+        assertTrue(removed.isEmpty())
+        cds.commitBatch()
+        assertEquals(listOf("1"), removed)
+
+        store.clear()
+        assertEquals(setOf("1", "3", "4"), removed.toSet())
+    }
+
+    @Test
+    fun `legacy messages map is migrated on first touch`() {
+        storage[AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES] =
+            objectMapper.writeValueAsString(mapOf("1" to message("1"), "2" to message("2")))
+
+        testable.add(message("3"))
+
+        assertNull(storage[AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGES])
+        assertEquals(setOf("1", "2", "3"), testable.all.keys)
+        assertEquals(message("1"), testable.all["1"])
+    }
+
+    @Test
+    fun `strings repeated by messages are stored once`() {
+        testable.add(message("1").apply { topic = TOPIC_ARN })
+        testable.add(message("2").apply { topic = TOPIC_ARN })
+
+        val sharedKeys = storage.keys.filter { it.startsWith(AwsSnsTriggerConstants.TRIGGER_STORE_SHARED_STRING_KEY_PREFIX) }
+        assertEquals(listOf(TOPIC_ARN), sharedKeys.map { storage[it] })
+        assertFalse(storage[SnsMessageStore.messageKey("1")]!!.contains(TOPIC_ARN))
+        assertEquals(TOPIC_ARN, testable.all["2"]?.topic)
+    }
+
+    @Test
+    fun `messages stored as JSON are read`() {
+        storage[SnsMessageStore.messageKey("1")] = objectMapper.writeValueAsString(message("1"))
+        testable.add(message("2"))
+
+        assertEquals(mapOf("1" to message("1"), "2" to message("2")), testable.all)
+    }
+
+    @Test
+    fun `excess messages are evicted oldest first`() {
+        val now = Instant.now()
+        val limited = SnsMessageStore(CustomDataStorageWrapper(customDataStorageMock), SnsPendingMessageLimits(10, 0, 0))
+
+        (1..10).forEach { assertEquals(0, limited.add(message("$it", now.plusSeconds(it.toLong()))).total) }
+        val eviction = limited.add(message("11", now.plusSeconds(11)))
+
+        // shrunk to 90% of the bound
+        assertEquals(2, eviction.excess)
+        assertEquals((3..11).map { "$it" }.toSet(), limited.all.keys)
+        assertEquals(9, eviction.usage.messages)
+        assertEquals(limited.usage.bytes, eviction.usage.bytes)
+    }
+
+    @Test
+    fun `stored messages are counted once per session`() {
+        val now = Instant.now()
+        val session = TriggerStorageSession(null)
+        val limits = SnsPendingMessageLimits(10, 0, 0)
+
+        val cds = session.open(customDataStorageMock)
+        (1..10).forEach { SnsMessageStore(cds, limits).add(message("$it", now.plusSeconds(it.toLong()))) }
+        // read by the wrapper once it is opened and counted by the first add
+        verify(exactly = 2) { customDataStorageMock.values }
+
+        assertEquals(2, SnsMessageStore(session.open(customDataStorageMock), limits).add(message("11", now.plusSeconds(11))).excess)
+        val usage = SnsMessageStore(session.open(customDataStorageMock), limits).usage
+        assertEquals(9, usage.messages)
+        assertEquals(storage.filterKeys { SnsMessageStore.isMessageKey(it) }.values.sumOf { it.length.toLong() }, usage.bytes)
+
+        // written by another node
+        storage.remove(SnsMessageStore.messageKey("11"))
+        session.refresh(customDataStorageMock)
+        assertEquals(8, SnsMessageStore(session.open(customDataStorageMock), limits).usage.messages)
+    }
+
+    @Test
+    fun `expired messages are evicted on write`() {
+        val now = Instant.now()
+        val ttl = Duration.ofHours(1)
+        val limited = SnsMessageStore(CustomDataStorageWrapper(customDataStorageMock), SnsPendingMessageLimits(0, 0, ttl.toMillis()))
+
+        limited.add(message("1", now.minus(ttl.multipliedBy(2))))
+        val eviction = limited.add(message("2", now.minusSeconds(60)))
+
+        assertEquals(1, eviction.expired)
+        assertEquals(setOf("2"), limited.all.keys)
+
+        assertEquals(0, limited.add(message("3", now)).total)
+        assertEquals(setOf("2", "3"), limited.all.keys)
+        assertEquals(now.minusSeconds(60).plus(ttl).toEpochMilli().toString(), storage[AwsSnsTriggerConstants.TRIGGER_STORE_NEXT_EXPIRY])
+    }
+
+    @Test
+    fun `bodies of the oldest messages are dropped`() {
+        val now = Instant.now()
+        (1..3).forEach { testable.add(message("$it", now.plusSeconds(it.toLong()))) }
+        val usage = testable.usage
+
+        assertEquals(0, testable.dropBodies(usage.bytes))
+        assertEquals(1, testable.dropBodies(usage.bytes - 1))
+
+        assertEquals(3, testable.usage.messages)
+        assertTrue(testable.usage.bytes < usage.bytes)
+        assertEquals(listOf("", "body 2", "body 3"), (1..3).map { testable.all["$it"]?.message })
+    }
+
+    @Test
+    fun `index is read without decoding messages`() {
+        val published = Instant.parse("2024-01-01T00:00:00.123Z")
+        testable.add(message("1", published))
+        storage[SnsMessageStore.messageKey("1")] = "not decodable"
+        storage[SnsMessageStore.messageKey("2")] = objectMapper.writeValueAsString(message("2"))
+
+        val index = testable.index
+
+        assertEquals(setOf("1", "2"), index.keys)
+        assertEquals(published, index["1"]?.timestamp)
+        assertEquals("not decodable".length.toLong(), index["1"]?.bytes)
+        // stored without an index key by an older plugin version
+        assertEquals(message("2").timestamp, index["2"]?.timestamp)
+        assertNull(testable.get("1"))
+        assertEquals(message("2"), testable.get("2"))
+    }
+
+    @Test
+    fun `clear removes all messages`() {
+        testable.add(message("1").apply { topic = TOPIC_ARN })
+        storage["subscriptionArn"] = "arn"
+
+        testable.clear()
+
+        assertTrue(testable.isEmpty)
+        assertEquals(setOf("subscriptionArn"), storage.keys)
+    }
+
+    companion object {
+        private const val TOPIC_ARN = "arn:aws:sns:eu-west-1:123456789012:topic"
+    }
+
+    private fun message(id: String, published: Instant = Instant.parse("2024-01-01T00:00:00Z")) = SnsNotificationDto().apply {
+        messageId = id
+        message = "body $id"
+        timestamp = published
+    }
+}
@@ -0,0 +1,98 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.mockk
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsIngestionRejectedException
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class SnsNotificationIngestionServiceTest {
+
+    private lateinit var testable: SnsNotificationIngestionService
+
+    @BeforeEach
+    fun setUp() {
+        System.setProperty(AwsSnsTriggerConstants.ASYNC_INGESTION_QUEUE_SIZE_PROPERTY, "2")
+        testable = SnsNotificationIngestionService(mockk(relaxed = true))
+    }
+
+    @AfterEach
+    fun tearDown() {
+        System.clearProperty(AwsSnsTriggerConstants.ASYNC_INGESTION_QUEUE_SIZE_PROPERTY)
+    }
+
+    @Test
+    fun `tasks of one trigger are executed in order`() {
+        val executed = Collections.synchronizedList(mutableListOf<Int>())
+        val done = CountDownLatch(2)
+
+        testable.enqueue("trigger") { executed.add(1); done.countDown() }
+        testable.enqueue("trigger") { executed.add(2); done.countDown() }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+        assertEquals(listOf(1, 2), executed)
+    }
+
+    @Test
+    fun `full trigger queue rejects the request`() {
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+
+        testable.enqueue("trigger") { started.countDown(); release.await() }
+        assertTrue(started.await(10, TimeUnit.SECONDS))
+
+        testable.enqueue("trigger") {}
+        testable.enqueue("trigger") {}
+
+        val error = assertThrows<AwsSnsIngestionRejectedException> { testable.enqueue("trigger") {} }
+        assertEquals(AwsSnsTriggerConstants.ASYNC_INGESTION_RETRY_AFTER_DEFAULT, error.retryAfterSeconds)
+
+        // other triggers are not affected
+        testable.enqueue("another trigger") {}
+        release.countDown()
+    }
+
+    @Test
+    fun `request waits for its task and gets its error`() {
+        val executed = CountDownLatch(1)
+
+        testable.execute("trigger") { executed.countDown() }
+        assertEquals(0, executed.count)
+
+        val error = assertThrows<IllegalStateException> { testable.execute("trigger") { throw IllegalStateException("not stored") } }
+        assertEquals("not stored", error.message)
+        assertEquals(0, testable.getPendingCount("trigger"))
+    }
+
+    @Test
+    fun `task that doesn't start in time is rejected and never runs`() {
+        System.setProperty(AwsSnsTriggerConstants.ASYNC_INGESTION_WAIT_TIMEOUT_PROPERTY, "1")
+        try {
+            val started = CountDownLatch(1)
+            val release = CountDownLatch(1)
+            val executed = AtomicBoolean()
+            testable.enqueue("trigger") { started.countDown(); release.await() }
+            assertTrue(started.await(10, TimeUnit.SECONDS))
+
+            assertThrows<AwsSnsIngestionRejectedException> { testable.execute("trigger") { executed.set(true) } }
+            assertEquals(0, testable.getPendingCount("trigger"))
+
+            release.countDown()
+            val drained = CountDownLatch(1)
+            testable.enqueue("trigger") { drained.countDown() }
+            assertTrue(drained.await(10, TimeUnit.SECONDS))
+            assertFalse(executed.get())
+        } finally {
+            System.clearProperty(AwsSnsTriggerConstants.ASYNC_INGESTION_WAIT_TIMEOUT_PROPERTY)
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.mockk
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsIngestionRejectedException
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
+import jetbrains.buildServer.serverSide.SBuildType
+import org.junit.jupiter.api.Assertions.assertDoesNotThrow
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+
+class SnsStorageBudgetTest {
+    private val budget = AwsSnsTriggerConstants.BUDGET_MAX_BYTES_DEFAULT
+    private val testable = SnsStorageBudget()
+    private val buildType = mockk<SBuildType>().also {
+        every { it.internalId } returns "bt1"
+        every { it.externalId } returns "Project_Build"
+    }
+
+    @Test
+    fun `total is the sum of the latest usage of every trigger`() {
+        testable.update(buildType, trigger("T1"), SnsMessageStore.Usage(10, 1000))
+        testable.update(buildType, trigger("T2"), SnsMessageStore.Usage(5, 500))
+        testable.update(buildType, trigger("T1"), SnsMessageStore.Usage(2, 200))
+
+        assertEquals(700, testable.totalBytes)
+        assertEquals(budget / 2, testable.shareBytes)
+        assertEquals(listOf("T2", "T1"), testable.getLargest(10).map { it.triggerId })
+        assertEquals(listOf("T2"), testable.getLargest(1).map { it.triggerId })
+
+        testable.update(buildType, trigger("T2"), SnsMessageStore.Usage.EMPTY)
+
+        assertEquals(200, testable.totalBytes)
+        assertEquals(budget, testable.shareBytes)
+    }
+
+    @Test
+    fun `only triggers over their share of the exceeded budget have to shed`() {
+        testable.update(buildType, trigger("T1"), SnsMessageStore.Usage(1, budget / 4))
+
+        assertEquals(0, testable.getExcessBytes("bt1_T1"))
+
+        testable.update(buildType, trigger("T2"), SnsMessageStore.Usage(1, budget))
+
+        assertEquals(0, testable.getExcessBytes("bt1_T1"))
+        assertEquals(budget / 2, testable.getExcessBytes("bt1_T2"))
+    }
+
+    @Test
+    fun `notifications of a trigger over its share are rejected until it consumes them`() {
+        testable.update(buildType, trigger("T1"), SnsMessageStore.Usage(1, budget / 4))
+        testable.update(buildType, trigger("T2"), SnsMessageStore.Usage(1, budget))
+        assertDoesNotThrow { testable.checkIngest("bt1_T2") }
+
+        testable.markOverShare("bt1_T2")
+        testable.update(buildType, trigger("T2"), SnsMessageStore.Usage(2, budget + 1))
+
+        assertThrows(AwsSnsIngestionRejectedException::class.java) { testable.checkIngest("bt1_T2") }
+        assertDoesNotThrow { testable.checkIngest("bt1_T1") }
+
+        testable.update(buildType, trigger("T2"), SnsMessageStore.Usage(1, budget / 4))
+
+        assertDoesNotThrow { testable.checkIngest("bt1_T2") }
+    }
+
+    private fun trigger(id: String) = mockk<BuildTriggerDescriptor>().also { every { it.id } returns id }
+}
@@ -0,0 +1,44 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.mockk
+import jetbrains.buildServer.serverSide.ServerPaths
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+class SnsStorageChangeStampsTest {
+    private val triggerKey = "bt1_TRIGGER_1"
+
+    @Test
+    fun `test stamp of this node is recognized`(@TempDir dataDir: File) {
+        val testable = SnsStorageChangeStamps(serverPaths(dataDir))
+        assertEquals(0L, testable.getStamp(triggerKey))
+
+        testable.touch(triggerKey)
+
+        val stamp = testable.getStamp(triggerKey)
+        assertNotEquals(0L, stamp)
+        assertTrue(testable.isOwn(triggerKey, stamp))
+    }
+
+    @Test
+    fun `test stamp of another node is not own`(@TempDir dataDir: File) {
+        val otherNode = SnsStorageChangeStamps(serverPaths(dataDir))
+        val testable = SnsStorageChangeStamps(serverPaths(dataDir))
+
+        otherNode.touch(triggerKey)
+
+        val stamp = testable.getStamp(triggerKey)
+        assertNotEquals(0L, stamp)
+        assertFalse(testable.isOwn(triggerKey, stamp))
+    }
+
+    private fun serverPaths(dataDir: File) = mockk<ServerPaths>().also {
+        every { it.pluginDataDirectory } returns dataDir
+    }
+}
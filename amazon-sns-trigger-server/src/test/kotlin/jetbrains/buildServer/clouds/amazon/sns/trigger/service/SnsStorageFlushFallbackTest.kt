@@ -0,0 +1,105 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.CustomDataStorageWrapper
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.CustomDataStorage
+import jetbrains.buildServer.serverSide.SBuildType
+import jetbrains.buildServer.serverSide.ServerPaths
+import jetbrains.buildServer.util.EventDispatcher
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+class SnsStorageFlushFallbackTest {
+    @TempDir
+    lateinit var pluginData: File
+
+    private val listeners = mutableListOf<BuildServerListener>()
+
+    @AfterEach
+    fun tearDown() {
+        listeners.forEach { it.serverShutdown() }
+    }
+
+    private fun create(): SnsStorageFlushFallback {
+        val serverPaths = mockk<ServerPaths>()
+        val events = mockk<EventDispatcher<BuildServerListener>>()
+        val listener = slot<BuildServerListener>()
+        every { serverPaths.pluginDataDirectory } returns pluginData
+        every { events.addListener(capture(listener)) } returns Unit
+        val result = SnsStorageFlushFallback(serverPaths, mockk(relaxed = true), events)
+        listeners.add(listener.captured)
+        listener.captured.serverStartup()
+        return result
+    }
+
+    @Test
+    fun `unflushed changes survive a restart and are replayed once`() {
+        create().save("bt1", "T1", mapOf("message.1" to "body", "unsubscribeUrl" to null))
+
+        val restarted = create()
+        assertTrue(restarted.hasPendingWrites("bt1_T1"))
+
+        val buildType = mockk<SBuildType> { every { internalId } returns "bt1" }
+        val trigger = mockk<BuildTriggerDescriptor> { every { id } returns "T1" }
+        val storage = mockk<CustomDataStorage>(relaxed = true)
+        every { storage.getValue(any()) } returns "stored"
+
+        restarted.replay(buildType, trigger, CustomDataStorageWrapper(storage))
+        restarted.replay(buildType, trigger, CustomDataStorageWrapper(storage))
+
+        verify(exactly = 1) { storage.putValue("message.1", "body") }
+        verify(exactly = 1) { storage.putValue("unsubscribeUrl", null) }
+        assertFalse(restarted.hasPendingWrites("bt1_T1"))
+        assertFalse(create().hasPendingWrites("bt1_T1"))
+    }
+
+    @Test
+    fun `saved changes are removed only after the replay is flushed`() {
+        val fallback = create()
+        fallback.save("bt1", "T1", mapOf("message.1" to "body"))
+
+        val buildType = mockk<SBuildType> { every { internalId } returns "bt1" }
+        val trigger = mockk<BuildTriggerDescriptor> { every { id } returns "T1" }
+        val storage = mockk<CustomDataStorage>(relaxed = true)
+        val cds = CustomDataStorageWrapper(storage)
+
+        cds.startBatch()
+        fallback.replay(buildType, trigger, cds)
+        assertTrue(create().hasPendingWrites("bt1_T1"))
+
+        cds.commitBatch()
+        verify(exactly = 1) { storage.flush(any()) }
+        assertFalse(create().hasPendingWrites("bt1_T1"))
+    }
+
+    @Test
+    fun `changes journaled during a replay survive a restart with the replayed ones`() {
+        val fallback = create()
+        val buildType = mockk<SBuildType> { every { internalId } returns "bt1" }
+        val trigger = mockk<BuildTriggerDescriptor> { every { id } returns "T1" }
+        fallback.journal(buildType, trigger, mapOf("message.1" to "body 1"))
+
+        val cds = CustomDataStorageWrapper(mockk(relaxed = true))
+        cds.startBatch()
+        fallback.replay(buildType, trigger, cds)
+        fallback.journal(buildType, trigger, mapOf("message.2" to "body 2"))
+
+        // restarted before the replay is flushed
+        val storage = mockk<CustomDataStorage>(relaxed = true)
+        val restarted = create()
+        restarted.replay(buildType, trigger, CustomDataStorageWrapper(storage))
+
+        verify(exactly = 1) { storage.putValue("message.1", "body 1") }
+        verify(exactly = 1) { storage.putValue("message.2", "body 2") }
+        assertFalse(create().hasPendingWrites("bt1_T1"))
+    }
+}
@@ -0,0 +1,128 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.impl.annotations.MockK
+import io.mockk.junit5.MockKExtension
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
+import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTriggerConstants
+import jetbrains.buildServer.serverSide.BuildServerAdapter
+import jetbrains.buildServer.serverSide.BuildServerListener
+import jetbrains.buildServer.serverSide.BuildTypeTemplate
+import jetbrains.buildServer.serverSide.ProjectManager
+import jetbrains.buildServer.serverSide.SBuildType
+import jetbrains.buildServer.serverSide.SProject
+import jetbrains.buildServer.serverSide.ServerResponsibilityImpl
+import jetbrains.buildServer.serverSide.impl.auth.SecurityContextImpl
+import jetbrains.buildServer.util.EventDispatcher
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.ExtendWith
+
+@ExtendWith(MockKExtension::class)
+class SnsTriggerRoutingIndexTest {
+    @MockK
+    private lateinit var projectManagerMock: ProjectManager
+
+    private val listener = slot<BuildServerListener>()
+    private lateinit var testable: SnsTriggerRoutingIndex
+
+    @BeforeEach
+    fun setUp() {
+        val events = mockk<EventDispatcher<BuildServerListener>>()
+        every { events.addListener(capture(listener)) } returns Unit
+        testable = SnsTriggerRoutingIndex(events, projectManagerMock, SecurityContextImpl(ServerResponsibilityImpl()))
+    }
+
+    @Test
+    fun `finds trigger by uuid and path`() {
+        val trigger = trigger("uuid-1")
+        val buildType = buildType("bt1", "Project_Build", "Project", trigger)
+        every { projectManagerMock.allBuildTypes } returns listOf(buildType)
+        project("Project", buildType)
+
+        val route = testable.findRoute("Project", "Project_Build", "uuid-1")
+
+        assertSame(buildType, route!!.buildType)
+        assertSame(trigger, route.trigger)
+        assertNull(testable.findRoute("Project", "Another_Build", "uuid-1"))
+        assertNull(testable.findRoute("Project", "Project_Build", "unknown"))
+    }
+
+    @Test
+    fun `index is built once and updated from events`() {
+        val buildType = buildType("bt1", "Project_Build", "Project", trigger("uuid-1"))
+        every { projectManagerMock.allBuildTypes } returns listOf(buildType)
+        testable.findRoute("Project", "Project_Build", "uuid-1")
+
+        val changedTrigger = trigger("uuid-2")
+        every { buildType.buildTriggersCollection } returns listOf(changedTrigger)
+        (listener.captured as BuildServerAdapter).buildTypePersisted(buildType)
+
+        assertNull(testable.findRoute("Project", "Project_Build", "uuid-1"))
+        assertSame(changedTrigger, testable.findRoute("Project", "Project_Build", "uuid-2")!!.trigger)
+
+        (listener.captured as BuildServerAdapter).buildTypeUnregistered(buildType)
+        every { projectManagerMock.findProjectByExternalId("Project") } returns null
+        assertNull(testable.findRoute("Project", "Project_Build", "uuid-2"))
+
+        verify(exactly = 1) { projectManagerMock.allBuildTypes }
+    }
+
+    @Test
+    fun `trigger missing in the index is looked up live and indexed`() {
+        val buildType = buildType("bt1", "Project_Build", "Project", trigger("uuid-1"))
+        every { projectManagerMock.allBuildTypes } returns emptyList()
+        val project = project("Project", buildType)
+
+        assertSame(buildType, testable.findRoute("Project", "Project_Build", "uuid-1")!!.buildType)
+        assertSame(buildType, testable.findRoute("Project", "Project_Build", "uuid-1")!!.buildType)
+
+        verify(exactly = 1) { project.findBuildTypeByExternalId("Project_Build") }
+    }
+
+    @Test
+    fun `template changes re-index build types using it`() {
+        val buildType = buildType("bt1", "Project_Build", "Project", trigger("uuid-1"))
+        every { projectManagerMock.allBuildTypes } returns listOf(buildType)
+        testable.findRoute("Project", "Project_Build", "uuid-1")
+
+        val inheritedTrigger = trigger("uuid-2")
+        every { buildType.buildTriggersCollection } returns listOf(inheritedTrigger)
+        val template = mockk<BuildTypeTemplate>()
+        every { template.usages } returns listOf(buildType)
+        (listener.captured as BuildServerAdapter).buildTypeTemplatePersisted(template)
+
+        assertSame(inheritedTrigger, testable.findRoute("Project", "Project_Build", "uuid-2")!!.trigger)
+        every { projectManagerMock.findProjectByExternalId("Project") } returns null
+        assertNull(testable.findRoute("Project", "Project_Build", "uuid-1"))
+    }
+
+    private fun trigger(uuid: String): BuildTriggerDescriptor {
+        val trigger = mockk<BuildTriggerDescriptor>()
+        every { trigger.type } returns SnsBuildTriggerService.TRIGGER_NAME
+        every { trigger.properties } returns mapOf(AwsSnsTriggerConstants.TRIGGER_UUID_PROPERTY_KEY to uuid)
+        return trigger
+    }
+
+    private fun project(externalId: String, vararg buildTypes: SBuildType): SProject {
+        val project = mockk<SProject>()
+        every { project.findBuildTypeByExternalId(any()) } returns null
+        buildTypes.forEach { every { project.findBuildTypeByExternalId(it.externalId) } returns it }
+        every { projectManagerMock.findProjectByExternalId(externalId) } returns project
+        return project
+    }
+
+    private fun buildType(internalId: String, externalId: String, projectId: String, trigger: BuildTriggerDescriptor): SBuildType {
+        val buildType = mockk<SBuildType>()
+        every { buildType.internalId } returns internalId
+        every { buildType.externalId } returns externalId
+        every { buildType.projectExternalId } returns projectId
+        every { buildType.buildTriggersCollection } returns listOf(trigger)
+        return buildType
+    }
+}
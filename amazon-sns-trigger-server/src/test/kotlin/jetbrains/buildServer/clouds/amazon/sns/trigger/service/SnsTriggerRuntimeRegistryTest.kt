@@ -0,0 +1,200 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.service
+
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import io.mockk.runs
+import io.mockk.verify
+import jetbrains.buildServer.buildTriggers.BuildTriggerDescriptor
+import jetbrains.buildServer.buildTriggers.PolledTriggerContext
+import jetbrains.buildServer.serverSide.SBuildType
+import jetbrains.buildServer.serverSide.ServerResponsibility
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotSame
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class SnsTriggerRuntimeRegistryTest {
+    private val changeStamps = mockk<SnsStorageChangeStamps>(relaxed = true)
+    private val storageSessions = SnsTriggerStorageSessions(mockk(relaxed = true), changeStamps)
+    private val serverResponsibility = mockk<ServerResponsibility>().also { every { it.canProcessBuildTriggers() } returns true }
+    private val testable = SnsTriggerRuntimeRegistry(storageSessions, changeStamps, serverResponsibility, Executor { it.run() })
+    private val triggerKey = "bt1_TRIGGER_1"
+
+    private val buildType = mockk<SBuildType>()
+    private val context = mockk<PolledTriggerContext>(relaxed = true).also {
+        val trigger = mockk<BuildTriggerDescriptor>()
+        every { buildType.internalId } returns "bt1"
+        every { buildType.externalId } returns "Project_Build"
+        every { buildType.isPaused } returns false
+        every { trigger.id } returns "TRIGGER_1"
+        every { it.buildType } returns buildType
+        every { it.triggerDescriptor } returns trigger
+    }
+
+    @Test
+    fun `only attached triggers are woken up`() {
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        every { policy.evaluate(context, any()) } just runs
+
+        assertFalse(testable.wakeUp(triggerKey))
+
+        testable.attach(context, policy)
+        assertTrue(testable.wakeUp(triggerKey))
+        verify(exactly = 1) { policy.evaluate(context, any()) }
+
+        testable.detach(context)
+        assertFalse(testable.wakeUp(triggerKey))
+        verify(exactly = 1) { policy.evaluate(context, any()) }
+    }
+
+    @Test
+    fun `paused build configurations and nodes not processing triggers are left to the polling`() {
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        every { policy.evaluate(context, any()) } just runs
+        testable.attach(context, policy)
+
+        every { buildType.isPaused } returns true
+        assertFalse(testable.wakeUp(triggerKey))
+
+        every { buildType.isPaused } returns false
+        every { serverResponsibility.canProcessBuildTriggers() } returns false
+        assertFalse(testable.wakeUp(triggerKey))
+        verify(exactly = 0) { policy.evaluate(context, any()) }
+
+        every { serverResponsibility.canProcessBuildTriggers() } returns true
+        assertTrue(testable.wakeUp(triggerKey))
+        verify(exactly = 1) { policy.evaluate(context, any()) }
+    }
+
+    @Test
+    fun `wake-up during an evaluation makes it repeat`() {
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        val evaluations = AtomicInteger()
+        val started = CountDownLatch(1)
+        val proceed = CountDownLatch(1)
+        every { policy.evaluate(context, any()) } answers {
+            if (evaluations.incrementAndGet() == 1) {
+                started.countDown()
+                proceed.await(10, TimeUnit.SECONDS)
+            }
+        }
+
+        val poll = thread { testable.poll(context, policy) }
+        assertTrue(started.await(10, TimeUnit.SECONDS))
+
+        // doesn't block, the running evaluation picks the request up
+        assertTrue(testable.wakeUp(triggerKey))
+        assertTrue(testable.wakeUp(triggerKey))
+        assertEquals(1, evaluations.get())
+
+        proceed.countDown()
+        poll.join(10_000)
+        assertEquals(2, evaluations.get())
+    }
+
+    @Test
+    fun `woken up trigger is evaluated in the background`() {
+        val executor = Executors.newSingleThreadExecutor()
+        val background = SnsTriggerRuntimeRegistry(storageSessions, changeStamps, serverResponsibility, executor)
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        val evaluations = AtomicInteger()
+        val started = CountDownLatch(1)
+        val proceed = CountDownLatch(1)
+        every { policy.evaluate(context, any()) } answers {
+            if (evaluations.incrementAndGet() == 1) {
+                started.countDown()
+                proceed.await(10, TimeUnit.SECONDS)
+            }
+        }
+        background.attach(context, policy)
+
+        // returns while the evaluation is still running
+        assertTrue(background.wakeUp(triggerKey))
+        assertTrue(started.await(10, TimeUnit.SECONDS))
+
+        // the second wake-up is scheduled, the third one joins it
+        assertTrue(background.wakeUp(triggerKey))
+        assertTrue(background.wakeUp(triggerKey))
+
+        proceed.countDown()
+        executor.shutdown()
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS))
+        assertEquals(2, evaluations.get())
+    }
+
+    @Test
+    fun `failed wake-up is left to the polling`() {
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        every { policy.evaluate(context, any()) } throws IllegalStateException("storage is unavailable")
+
+        testable.attach(context, policy)
+
+        assertTrue(testable.wakeUp(triggerKey))
+    }
+
+    @Test
+    fun `runtime state lives until the trigger is deactivated`() {
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        val runtimes = mutableListOf<SnsTriggerRuntimeRegistry.TriggerRuntime>()
+        every { policy.evaluate(context, capture(runtimes)) } just runs
+
+        testable.poll(context, policy)
+        testable.poll(context, policy)
+        assertSame(runtimes[0], runtimes[1])
+        assertSame(storageSessions.getSession(context), runtimes[0].session)
+        assertEquals(2L, runtimes[0].polls)
+
+        testable.detach(context)
+        testable.poll(context, policy)
+        assertNotSame(runtimes[0], runtimes[2])
+        assertNotSame(runtimes[0].session, runtimes[2].session)
+    }
+
+    @Test
+    fun `storage is refreshed when another node changed it`() {
+        val runtime = runtimeOf(context)
+        val stamp = System.currentTimeMillis() - 60_000
+
+        assertTrue(runtime.refreshStorageIfDue(context))
+        assertFalse(runtime.refreshStorageIfDue(context))
+
+        every { changeStamps.getStamp(triggerKey) } returns stamp
+        assertTrue(runtime.refreshStorageIfDue(context))
+        assertFalse(runtime.refreshStorageIfDue(context))
+
+        every { changeStamps.getStamp(triggerKey) } returns stamp + 1
+        every { changeStamps.isOwn(triggerKey, stamp + 1) } returns true
+        assertFalse(runtime.refreshStorageIfDue(context))
+        verify(exactly = 2) { context.customDataStorage.refresh() }
+    }
+
+    @Test
+    fun `refresh interval grows while the storage is idle`() {
+        val runtime = runtimeOf(context)
+        val initial = runtime.refreshIntervalMs
+
+        runtime.storageIdle()
+        runtime.storageIdle()
+        assertEquals(initial * 4, runtime.refreshIntervalMs)
+
+        runtime.storageActive()
+        assertEquals(initial, runtime.refreshIntervalMs)
+    }
+
+    private fun runtimeOf(context: PolledTriggerContext): SnsTriggerRuntimeRegistry.TriggerRuntime {
+        val policy = mockk<SnsBuildTriggeringPolicy>()
+        val runtimes = mutableListOf<SnsTriggerRuntimeRegistry.TriggerRuntime>()
+        every { policy.evaluate(context, capture(runtimes)) } just runs
+        testable.poll(context, policy)
+        return runtimes.single()
+    }
+}
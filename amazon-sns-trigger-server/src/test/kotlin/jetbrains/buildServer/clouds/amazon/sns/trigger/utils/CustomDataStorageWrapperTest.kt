@@ -11,6 +11,7 @@ import jetbrains.buildServer.clouds.amazon.sns.trigger.utils.parameters.AwsSnsTr
 import jetbrains.buildServer.serverSide.CustomDataStorage
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 
@@ -26,11 +27,18 @@ class CustomDataStorageWrapperTest {
 
     @BeforeEach
     fun setUp() {
+        System.setProperty(AwsSnsTriggerConstants.STORAGE_FLUSH_BACKOFF_BASE_MS_PROPERTY, "0")
         customDataStorageMock = mockk(relaxed = true)
         every { customDataStorageMock.getValues() } returns emptyMap()
         customDataStorageWrapper = CustomDataStorageWrapper(customDataStorageMock)
     }
 
+    @AfterEach
+    fun tearDown() {
+        System.clearProperty(AwsSnsTriggerConstants.STORAGE_FLUSH_BACKOFF_BASE_MS_PROPERTY)
+        System.clearProperty(AwsSnsTriggerConstants.STORAGE_FLUSH_MAX_RETRIES_PROPERTY)
+    }
+
     @Test
     fun `test putValue calls putValue on customDataStorage and flush`() {
         val key = "testKey"
@@ -357,4 +365,84 @@ class CustomDataStorageWrapperTest {
 
         verify(exactly = 1) { customDataStorageMock.putValues(any()) }
     }
+
+    @Test
+    fun `test conflict resolution keeps stored value of message keys not written locally`() {
+        val seenKey = AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGE_KEY_PREFIX + "seen"
+        val writtenKey = AwsSnsTriggerConstants.TRIGGER_STORE_MESSAGE_KEY_PREFIX + "written"
+
+        // the wrapper saw a message that is consumed by another writer before the flush
+        every { customDataStorageMock.getValues() } returns mapOf(seenKey to "seen message")
+        customDataStorageWrapper = CustomDataStorageWrapper(customDataStorageMock)
+
+        every { customDataStorageMock.flush(any()) } throws RuntimeException("Conflict during flush") andThenJust Runs
+        every { customDataStorageMock.getValues() } returns mapOf("otherKey" to "otherValue")
+
+        val mergedValuesSlot = slot<Map<String, String>>()
+        every { customDataStorageMock.putValues(capture(mergedValuesSlot)) } just Runs
+
+        customDataStorageWrapper.putValue(writtenKey, "written message")
+
+        assertEquals(mapOf("otherKey" to "otherValue", writtenKey to "written message"), mergedValuesSlot.captured)
+    }
+
+    @Test
+    fun `test unchanged value is neither written nor flushed`() {
+        every { customDataStorageMock.getValue("key") } returns "value"
+
+        customDataStorageWrapper.putValue("key", "value")
+        customDataStorageWrapper.updateValues(mapOf("key" to "value"))
+
+        verify(exactly = 0) { customDataStorageMock.putValue(any(), any()) }
+        verify(exactly = 0) { customDataStorageMock.flush(any()) }
+    }
+
+    @Test
+    fun `test batch is flushed once on commit`() {
+        every { customDataStorageMock.getValue(any()) } returns null
+
+        customDataStorageWrapper.startBatch()
+        customDataStorageWrapper.putValue("key1", "value1")
+        customDataStorageWrapper.startBatch()
+        customDataStorageWrapper.updateValues(mapOf("key2" to "value2", "key3" to "value3"))
+        customDataStorageWrapper.commitBatch()
+
+        verify(exactly = 0) { customDataStorageMock.flush(any()) }
+
+        customDataStorageWrapper.commitBatch()
+
+        verify(exactly = 3) { customDataStorageMock.putValue(any(), any()) }
+        verify(exactly = 1) { customDataStorageMock.flush(any()) }
+    }
+
+    @Test
+    fun `test batch without changes is not flushed`() {
+        every { customDataStorageMock.getValue(any()) } returns null
+
+        customDataStorageWrapper.startBatch()
+        customDataStorageWrapper.putValue("key", null)
+        customDataStorageWrapper.commitBatch()
+
+        verify(exactly = 0) { customDataStorageMock.flush(any()) }
+    }
+
+    @Test
+    fun `test changes are handed to the failure listener when retries are exhausted`() {
+        System.setProperty(AwsSnsTriggerConstants.STORAGE_FLUSH_MAX_RETRIES_PROPERTY, "3")
+        every { customDataStorageMock.getValue(any()) } returns null
+        every { customDataStorageMock.flush(any()) } throws RuntimeException("Conflict during flush")
+
+        val failed = mutableListOf<Map<String, String?>>()
+        customDataStorageWrapper = CustomDataStorageWrapper(customDataStorageMock) { failed.add(it) }
+        customDataStorageWrapper.startBatch()
+        customDataStorageWrapper.putValue("key1", "value1")
+        customDataStorageWrapper.putValue("key2", "value2")
+        customDataStorageWrapper.commitBatch()
+
+        verify(exactly = 4) { customDataStorageMock.flush(any()) }
+        assertEquals(listOf(mapOf("key1" to "value1", "key2" to "value2")), failed)
+        assertEquals(1, customDataStorageWrapper.flushConflicts)
+        assertEquals(3, customDataStorageWrapper.flushRetries)
+        assertEquals(1, customDataStorageWrapper.flushFailures)
+    }
 }
@@ -0,0 +1,73 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+class MessageIdWindowTest {
+    private val window = TimeUnit.HOURS.toMillis(24)
+    private val now = 1_700_000_000_000L
+
+    private fun create(maxIds: Int = 500_000, recent: Int = 16) = MessageIdWindow(window, maxIds, 1024, recent, 1e-7)
+
+    @Test
+    fun `ids are remembered after they leave the exact recent set`() {
+        val testable = create()
+        testable.add("first", now)
+        repeat(5000) { testable.add("id-$it", now + 1) }
+
+        assertTrue(testable.mightContain("first", now + 2))
+        assertTrue(testable.mightContain("id-4999", now + 2))
+        assertFalse(testable.mightContain("unknown", now + 2))
+    }
+
+    @Test
+    fun `unknown ids are not reported`() {
+        val testable = create()
+        repeat(100_000) { testable.add(UUID.randomUUID().toString(), now) }
+
+        assertEquals(0, (1..100_000).count { testable.mightContain(UUID.randomUUID().toString(), now) })
+    }
+
+    @Test
+    fun `ids expire after the window`() {
+        val testable = create()
+        testable.add("old", now)
+        testable.add("new", now + window / 2)
+
+        assertTrue(testable.mightContain("old", now + window - 1))
+        assertFalse(testable.mightContain("old", now + window + 1))
+        assertTrue(testable.mightContain("new", now + window + 1))
+        assertTrue(testable.isEmpty(now + 2 * window))
+    }
+
+    @Test
+    fun `oldest ids are dropped when the window is full`() {
+        val testable = create(maxIds = 2048)
+        testable.add("first", now)
+        repeat(4096) { testable.add("id-$it", now) }
+
+        assertFalse(testable.mightContain("first", now))
+        assertTrue(testable.mightContain("id-4095", now))
+    }
+
+    @Test
+    fun `window survives serialization`() {
+        val testable = create()
+        repeat(3000) { testable.add("id-$it", now) }
+
+        val bytes = ByteArrayOutputStream().also { testable.writeTo(DataOutputStream(it)) }.toByteArray()
+        val restored = create().apply { readFrom(DataInputStream(ByteArrayInputStream(bytes))) }
+
+        assertTrue((0 until 3000).all { restored.mightContain("id-$it", now) })
+        assertFalse(restored.mightContain("unknown", now))
+        assertEquals(testable.size(), restored.size())
+    }
+}
@@ -0,0 +1,125 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import io.mockk.runs
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+import java.security.PublicKey
+import java.security.cert.X509Certificate
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.util.Date
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class SigningCertificateCacheTest {
+    private val now = Instant.parse("2024-01-01T00:00:00Z")
+    private var clock = Clock.fixed(now, ZoneOffset.UTC)
+    private val testable = SigningCertificateCache(2, TimeUnit.HOURS.toMillis(24), TimeUnit.MINUTES.toMillis(1), object : Clock() {
+        override fun getZone(): ZoneId = ZoneOffset.UTC
+        override fun withZone(zone: ZoneId?): Clock = this
+        override fun instant(): Instant = clock.instant()
+    })
+
+    @Test
+    fun `certificate is fetched once and then served from cache`() {
+        val key = mockk<PublicKey>()
+        val loads = AtomicInteger()
+
+        repeat(3) {
+            assertSame(key, testable.get("url") { loads.incrementAndGet(); certificate(key, now.plusSeconds(3600)) })
+        }
+
+        assertEquals(1, loads.get())
+        assertEquals(2, testable.stats.hitCount)
+        assertEquals(1, testable.stats.missCount)
+        assertEquals(1, testable.stats.loadSuccessCount)
+    }
+
+    @Test
+    fun `entry expires at certificate notAfter`() {
+        val loads = AtomicInteger()
+        val loader = SigningCertificateCache.CertificateLoader { loads.incrementAndGet(); certificate(mockk(), now.plusSeconds(60)) }
+
+        testable.get("url", loader)
+        clock = Clock.fixed(now.plusSeconds(61), ZoneOffset.UTC)
+        testable.get("url", loader)
+
+        assertEquals(2, loads.get())
+    }
+
+    @Test
+    fun `failed fetch is cached for negative ttl`() {
+        val loads = AtomicInteger()
+        val loader = SigningCertificateCache.CertificateLoader { loads.incrementAndGet(); throw IOException("unavailable") }
+
+        assertThrows<IOException> { testable.get("url", loader) }
+        assertThrows<IOException> { testable.get("url", loader) }
+        assertEquals(1, loads.get())
+
+        clock = Clock.fixed(now.plusSeconds(61), ZoneOffset.UTC)
+        assertThrows<IOException> { testable.get("url", loader) }
+        assertEquals(2, loads.get())
+        assertEquals(2, testable.stats.loadFailureCount)
+    }
+
+    @Test
+    fun `least recently used entry is evicted`() {
+        val loads = AtomicInteger()
+        val loader = SigningCertificateCache.CertificateLoader { loads.incrementAndGet(); certificate(mockk(), now.plusSeconds(3600)) }
+
+        testable.get("url1", loader)
+        clock = Clock.fixed(now.plusSeconds(1), ZoneOffset.UTC)
+        testable.get("url2", loader)
+        clock = Clock.fixed(now.plusSeconds(2), ZoneOffset.UTC)
+        testable.get("url1", loader)
+        testable.get("url3", loader)
+
+        assertEquals(2, testable.stats.size)
+        assertEquals(1, testable.stats.evictionCount)
+
+        testable.get("url1", loader)
+        assertEquals(3, loads.get())
+    }
+
+    @Test
+    fun `concurrent misses share one fetch`() {
+        val key = mockk<PublicKey>()
+        val loads = AtomicInteger()
+        val release = CountDownLatch(1)
+        val loader = SigningCertificateCache.CertificateLoader {
+            loads.incrementAndGet()
+            release.await()
+            certificate(key, now.plusSeconds(3600))
+        }
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val results = (1..4).map { executor.submit<PublicKey> { testable.get("url", loader) } }
+            Thread.sleep(200)
+            release.countDown()
+            results.forEach { assertSame(key, it.get(10, TimeUnit.SECONDS)) }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        assertEquals(1, loads.get())
+    }
+
+    private fun certificate(key: PublicKey, notAfter: Instant): X509Certificate {
+        val certificate = mockk<X509Certificate>()
+        every { certificate.checkValidity() } just runs
+        every { certificate.notAfter } returns Date.from(notAfter)
+        every { certificate.publicKey } returns key
+        return certificate
+    }
+}
@@ -0,0 +1,84 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsMessageType
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsHttpEndpointException
+import jetbrains.buildServer.clouds.amazon.sns.trigger.errors.AwsSnsPayloadTooLargeException
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.InputStream
+
+class SnsEnvelopeParserTest {
+    private val notification = """
+        {
+          "Type" : "Notification",
+          "MessageId" : "22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324",
+          "TopicArn" : "arn:aws:sns:us-west-2:123456789012:MyTopic",
+          "Subject" : null,
+          "Message" : "Hello \"world\"",
+          "Timestamp" : "2012-05-02T00:54:06.655Z",
+          "SignatureVersion" : "1",
+          "Signature" : "EXAMPLEw6JRN",
+          "SigningCertURL" : "https://sns.us-west-2.amazonaws.com/SimpleNotificationService-f3ecfb7224c7233fe7bb5f59f96de52f.pem",
+          "UnsubscribeURL" : "https://sns.us-west-2.amazonaws.com/?Action=Unsubscribe",
+          "MessageAttributes" : {
+            "attr" : { "Type" : "String", "Value" : "value" }
+          },
+          "Unknown" : { "nested" : [1, 2, {"a": "b"}] }
+        }
+    """.trimIndent()
+
+    private fun parse(body: String, maxBytes: Long = 1024 * 1024): SnsEnvelope =
+        SnsEnvelopeParser.parse(body.byteInputStream(), maxBytes)
+
+    @Test
+    fun `notification fields are read`() {
+        val envelope = parse(notification)
+
+        assertEquals(SnsMessageType.NOTIFICATION, envelope.type)
+        assertEquals("22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324", envelope.messageId)
+        assertEquals("Hello \"world\"", envelope.message)
+        assertNull(envelope.subject)
+        assertEquals(mapOf("Type" to "String", "Value" to "value"), envelope.attributes?.get("attr"))
+    }
+
+    @Test
+    fun `string to sign is the same as for the decoded map`() {
+        val envelope = parse(notification)
+        @Suppress("UNCHECKED_CAST")
+        val payload = com.fasterxml.jackson.databind.ObjectMapper().readValue(notification, Map::class.java) as Map<String, Any?>
+
+        assertEquals(
+            SnsEnvelope.fromMap(payload).getStringToSign(SnsMessageType.NOTIFICATION),
+            envelope.getStringToSign(SnsMessageType.NOTIFICATION)
+        )
+        assertEquals(
+            "Message\nHello \"world\"\nMessageId\n22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324\nSubject\nnull\n" +
+                "Timestamp\n2012-05-02T00:54:06.655Z\nTopicArn\narn:aws:sns:us-west-2:123456789012:MyTopic\nType\nNotification\n",
+            envelope.getStringToSign(SnsMessageType.NOTIFICATION)
+        )
+    }
+
+    @Test
+    fun `oversized body is rejected without reading it completely`() {
+        var read = 0L
+        val endless = object : InputStream() {
+            override fun read(): Int {
+                read++
+                return if (read == 1L) '['.code else ' '.code
+            }
+        }
+
+        assertThrows<AwsSnsPayloadTooLargeException> { SnsEnvelopeParser.parse(endless, 1024) }
+        assertEquals(true, read < 64 * 1024, "read $read bytes")
+        assertThrows<AwsSnsPayloadTooLargeException> { parse(notification, 100) }
+    }
+
+    @Test
+    fun `non object body is rejected`() {
+        assertThrows<AwsSnsHttpEndpointException> { parse("[]") }
+        assertThrows<AwsSnsHttpEndpointException> { parse("{\"Type\": ") }
+    }
+}
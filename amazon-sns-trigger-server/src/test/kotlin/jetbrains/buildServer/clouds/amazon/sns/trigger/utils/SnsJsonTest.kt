@@ -0,0 +1,40 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.time.Instant
+
+class SnsJsonTest {
+    private val message = SnsNotificationDto().apply {
+        messageId = "1"
+        subject = "subject"
+        timestamp = Instant.parse("2012-05-02T00:54:06.655Z")
+        attributes = mapOf("attr" to mapOf("Type" to "String", "Value" to "value"))
+    }
+
+    @Test
+    fun `message is stored with an ISO-8601 timestamp`() {
+        val json = SnsJson.MESSAGE_WRITER.writeValueAsString(message)
+
+        assertTrue(json.contains("\"2012-05-02T00:54:06.655Z\""), json)
+        assertEquals(message, SnsJson.MESSAGE_READER.readValue<SnsNotificationDto>(json))
+    }
+
+    @Test
+    fun `message map is written in the same format as single messages`() {
+        val json = SnsJson.MESSAGE_MAP_WRITER.writeValueAsString(mapOf("1" to message))
+        val messages = SnsJson.MESSAGE_MAP_READER.readValue<Map<String, SnsNotificationDto>>(json)
+
+        assertEquals(mapOf("1" to message), messages)
+        assertTrue(json.contains(SnsJson.MESSAGE_WRITER.writeValueAsString(message)), json)
+    }
+
+    @Test
+    fun `legacy numeric timestamps are still read`() {
+        val json = """{"messageId":"1","timestamp":1335920046.655000000}"""
+
+        assertEquals(message.timestamp, SnsJson.MESSAGE_READER.readValue<SnsNotificationDto>(json).timestamp)
+    }
+}
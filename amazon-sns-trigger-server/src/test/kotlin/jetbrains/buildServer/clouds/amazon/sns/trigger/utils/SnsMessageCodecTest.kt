@@ -0,0 +1,93 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.IOException
+import java.time.Instant
+
+class SnsMessageCodecTest {
+    private val stored = mutableMapOf<String, String>()
+
+    @Test
+    fun `message is decoded as it was encoded`() {
+        val message = message("1", "body")
+
+        val encoded = SnsMessageCodec.encode(message, SnsMessageCodec.SharedStrings.NONE)
+
+        assertFalse(SnsMessageCodec.isLegacy(encoded))
+        assertEquals(message, SnsMessageCodec.decode(encoded, SnsMessageCodec.SharedStrings.NONE))
+    }
+
+    @Test
+    fun `repeated strings are stored once`() {
+        val shared = SnsMessageCodec.SharedStrings { stored[it] }
+
+        val first = SnsMessageCodec.encode(message("1", "body"), shared)
+        val second = SnsMessageCodec.encode(message("2", "body"), shared)
+        stored.putAll(shared.added)
+
+        assertEquals(setOf(TOPIC_ARN, SUBSCRIPTION_ARN, UNSUBSCRIBE_URL), stored.values.toSet())
+        assertFalse(String(java.util.Base64.getDecoder().decode(first)).contains(TOPIC_ARN))
+
+        val reader = SnsMessageCodec.SharedStrings { stored[it] }
+        assertEquals(message("1", "body"), SnsMessageCodec.decode(first, reader))
+        assertEquals(message("2", "body"), SnsMessageCodec.decode(second, reader))
+    }
+
+    @Test
+    fun `missing shared string fails decoding`() {
+        val shared = SnsMessageCodec.SharedStrings { stored[it] }
+        val encoded = SnsMessageCodec.encode(message("1", "body"), shared)
+
+        assertThrows(IOException::class.java) {
+            SnsMessageCodec.decode(encoded, SnsMessageCodec.SharedStrings { stored[it] })
+        }
+    }
+
+    @Test
+    fun `large messages are compressed`() {
+        val message = message("1", "line of a large body\n".repeat(1000))
+
+        val encoded = SnsMessageCodec.encode(message, SnsMessageCodec.SharedStrings.NONE)
+
+        assertTrue(encoded.length < message.message!!.length / 4, "encoded length: ${encoded.length}")
+        assertEquals(message, SnsMessageCodec.decode(encoded, SnsMessageCodec.SharedStrings.NONE))
+    }
+
+    @Test
+    fun `legacy JSON is read`() {
+        val message = message("1", "body")
+
+        val json = SnsJson.MESSAGE_WRITER.writeValueAsString(message)
+
+        assertTrue(SnsMessageCodec.isLegacy(json))
+        assertEquals(message, SnsMessageCodec.decode(json, SnsMessageCodec.SharedStrings.NONE))
+    }
+
+    @Test
+    fun `unknown values fail decoding`() {
+        assertThrows(IOException::class.java) { SnsMessageCodec.decode("not encoded", SnsMessageCodec.SharedStrings.NONE) }
+        assertThrows(IOException::class.java) { SnsMessageCodec.decode("AgA=", SnsMessageCodec.SharedStrings.NONE) }
+    }
+
+    private fun message(id: String, body: String) = SnsNotificationDto().apply {
+        messageId = id
+        subject = "subject"
+        message = body
+        timestamp = Instant.parse("2024-01-01T00:00:00.123456789Z")
+        attributes = mapOf("key" to mapOf("Type" to "String", "Value" to "value"))
+        topic = TOPIC_ARN
+        subscriptionArn = SUBSCRIPTION_ARN
+        unsubscribeUrl = UNSUBSCRIBE_URL
+    }
+
+    companion object {
+        private const val TOPIC_ARN = "arn:aws:sns:eu-west-1:123456789012:topic"
+        private const val SUBSCRIPTION_ARN = "$TOPIC_ARN:8a21d249-4329-4871-acc6-7be709c6ea7f"
+        private const val UNSUBSCRIBE_URL = "https://sns.eu-west-1.amazonaws.com/?Action=Unsubscribe&SubscriptionArn=$SUBSCRIPTION_ARN"
+    }
+}
@@ -0,0 +1,60 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsEnvelope
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsMessageType
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.Signature
+import java.util.Base64
+
+class SnsSignatureVerifierTest {
+    private val keyPair: KeyPair = KeyPairGenerator.getInstance("RSA").apply { initialize(2048) }.generateKeyPair()
+
+    private fun envelope(message: String, signatureVersion: String = "2"): SnsEnvelope {
+        val fields = mutableMapOf<String, String?>(
+            "Type" to "Notification",
+            "MessageId" to "22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324",
+            "TopicArn" to "arn:aws:sns:us-west-2:123456789012:MyTopic",
+            "Subject" to null,
+            "Message" to message,
+            "Timestamp" to "2012-05-02T00:54:06.655Z",
+            "SignatureVersion" to signatureVersion
+        )
+        val unsigned = SnsEnvelope(HashMap(fields), null)
+        val signer = Signature.getInstance(SignatureVersion.fromValue(signatureVersion).algorithm)
+        signer.initSign(keyPair.private)
+        signer.update(unsigned.getStringToSign(SnsMessageType.NOTIFICATION).toByteArray(Charsets.UTF_8))
+        fields["Signature"] = Base64.getEncoder().encodeToString(signer.sign())
+        return SnsEnvelope(HashMap(fields), null)
+    }
+
+    private fun verify(envelope: SnsEnvelope) =
+        SnsSignatureVerifier.verify(envelope, SnsMessageType.NOTIFICATION, envelope.signature!!, keyPair.public)
+
+    @Test
+    fun `both signature versions are verified`() {
+        assertTrue(verify(envelope("hello", "1")))
+        assertTrue(verify(envelope("hello", "2")))
+    }
+
+    @Test
+    fun `canonical bytes are the UTF-8 string to sign`() {
+        assertTrue(verify(envelope("café € 🚀")))
+        assertTrue(verify(envelope("unpaired \ud83d surrogate")))
+        assertTrue(verify(envelope("x".repeat(200_000))))
+        // the buffer is reused after a large message
+        assertTrue(verify(envelope("short")))
+    }
+
+    @Test
+    fun `modified message is rejected`() {
+        val signed = envelope("hello")
+        val fields = SnsEnvelope.KNOWN_FIELDS.filter { signed.hasField(it) }.associateWith { signed.getField(it) }.toMutableMap()
+        fields["Message"] = "hellO"
+
+        assertFalse(verify(SnsEnvelope(HashMap(fields), null)))
+    }
+}
@@ -0,0 +1,60 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class TokenBucketTest {
+    private val now = 1_700_000_000_000L
+    // a token per second
+    private val rate = 1 / 1000.0
+
+    @Test
+    fun `burst is permitted at once and then tokens come at the rate`() {
+        val testable = TokenBucket.full(3, now)
+
+        repeat(3) { assertTrue(testable.tryAcquire(3, rate, now)) }
+        assertFalse(testable.tryAcquire(3, rate, now))
+        assertTrue(testable.isExhausted)
+        assertEquals(1000L, testable.getMillisUntilAvailable(3, rate, now))
+
+        assertFalse(testable.tryAcquire(3, rate, now + 999))
+        assertTrue(testable.tryAcquire(3, rate, now + 1000))
+        assertFalse(testable.isExhausted)
+    }
+
+    @Test
+    fun `tokens never exceed the capacity`() {
+        val testable = TokenBucket.full(2, now)
+        repeat(2) { testable.tryAcquire(2, rate, now) }
+
+        repeat(2) { assertTrue(testable.tryAcquire(2, rate, now + 3_600_000)) }
+        assertFalse(testable.tryAcquire(2, rate, now + 3_600_000))
+    }
+
+    @Test
+    fun `state doesn't change while the bucket is exhausted`() {
+        val testable = TokenBucket.full(1, now)
+        testable.tryAcquire(1, rate, now)
+        testable.tryAcquire(1, rate, now + 10)
+
+        val exhausted = testable.encode()
+        testable.tryAcquire(1, rate, now + 20)
+        assertEquals(exhausted, testable.encode())
+    }
+
+    @Test
+    fun `encoded bucket is restored`() {
+        val testable = TokenBucket.full(5, now)
+        testable.tryAcquire(5, rate, now)
+
+        val restored = TokenBucket.decode(testable.encode())!!
+        repeat(4) { assertTrue(restored.tryAcquire(5, rate, now)) }
+        assertFalse(restored.tryAcquire(5, rate, now))
+
+        assertNull(TokenBucket.decode(null))
+        assertNull(TokenBucket.decode("invalid"))
+    }
+}
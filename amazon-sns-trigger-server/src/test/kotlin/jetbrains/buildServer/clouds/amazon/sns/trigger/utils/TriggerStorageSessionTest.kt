@@ -0,0 +1,105 @@
+package jetbrains.buildServer.clouds.amazon.sns.trigger.utils
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import jetbrains.buildServer.clouds.amazon.sns.trigger.dto.SnsNotificationDto
+import jetbrains.buildServer.serverSide.CustomDataStorage
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class TriggerStorageSessionTest {
+
+    @Test
+    fun `test message is decoded once while its stored value is the same`() {
+        val session = TriggerStorageSession(null)
+        var decoded = 0
+        val decoder = TriggerStorageSession.MessageDecoder { _, value ->
+            decoded++
+            SnsNotificationDto().apply { messageId = value }
+        }
+
+        val first = session.decode("message.1", "a", decoder)
+        assertSame(first, session.decode("message.1", "a", decoder))
+        assertEquals(1, decoded)
+
+        assertEquals("b", session.decode("message.1", "b", decoder)?.messageId)
+        assertEquals(2, decoded)
+    }
+
+    @Test
+    fun `test messages that are not stored anymore are forgotten`() {
+        val session = TriggerStorageSession(null)
+        var decoded = 0
+        val decoder = TriggerStorageSession.MessageDecoder { _, value ->
+            decoded++
+            SnsNotificationDto().apply { messageId = value }
+        }
+
+        session.decode("message.1", "a", decoder)
+        session.decode("message.2", "b", decoder)
+        session.retainDecoded(setOf("message.2"))
+
+        session.decode("message.1", "a", decoder)
+        session.decode("message.2", "b", decoder)
+        assertEquals(3, decoded)
+    }
+
+    @Test
+    fun `test undecodable message is not cached`() {
+        val session = TriggerStorageSession(null)
+        var decoded = 0
+        val decoder = TriggerStorageSession.MessageDecoder { _, _ ->
+            decoded++
+            null
+        }
+
+        assertNull(session.decode("message.1", "invalid", decoder))
+        assertNull(session.decode("message.1", "invalid", decoder))
+        assertEquals(2, decoded)
+    }
+
+    @Test
+    fun `test version changes with flushes and refreshes`() {
+        val session = TriggerStorageSession(null)
+        val storage = mockk<CustomDataStorage>(relaxed = true)
+        every { storage.getValues() } returns emptyMap()
+
+        val initial = session.version
+        session.open(storage).putValue("key", "value")
+        assertEquals(initial + 1, session.version)
+
+        session.refresh(storage)
+        assertEquals(initial + 2, session.version)
+        verify(exactly = 1) { storage.refresh() }
+    }
+
+    @Test
+    fun `test version doesn't change without writes`() {
+        val session = TriggerStorageSession(null)
+        val storage = mockk<CustomDataStorage>(relaxed = true)
+        every { storage.getValues() } returns emptyMap()
+        every { storage.getValue("key") } returns "value"
+
+        session.open(storage).putValue("key", "value")
+        assertEquals(0L, session.version)
+    }
+
+    @Test
+    fun `test session is idle until the version changes`() {
+        val session = TriggerStorageSession(null)
+        val storage = mockk<CustomDataStorage>(relaxed = true)
+        every { storage.getValues() } returns emptyMap()
+
+        assertFalse(session.isIdle(session.version))
+        session.markIdle(session.version)
+        assertTrue(session.isIdle(session.version))
+
+        session.open(storage).putValue("key", "value")
+        assertFalse(session.isIdle(session.version))
+    }
+}
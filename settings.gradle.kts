@@ -1,3 +1,3 @@
-
 rootProject.name = "teamcity-amazon-sns-trigger-plugin"
-include("amazon-sns-trigger-server")
\ No newline at end of file
+include("amazon-sns-trigger-server")
+include("amazon-sns-trigger-benchmarks")